@@ -54,6 +54,7 @@ import net.named_data.jndn_xx.util.FaceUri;
 import net.named_data.nfd.utils.G;
 import net.named_data.nfd.utils.NfdcHelper;
 import net.named_data.nfd.utils.SharedPreferencesManager;
+import net.named_data.nfd.utils.TaskScheduler;
 
 import java.util.HashSet;
 import java.util.List;
@@ -115,7 +116,7 @@ public class FaceListFragment extends ListFragment implements
               public void onClick(DialogInterface dialogInterface, int i) {
                 m_facesToDelete.add((int) info.id);
                 m_faceDestroyAsyncTask = new FaceDestroyAsyncTask();
-                m_faceDestroyAsyncTask.execute(m_facesToDelete);
+                TaskScheduler.execute(TaskScheduler.MANAGEMENT, m_faceDestroyAsyncTask, m_facesToDelete);
               }
             })
             .setNegativeButton(android.R.string.cancel, null)
@@ -251,13 +252,13 @@ public class FaceListFragment extends ListFragment implements
   createFace(String faceUri, boolean isPermanent)
   {
     m_faceCreateAsyncTask = new FaceCreateAsyncTask(faceUri, isPermanent);
-    m_faceCreateAsyncTask.execute();
+    TaskScheduler.execute(TaskScheduler.MANAGEMENT, m_faceCreateAsyncTask);
   }
 
   @Override
   public void createRoute(Name prefix, int faceId, boolean isPermanent) {
     m_routeCreateAsyncTask = new RouteCreateAsyncTask(prefix, faceId, "", isPermanent, false);
-    m_routeCreateAsyncTask.execute();
+    TaskScheduler.execute(TaskScheduler.MANAGEMENT, m_routeCreateAsyncTask);
   }
 
   /////////////////////////////////////////////////////////////////////////
@@ -296,7 +297,7 @@ public class FaceListFragment extends ListFragment implements
    */
   private void startFaceListRetrievalTask() {
     m_faceListAsyncTask = new FaceListAsyncTask();
-    m_faceListAsyncTask.execute();
+    TaskScheduler.execute(TaskScheduler.INTERACTIVE, m_faceListAsyncTask);
   }
 
   /**
@@ -43,28 +43,18 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.StringRequest;
-import com.android.volley.toolbox.Volley;
-import com.intel.jndn.management.ManagementException;
 import com.intel.jndn.management.types.ForwarderStatus;
-import com.intel.jndn.management.types.RibEntry;
 
-import net.named_data.jndn.Name;
 import net.named_data.nfd.service.NfdService;
 import net.named_data.nfd.utils.G;
 import net.named_data.nfd.utils.NfdcHelper;
 import net.named_data.nfd.utils.SharedPreferencesManager;
+import net.named_data.nfd.utils.TaskScheduler;
 import net.named_data.nfd.wifidirect.utils.NDNController;
 
 import org.joda.time.Period;
 import org.joda.time.format.PeriodFormat;
 
-import java.util.List;
-
 public class MainFragment extends Fragment {
   public static final String URI_UDP_PREFIX = "udp://";
   public static final String PREFIX_NDN = "/";
@@ -145,8 +135,7 @@ public class MainFragment extends Fragment {
    * when the user clicks "connect to the nearest hub automatically", create face and register prefix
    */
   private void connectNearestHub() {
-    m_connectNearestHubAsyncTask = new ConnectNearestHubAsyncTask();
-    m_connectNearestHubAsyncTask.execute();
+    sendNfdServiceMessage(NfdService.CONNECT_NEAREST_HUB);
   }
 
   @Override
@@ -288,6 +277,13 @@ public class MainFragment extends Fragment {
           G.Log("ClientHandler: NFD is Stopped.");
           break;
 
+        case NfdService.NEAREST_HUB_UNREACHABLE:
+          if (getActivity() != null) {
+            String toastString = getResources().getString(R.string.fragment_route_list_toast_cannot_connect_hub);
+            Toast.makeText(getActivity(), toastString, Toast.LENGTH_LONG).show();
+          }
+          break;
+
         default:
           super.handleMessage(msg);
           break;
@@ -405,90 +401,6 @@ public class MainFragment extends Fragment {
   }
 
 
-  private class ConnectNearestHubAsyncTask extends AsyncTask<Void, Void, String> {
-
-    @Override
-    protected String
-    doInBackground(Void... params) {
-      //check whether two prefixes exist or not
-      boolean prefix_ndn_exist = false;
-      boolean prefix_localhop_nfd_exist = false;
-      NfdcHelper nfdcHelper = new NfdcHelper();
-      try {
-        List<RibEntry> ribEntries = nfdcHelper.ribList();
-        for (RibEntry one : ribEntries) {
-          if (one.getName().toUri().equals(PREFIX_NDN)) {
-            prefix_ndn_exist = true;
-          }
-
-          if (one.getName().toUri().equals(PREFIX_LOCALHOP_NFD)) {
-            prefix_localhop_nfd_exist = true;
-          }
-        }
-      } catch (ManagementException e) {
-        G.Log("Error fetching RIB list from NFD (" + e.getMessage() + ")");
-      } finally {
-        nfdcHelper.shutdown();
-      }
-      if (prefix_ndn_exist && prefix_localhop_nfd_exist)
-        return "";
-      final boolean prefix_ndn_exist_inner = prefix_ndn_exist;
-      final boolean prefix_localhop_nfd_exist_inner = prefix_localhop_nfd_exist;
-      //register prefixes if they don't exist
-      RequestQueue queue = Volley.newRequestQueue(getContext());
-      StringRequest stringRequest = new StringRequest(Request.Method.GET,
-        getResources().getString(R.string.ndn_fch_website),
-        new Response.Listener<String>() {
-          @Override
-          public void onResponse(String response) {
-            if (!prefix_ndn_exist_inner)
-              new RouteCreateToConnectNearestHubAsyncTask(
-                new Name(PREFIX_NDN), URI_UDP_PREFIX + response).execute();
-            if (!prefix_localhop_nfd_exist_inner)
-              new RouteCreateToConnectNearestHubAsyncTask(
-                new Name(PREFIX_LOCALHOP_NFD), URI_UDP_PREFIX + response).execute();
-          }
-        },
-        new Response.ErrorListener() {
-          @Override
-          public void onErrorResponse(VolleyError error) {
-            String toastString = getResources().getString(R.string.fragment_route_list_toast_cannot_connect_hub);
-            Toast.makeText(getActivity(), toastString, Toast.LENGTH_LONG).show();
-          }
-        });
-      // Add the request to the RequestQueue.
-      queue.add(stringRequest);
-      return "";
-    }
-  }
-
-  private class RouteCreateToConnectNearestHubAsyncTask extends AsyncTask<Void, Void, String> {
-    RouteCreateToConnectNearestHubAsyncTask(Name prefix, String faceUri) {
-      m_prefix = prefix;
-      m_faceUri = faceUri;
-    }
-
-    @Override
-    protected String
-    doInBackground(Void... params) {
-      NfdcHelper nfdcHelper = new NfdcHelper();
-      try {
-        G.Log("Try to create route to connect the nearest hub");
-        int faceId = nfdcHelper.faceCreate(m_faceUri);
-        nfdcHelper.ribRegisterPrefix(m_prefix, faceId, 10, true, false);
-        G.Log("Create permanent route" + m_prefix + " - " + m_faceUri);
-      } catch (Exception e) {
-        G.Log("Error in RouteCreateToConnectNearestHubAsyncTask: " + e.getMessage());
-      } finally {
-        nfdcHelper.shutdown();
-      }
-      return null;
-    }
-
-    private Name m_prefix;
-    private String m_faceUri;
-  }
-
   //////////////////////////////////////////////////////////////////////////////
 
   /**
@@ -506,8 +418,6 @@ public class MainFragment extends Fragment {
    */
   private boolean m_isNfdServiceConnected = false;
 
-  private ConnectNearestHubAsyncTask m_connectNearestHubAsyncTask;
-
   /**
    * Client Message Handler
    */
@@ -541,7 +451,7 @@ public class MainFragment extends Fragment {
   private Runnable m_statusUpdateRunnable = new Runnable() {
     @Override
     public void run() {
-      new StatusUpdateTask().execute();
+      TaskScheduler.execute(TaskScheduler.INTERACTIVE, new StatusUpdateTask());
     }
   };
 
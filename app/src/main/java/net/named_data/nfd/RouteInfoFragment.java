@@ -54,6 +54,7 @@ import net.named_data.jndn.encoding.EncodingException;
 import net.named_data.jndn.util.Blob;
 import net.named_data.nfd.utils.G;
 import net.named_data.nfd.utils.NfdcHelper;
+import net.named_data.nfd.utils.TaskScheduler;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -229,7 +230,7 @@ public class RouteInfoFragment extends ListFragment {
   private void removeRouteFace(Name prefix, HashSet<Integer> faceIds)
   {
     m_routeFaceRemoveAsyncTask = new RouteFaceRemoveAsyncTask(prefix, faceIds);
-    m_routeFaceRemoveAsyncTask.execute();
+    TaskScheduler.execute(TaskScheduler.MANAGEMENT, m_routeFaceRemoveAsyncTask);
   }
 
   private void retrieveRouteFaceList() {
@@ -239,7 +240,7 @@ public class RouteInfoFragment extends ListFragment {
       m_routeListAsyncTask = null;
     }
     m_routeListAsyncTask = new RouteListAsyncTask();
-    m_routeListAsyncTask.execute();
+    TaskScheduler.execute(TaskScheduler.INTERACTIVE, m_routeListAsyncTask);
 
     stopRouteFaceListRetrievalTask();
     startRouteFaceListRetrievalTask();
@@ -250,7 +251,7 @@ public class RouteInfoFragment extends ListFragment {
    */
   private void startRouteFaceListRetrievalTask() {
     m_faceListAsyncTask = new FaceListAsyncTask();
-    m_faceListAsyncTask.execute();
+    TaskScheduler.execute(TaskScheduler.INTERACTIVE, m_faceListAsyncTask);
   }
 
   /**
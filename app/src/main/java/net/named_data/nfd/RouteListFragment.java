@@ -54,6 +54,7 @@ import net.named_data.jndn_xx.util.FaceUri;
 import net.named_data.nfd.utils.G;
 import net.named_data.nfd.utils.NfdcHelper;
 import net.named_data.nfd.utils.SharedPreferencesManager;
+import net.named_data.nfd.utils.TaskScheduler;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -200,20 +201,20 @@ public class RouteListFragment extends ListFragment implements RouteCreateDialog
   public void
   createRouteByFaceUri(Name prefix, String faceUri, boolean isPermanent) {
     m_routeCreateAsyncTask = new RouteCreateAsyncTask(prefix, 0, faceUri, isPermanent, true);
-    m_routeCreateAsyncTask.execute();
+    TaskScheduler.execute(TaskScheduler.MANAGEMENT, m_routeCreateAsyncTask);
   }
 
   @Override
   public void
   createRouteByFaceId(Name prefix, int faceId, boolean isPermanent) {
     m_routeCreateAsyncTask = new RouteCreateAsyncTask(prefix, faceId, "", isPermanent, false);
-    m_routeCreateAsyncTask.execute();
+    TaskScheduler.execute(TaskScheduler.MANAGEMENT, m_routeCreateAsyncTask);
   }
 
   public void
   removeRoute(Name prefix, List<Integer> faceIds) {
     m_routeRemoveAsyncTask = new RouteRemoveAsyncTask(prefix, faceIds);
-    m_routeRemoveAsyncTask.execute();
+    TaskScheduler.execute(TaskScheduler.MANAGEMENT, m_routeRemoveAsyncTask);
   }
 
   /**
@@ -309,7 +310,7 @@ public class RouteListFragment extends ListFragment implements RouteCreateDialog
   private void
   startRouteListInfoRetrievalTask() {
     m_routeListAsyncTask = new RouteListAsyncTask();
-    m_routeListAsyncTask.execute();
+    TaskScheduler.execute(TaskScheduler.INTERACTIVE, m_routeListAsyncTask);
   }
 
   /**
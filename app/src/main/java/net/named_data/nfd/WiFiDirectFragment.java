@@ -38,10 +38,12 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.CompoundButton;
 import android.widget.ListView;
+import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import net.named_data.nfd.utils.SharedPreferencesManager;
 import net.named_data.nfd.wifidirect.model.Peer;
 import net.named_data.nfd.wifidirect.utils.NDNController;
 
@@ -63,6 +65,9 @@ public class WiFiDirectFragment extends Fragment {
 
   private static final String TAG = "WiFiDirectFragment";
 
+  /** Largest maximum hop count offered in the settings */
+  private static final int MAX_HOPS_CHOICE = 8;
+
   public WiFiDirectFragment() {
     // Required empty public constructor
   }
@@ -124,6 +129,61 @@ public class WiFiDirectFragment extends Fragment {
       }
     });
 
+    m_wdMulticastSwitch = (Switch) view.findViewById(R.id.wd_multicast_switch);
+    m_wdMulticastSwitch.setChecked(
+      SharedPreferencesManager.getWifiDirectMulticastProbing(getActivity().getApplicationContext()));
+    m_wdMulticastSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+      @Override
+      public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        // picked up by the next face and route consistency check
+        SharedPreferencesManager.setWifiDirectMulticastProbing(getActivity().getApplicationContext(), isChecked);
+      }
+    });
+
+    m_wdMaxHopsSpinner = (Spinner) view.findViewById(R.id.wd_max_hops_spinner);
+    List<Integer> maxHopsChoices = new ArrayList<>();
+    for (int maxHops = 1; maxHops <= MAX_HOPS_CHOICE; maxHops++) {
+      maxHopsChoices.add(maxHops);
+    }
+    ArrayAdapter<Integer> maxHopsAdapter =
+      new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item, maxHopsChoices);
+    maxHopsAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+    m_wdMaxHopsSpinner.setAdapter(maxHopsAdapter);
+    m_wdMaxHopsSpinner.setSelection(Math.min(NDNController.getInstance().getMaxHops(), MAX_HOPS_CHOICE) - 1);
+    m_wdMaxHopsSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+      @Override
+      public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+        // picked up by the next probe reply and face and route consistency check
+        SharedPreferencesManager.setWifiDirectMaxHops(getActivity().getApplicationContext(), position + 1);
+      }
+
+      @Override
+      public void onNothingSelected(AdapterView<?> parent) {
+      }
+    });
+
+    m_wdGroupOwnerPolicySpinner = (Spinner) view.findViewById(R.id.wd_group_owner_policy_spinner);
+    ArrayAdapter<CharSequence> groupOwnerPolicyAdapter = ArrayAdapter.createFromResource(
+      getActivity(), R.array.fragment_wifidirect_group_owner_policies, android.R.layout.simple_spinner_item);
+    groupOwnerPolicyAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+    m_wdGroupOwnerPolicySpinner.setAdapter(groupOwnerPolicyAdapter);
+    int groupOwnerPolicy =
+      SharedPreferencesManager.getWifiDirectGroupOwnerPolicy(getActivity().getApplicationContext());
+    if (groupOwnerPolicy >= 0 && groupOwnerPolicy < groupOwnerPolicyAdapter.getCount()) {
+      m_wdGroupOwnerPolicySpinner.setSelection(groupOwnerPolicy);
+    }
+    m_wdGroupOwnerPolicySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+      @Override
+      public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+        // used by the next connection this device initiates
+        SharedPreferencesManager.setWifiDirectGroupOwnerPolicy(getActivity().getApplicationContext(), position);
+      }
+
+      @Override
+      public void onNothingSelected(AdapterView<?> parent) {
+      }
+    });
+
     // list view for displaying peers
     m_wdConnectedPeerListview = (ListView) view.findViewById(R.id.wd_connected_peers_listview);
     m_ConnectedPeers = new ArrayList<>(NDNController.getInstance().getConnectedPeers());
@@ -388,6 +448,9 @@ public class WiFiDirectFragment extends Fragment {
   private ListView m_wdConnectedPeerListview;
   private ListView m_wdDiscoveredPeerListview;
   private Switch m_wdSwitch;
+  private Switch m_wdMulticastSwitch;
+  private Spinner m_wdMaxHopsSpinner;
+  private Spinner m_wdGroupOwnerPolicySpinner;
   private TextView m_wdGroupConnStatus;
   private TextView m_wdIpAddress;
   private TextView m_wdDeviceName;
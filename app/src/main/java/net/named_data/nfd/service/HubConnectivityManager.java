@@ -0,0 +1,414 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/*
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p/>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p/>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p/>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.service;
+
+import android.os.SystemClock;
+
+import com.intel.jndn.management.types.RibEntry;
+
+import net.named_data.jndn.Name;
+import net.named_data.nfd.MainFragment;
+import net.named_data.nfd.utils.G;
+import net.named_data.nfd.utils.NfdcHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps /ndn and /localhop/nfd connected to a primary hub and a warm standby hub.
+ * <p>
+ * Both hubs come from HubSelector's ranking and both are registered, the standby with
+ * a higher cost derived from the RTT difference, so that the default best-route strategy
+ * sends traffic to the primary only.  The strategy of the hub prefixes is left alone:
+ * "/" is one of them, and changing it would affect the whole namespace.
+ * <p>
+ * checkHealth() pings both hubs every few seconds.  When the primary
+ * loses several probes in a row, or becomes much slower than the standby, the route
+ * costs are swapped so that the standby takes over without waiting for the next
+ * full evaluation.
+ * <p>
+ * Faces are only destroyed when HubSelector created them; a hub reached through an
+ * existing (e.g. permanent) face keeps its face when it is released.
+ */
+class HubConnectivityManager {
+  HubConnectivityManager(HubSelector hubSelector) {
+    m_hubSelector = hubSelector;
+  }
+
+  /**
+   * Ranks the hubs and (re-)connects to the fastest two if needed.
+   * Must not be called on the main thread.
+   *
+   * @return true if a hub is connected after the evaluation
+   */
+  synchronized boolean
+  evaluate() {
+    applyPendingReset();
+    m_lastEvaluationTime = SystemClock.elapsedRealtime();
+    NfdcHelper nfdcHelper = new NfdcHelper();
+    try {
+      if (m_primary == null && areHubRoutesPresent(nfdcHelper)) {
+        G.Log(TAG, "Routes to a hub already exist, skip hub selection");
+        return true;
+      }
+
+      List<String> faceUrisInUse = new ArrayList<>();
+      for (ManagedHub managedHub : getManagedHubs()) {
+        faceUrisInUse.add(managedHub.hub.faceUri);
+      }
+      List<HubSelector.Hub> hubs = m_hubSelector.rank(nfdcHelper, faceUrisInUse);
+
+      HubSelector.Hub best = null;
+      HubSelector.Hub current = null;
+      for (HubSelector.Hub hub : hubs) {
+        if (best == null && hub.isReachable()) {
+          best = hub;
+        }
+        if (m_primary != null && hub.faceUri.equals(m_primary.hub.faceUri)) {
+          current = hub;
+        }
+      }
+
+      if (best != null) {
+        HubSelector.Hub primary = shouldSwitch(current, best) ? best : current;
+        HubSelector.Hub standby = null;
+        for (HubSelector.Hub hub : hubs) {
+          if (hub != primary && hub.isReachable()) {
+            standby = hub;
+            break;
+          }
+        }
+        apply(nfdcHelper, primary, standby);
+      }
+
+      // Faces that were only created to measure RTT are not kept
+      for (HubSelector.Hub hub : hubs) {
+        if (hub.isCreatedForProbe && hub.faceId != HubSelector.INVALID_FACE_ID) {
+          HubSelector.destroyFace(nfdcHelper, hub.faceId);
+        }
+      }
+
+      if (m_primary != null) {
+        G.Log(TAG, "Primary hub " + m_primary.hub.faceUri + ", RTT " + m_primary.srtt + " ms; standby hub " +
+          (m_standby != null ? m_standby.hub.faceUri + ", RTT " + m_standby.srtt + " ms" : "none"));
+      }
+      return m_primary != null && best != null;
+    } catch (Exception e) {
+      G.Log(TAG, "Error during hub selection: " + e.getMessage());
+      return m_primary != null;
+    } finally {
+      nfdcHelper.shutdown();
+    }
+  }
+
+  /**
+   * Probes the primary and standby hubs once and fails over to the standby if the
+   * primary degraded.  Must not be called on the main thread.
+   *
+   * @return false if no managed hub is healthy and a new evaluation is due
+   */
+  synchronized boolean
+  checkHealth() {
+    applyPendingReset();
+    List<ManagedHub> managedHubs = getManagedHubs();
+    if (managedHubs.isEmpty()) {
+      return true;
+    }
+
+    NfdcHelper nfdcHelper = new NfdcHelper();
+    try {
+      List<Name> healthPrefixes = new ArrayList<>(managedHubs.size());
+      for (ManagedHub managedHub : managedHubs) {
+        healthPrefixes.add(managedHub.healthPrefix);
+      }
+      double[] rtts = HubSelector.ping(healthPrefixes, 1, HEALTH_PROBE_LIFETIME);
+      for (int i = 0; i < managedHubs.size(); i++) {
+        managedHubs.get(i).update(rtts[i]);
+      }
+
+      if (m_standby != null && isDegraded(m_primary, m_standby) && !isDegraded(m_standby, m_primary)) {
+        G.Log(TAG, "Primary hub " + m_primary.hub.faceUri + " degraded (RTT " + m_primary.srtt +
+          " ms, loss " + m_primary.lossRate + "), fail over to " + m_standby.hub.faceUri);
+        ManagedHub degraded = m_primary;
+        m_primary = m_standby;
+        m_standby = degraded;
+        registerHubRoutes(nfdcHelper);
+      }
+    } catch (Exception e) {
+      G.Log(TAG, "Error during hub health check: " + e.getMessage());
+    } finally {
+      nfdcHelper.shutdown();
+    }
+
+    boolean isHealthy = m_primary.nConsecutiveLosses < MAX_CONSECUTIVE_LOSSES;
+    return isHealthy || SystemClock.elapsedRealtime() - m_lastEvaluationTime < MIN_REEVALUATION_INTERVAL;
+  }
+
+  /**
+   * Updates the managed hubs after their faces were recreated with new faceIds.
+   * Routes are expected to have been moved to the new faces already.
+   *
+   * @param replacedFaceIds new faceId by old faceId
+   */
+  synchronized void
+  replaceFaces(Map<Integer, Integer> replacedFaceIds) {
+    applyPendingReset();
+    for (ManagedHub managedHub : getManagedHubs()) {
+      Integer newFaceId = replacedFaceIds.get(managedHub.hub.faceId);
+      if (newFaceId != null) {
+        G.Log(TAG, "Hub " + managedHub.hub.faceUri + " moved to face " + newFaceId);
+        managedHub.hub.faceId = newFaceId;
+        managedHub.nConsecutiveLosses = 0;
+      }
+    }
+  }
+
+  /**
+   * @return whether faceId is the face of the primary or standby hub
+   */
+  synchronized boolean
+  isHubFace(int faceId) {
+    applyPendingReset();
+    for (ManagedHub managedHub : getManagedHubs()) {
+      if (managedHub.hub.faceId == faceId) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Forgets the managed hubs, e.g. after NFD was stopped, since a restarted NFD reuses
+   * their faceIds for other faces.  Does not block: the state is cleared before the
+   * next evaluation, health check or face replacement.
+   */
+  void
+  reset() {
+    m_isResetPending = true;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Hub that routes are registered to, with the state of its health probes
+   */
+  private static class ManagedHub {
+    ManagedHub(HubSelector.Hub hub) {
+      this.hub = hub;
+      this.srtt = hub.rtt;
+      this.healthPrefix = new Name(HEALTH_PROBE_PREFIX).append(Name.Component.fromNumber(hub.faceId));
+    }
+
+    /**
+     * Updates the smoothed RTT and loss rate with the result of one probe
+     *
+     * @param rtt RTT of the probe in ms, or Double.POSITIVE_INFINITY if it was lost
+     */
+    void
+    update(double rtt) {
+      if (rtt == Double.POSITIVE_INFINITY) {
+        ++nConsecutiveLosses;
+        lossRate = (1 - LOSS_GAIN) * lossRate + LOSS_GAIN;
+      } else {
+        nConsecutiveLosses = 0;
+        lossRate = (1 - LOSS_GAIN) * lossRate;
+        srtt = srtt == Double.POSITIVE_INFINITY ? rtt : (1 - RTT_GAIN) * srtt + RTT_GAIN * rtt;
+      }
+    }
+
+    final HubSelector.Hub hub;
+    final Name healthPrefix;
+
+    /** Smoothed RTT of the health probes, in ms */
+    double srtt;
+    double lossRate = 0;
+    int nConsecutiveLosses = 0;
+  }
+
+  /**
+   * @return whether hub should hand over its traffic to the other hub
+   */
+  private static boolean
+  isDegraded(ManagedHub hub, ManagedHub other) {
+    if (hub.nConsecutiveLosses >= MAX_CONSECUTIVE_LOSSES || hub.lossRate > MAX_LOSS_RATE) {
+      return true;
+    }
+    return hub.srtt > other.srtt * FAILOVER_RTT_RATIO && hub.srtt - other.srtt > FAILOVER_MIN_RTT_GAIN;
+  }
+
+  private boolean
+  shouldSwitch(HubSelector.Hub current, HubSelector.Hub best) {
+    if (m_primary == null || current == null || !current.isReachable()) {
+      return true;
+    }
+    if (best.faceUri.equals(m_primary.hub.faceUri)) {
+      return false;
+    }
+    return best.rtt < current.rtt * SWITCH_RTT_RATIO && current.rtt - best.rtt > SWITCH_MIN_RTT_GAIN;
+  }
+
+  /**
+   * Makes primary and standby the managed hubs, keeping the probe state of hubs that stay
+   * and releasing the routes and faces of hubs that are no longer used.
+   */
+  private void
+  apply(NfdcHelper nfdcHelper, HubSelector.Hub primary, HubSelector.Hub standby) throws Exception {
+    List<ManagedHub> previous = getManagedHubs();
+    m_primary = manage(nfdcHelper, primary, previous);
+    m_standby = standby != null ? manage(nfdcHelper, standby, previous) : null;
+    m_primary.srtt = primary.rtt;
+    if (m_standby != null) {
+      m_standby.srtt = standby.rtt;
+    }
+    registerHubRoutes(nfdcHelper);
+
+    for (ManagedHub managedHub : previous) {
+      if (managedHub != m_primary && managedHub != m_standby) {
+        release(nfdcHelper, managedHub);
+      }
+    }
+  }
+
+  /**
+   * @return the ManagedHub for hub, reused from previous if the hub was already managed
+   */
+  private static ManagedHub
+  manage(NfdcHelper nfdcHelper, HubSelector.Hub hub, List<ManagedHub> previous) throws Exception {
+    hub.isCreatedForProbe = false;
+    for (ManagedHub managedHub : previous) {
+      if (managedHub.hub.faceId == hub.faceId) {
+        return managedHub;
+      }
+    }
+    ManagedHub managedHub = new ManagedHub(hub);
+    nfdcHelper.ribRegisterPrefix(managedHub.healthPrefix, hub.faceId, 0, false, false);
+    return managedHub;
+  }
+
+  private static void
+  release(NfdcHelper nfdcHelper, ManagedHub managedHub) {
+    G.Log(TAG, "Release hub " + managedHub.hub.faceUri);
+    List<Name> prefixes = new ArrayList<>(HUB_PREFIXES);
+    prefixes.add(managedHub.healthPrefix);
+    for (Name prefix : prefixes) {
+      try {
+        nfdcHelper.ribUnregisterPrefix(prefix, managedHub.hub.faceId);
+      } catch (Exception e) {
+        G.Log(TAG, "Cannot unregister " + prefix + " from hub: " + e.getMessage());
+      }
+    }
+    if (managedHub.hub.isCreatedBySelector) {
+      HubSelector.destroyFace(nfdcHelper, managedHub.hub.faceId);
+    }
+  }
+
+  /**
+   * Registers the hub prefixes to the primary with HUB_ROUTE_COST and to the standby
+   * with a cost that grows with its RTT penalty.  Registering an existing route again
+   * only updates its cost.
+   */
+  private void
+  registerHubRoutes(NfdcHelper nfdcHelper) throws Exception {
+    nfdcHelper.ribRegisterPrefixes(HUB_PREFIXES, Collections.nCopies(HUB_PREFIXES.size(), m_primary.hub.faceId),
+                                   HUB_ROUTE_COST, true, false);
+    if (m_standby == null) {
+      return;
+    }
+
+    int standbyCost = HUB_ROUTE_COST + 1;
+    if (m_standby.srtt != Double.POSITIVE_INFINITY && m_primary.srtt != Double.POSITIVE_INFINITY) {
+      standbyCost = HUB_ROUTE_COST + (int) Math.max(1, Math.round(m_standby.srtt - m_primary.srtt));
+    }
+    nfdcHelper.ribRegisterPrefixes(HUB_PREFIXES, Collections.nCopies(HUB_PREFIXES.size(), m_standby.hub.faceId),
+                                   Math.min(standbyCost, MAX_STANDBY_ROUTE_COST), true, false);
+  }
+
+  private void
+  applyPendingReset() {
+    if (m_isResetPending) {
+      m_isResetPending = false;
+      m_primary = null;
+      m_standby = null;
+      G.Log(TAG, "Managed hubs cleared");
+    }
+  }
+
+  private List<ManagedHub>
+  getManagedHubs() {
+    List<ManagedHub> managedHubs = new ArrayList<>(2);
+    if (m_primary != null) {
+      managedHubs.add(m_primary);
+    }
+    if (m_standby != null) {
+      managedHubs.add(m_standby);
+    }
+    return managedHubs;
+  }
+
+  private static boolean
+  areHubRoutesPresent(NfdcHelper nfdcHelper) throws Exception {
+    int nPresent = 0;
+    for (RibEntry ribEntry : nfdcHelper.ribList()) {
+      if (HUB_PREFIXES.contains(ribEntry.getName())) {
+        ++nPresent;
+      }
+    }
+    return nPresent == HUB_PREFIXES.size();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  private static final String TAG = HubConnectivityManager.class.getName();
+
+  static final List<Name> HUB_PREFIXES = Arrays.asList(new Name(MainFragment.PREFIX_NDN),
+                                                       new Name(MainFragment.PREFIX_LOCALHOP_NFD));
+  private static final String HEALTH_PROBE_PREFIX = HubSelector.HUB_PROBE_PREFIX + "/health";
+  private static final int HUB_ROUTE_COST = 10;
+  private static final int MAX_STANDBY_ROUTE_COST = 1000;
+
+  /** A new primary must have RTT below this fraction of the current primary's RTT... */
+  private static final double SWITCH_RTT_RATIO = 0.7;
+  /** ...and be faster by at least this many ms */
+  private static final double SWITCH_MIN_RTT_GAIN = 15;
+
+  private static final double HEALTH_PROBE_LIFETIME = 1000; // in ms
+  private static final double RTT_GAIN = 0.125;
+  private static final double LOSS_GAIN = 0.25;
+
+  /** The primary fails over after this many lost probes in a row, ... */
+  private static final int MAX_CONSECUTIVE_LOSSES = 2;
+  /** ...when its smoothed loss rate exceeds this, ... */
+  private static final double MAX_LOSS_RATE = 0.3;
+  /** ...or when its RTT is this many times the standby's and at least FAILOVER_MIN_RTT_GAIN ms more */
+  private static final double FAILOVER_RTT_RATIO = 2;
+  private static final double FAILOVER_MIN_RTT_GAIN = 50;
+
+  /** checkHealth() asks for a new evaluation at most this often, in ms */
+  private static final long MIN_REEVALUATION_INTERVAL = 30 * 1000;
+
+  private final HubSelector m_hubSelector;
+  private ManagedHub m_primary = null;
+  private ManagedHub m_standby = null;
+  private volatile boolean m_isResetPending = false;
+  private long m_lastEvaluationTime = 0;
+}
@@ -0,0 +1,338 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/*
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p/>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p/>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p/>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.service;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.RequestFuture;
+import com.android.volley.toolbox.StringRequest;
+import com.android.volley.toolbox.Volley;
+import com.intel.jndn.management.enums.FacePersistency;
+import com.intel.jndn.management.types.FaceStatus;
+
+import net.named_data.jndn.Data;
+import net.named_data.jndn.Face;
+import net.named_data.jndn.Interest;
+import net.named_data.jndn.Name;
+import net.named_data.jndn.NetworkNack;
+import net.named_data.jndn.OnData;
+import net.named_data.jndn.OnNetworkNack;
+import net.named_data.jndn.OnTimeout;
+import net.named_data.nfd.MainFragment;
+import net.named_data.nfd.R;
+import net.named_data.nfd.utils.FaceParameters;
+import net.named_data.nfd.utils.G;
+import net.named_data.nfd.utils.NfdcHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ranks the hubs that /ndn and /localhop/nfd can be routed to.
+ * <p>
+ * Candidates come from the NDN-FCH service, which is asked for several hubs at once;
+ * its answer is cached for FCH_CACHE_TTL.  RTT to every candidate (and to the hubs
+ * currently in use) is measured in parallel with NDN pings: an Interest under
+ * HUB_PROBE_PREFIX is routed to the candidate's face only, and the hub's Nack (or Data)
+ * ends the round trip.
+ * <p>
+ * Which hubs are actually used is decided by HubConnectivityManager.
+ */
+class HubSelector {
+  /**
+   * Hub candidate together with its measured RTT
+   */
+  static class Hub {
+    Hub(String faceUri) {
+      this.faceUri = faceUri;
+    }
+
+    boolean
+    isReachable() {
+      return rtt != Double.POSITIVE_INFINITY;
+    }
+
+    final String faceUri;
+    int faceId = INVALID_FACE_ID;
+
+    /** Whether the face was created by rank() and is not used for routing yet */
+    boolean isCreatedForProbe = false;
+
+    /** Whether the face was created by rank(), rather than found among the existing faces */
+    boolean isCreatedBySelector = false;
+
+    /** Best RTT of the pings, in ms */
+    double rtt = Double.POSITIVE_INFINITY;
+  }
+
+  HubSelector(Context context) {
+    m_context = context;
+  }
+
+  /**
+   * Measures the NDN-FCH candidates and the given hubs.  Must not be called on the main thread.
+   * <p>
+   * A face is created for every candidate that does not have one yet; the caller is
+   * responsible for destroying the ones it does not keep.
+   *
+   * @param faceUris face URIs of hubs to measure in addition to the NDN-FCH candidates
+   * @return measured hubs, fastest first; unreachable hubs are at the end
+   */
+  synchronized List<Hub>
+  rank(NfdcHelper nfdcHelper, Collection<String> faceUris) throws Exception {
+    Set<String> allFaceUris = new LinkedHashSet<>(getCandidateUris());
+    allFaceUris.addAll(faceUris);
+    if (allFaceUris.isEmpty()) {
+      return new ArrayList<>();
+    }
+
+    List<Hub> hubs = measure(nfdcHelper, new ArrayList<>(allFaceUris));
+    Collections.sort(hubs, new Comparator<Hub>() {
+      @Override
+      public int compare(Hub lhs, Hub rhs) {
+        return Double.compare(lhs.rtt, rhs.rtt);
+      }
+    });
+    return hubs;
+  }
+
+  /**
+   * Drops the cached FCH answer, e.g. when the device moved to another network.
+   */
+  synchronized void
+  invalidateCache() {
+    m_candidateUris = null;
+  }
+
+  /**
+   * Sends nPings pings under each of the prefixes at the same time and waits for all of them.
+   * The prefixes must already be routed to the face of the hub they probe.
+   *
+   * @return best RTT per prefix in ms, or Double.POSITIVE_INFINITY if no ping was answered
+   */
+  static double[]
+  ping(List<Name> prefixes, int nPings, double lifetime) throws Exception {
+    final double[] rtts = new double[prefixes.size()];
+    Arrays.fill(rtts, Double.POSITIVE_INFINITY);
+
+    Face face = new Face("localhost");
+    try {
+      final int[] nPending = {0};
+      for (int i = 0; i < prefixes.size(); i++) {
+        final int index = i;
+        for (int j = 0; j < nPings; j++) {
+          Interest interest = new Interest(new Name(prefixes.get(i))
+                                             .append(Name.Component.fromNumber(Math.abs(s_random.nextLong()))));
+          interest.setInterestLifetimeMilliseconds(lifetime);
+          interest.setMustBeFresh(true);
+
+          final long startTime = System.nanoTime();
+          ++nPending[0];
+          face.expressInterest(interest,
+                               new OnData() {
+                                 @Override
+                                 public void onData(Interest interest, Data data) {
+                                   --nPending[0];
+                                   rtts[index] = Math.min(rtts[index], (System.nanoTime() - startTime) / 1000000.0);
+                                 }
+                               },
+                               new OnTimeout() {
+                                 @Override
+                                 public void onTimeout(Interest interest) {
+                                   --nPending[0];
+                                 }
+                               },
+                               new OnNetworkNack() {
+                                 @Override
+                                 public void onNetworkNack(Interest interest, NetworkNack networkNack) {
+                                   // The hub has no route for the probe name, so its Nack
+                                   // still completes a full round trip
+                                   --nPending[0];
+                                   rtts[index] = Math.min(rtts[index], (System.nanoTime() - startTime) / 1000000.0);
+                                 }
+                               });
+        }
+      }
+
+      while (nPending[0] > 0) {
+        face.processEvents();
+        Thread.sleep(5);
+      }
+    } finally {
+      face.shutdown();
+    }
+    return rtts;
+  }
+
+  static void
+  destroyFace(NfdcHelper nfdcHelper, int faceId) {
+    try {
+      nfdcHelper.faceDestroy(faceId);
+    } catch (Exception e) {
+      G.Log(TAG, "Cannot destroy face " + faceId + ": " + e.getMessage());
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * @return hub face URIs from NDN-FCH, cached for FCH_CACHE_TTL
+   */
+  private List<String>
+  getCandidateUris() {
+    long now = SystemClock.elapsedRealtime();
+    if (m_candidateUris != null && now - m_candidateUrisTime < FCH_CACHE_TTL) {
+      return m_candidateUris;
+    }
+
+    if (m_requestQueue == null) {
+      m_requestQueue = Volley.newRequestQueue(m_context);
+    }
+    String url = m_context.getResources().getString(R.string.ndn_fch_website) + "?k=" + NUM_CANDIDATES;
+    RequestFuture<String> future = RequestFuture.newFuture();
+    m_requestQueue.add(new StringRequest(Request.Method.GET, url, future, future));
+
+    try {
+      String response = future.get(FCH_TIMEOUT, TimeUnit.MILLISECONDS);
+      List<String> uris = new ArrayList<>();
+      for (String host : response.split(",")) {
+        if (!host.trim().isEmpty()) {
+          uris.add(MainFragment.URI_UDP_PREFIX + host.trim());
+        }
+      }
+      m_candidateUris = uris;
+      m_candidateUrisTime = now;
+      G.Log(TAG, "NDN-FCH returned " + uris.size() + " hub(s)");
+    } catch (Exception e) {
+      G.Log(TAG, "Cannot reach NDN-FCH: " + e.getMessage());
+      // Use a stale answer rather than nothing
+      if (m_candidateUris != null) {
+        return m_candidateUris;
+      }
+      return new ArrayList<>();
+    }
+    return m_candidateUris;
+  }
+
+  /**
+   * Creates (or finds) a face for every hub and pings all of them at the same time.
+   */
+  private List<Hub>
+  measure(NfdcHelper nfdcHelper, List<String> faceUris) throws Exception {
+    Map<String, Integer> existingFaces = new HashMap<>();
+    for (FaceStatus faceStatus : nfdcHelper.faceList()) {
+      existingFaces.put(faceStatus.getRemoteUri(), faceStatus.getFaceId());
+    }
+
+    final List<Hub> hubs = new ArrayList<>();
+    for (String faceUri : faceUris) {
+      Hub hub = new Hub(faceUri);
+      try {
+        Integer faceId = existingFaces.get(NfdcHelper.formatFaceUri(faceUri));
+        if (faceId == null) {
+          hub.faceId = nfdcHelper.faceCreate(faceUri, getHubFaceParameters(faceUri));
+          hub.isCreatedForProbe = true;
+          hub.isCreatedBySelector = true;
+        } else {
+          hub.faceId = faceId;
+        }
+        hubs.add(hub);
+      } catch (Exception e) {
+        G.Log(TAG, "Cannot create face to hub " + faceUri + ": " + e.getMessage());
+      }
+    }
+
+    List<Name> probePrefixes = new ArrayList<>(hubs.size());
+    for (int i = 0; i < hubs.size(); i++) {
+      probePrefixes.add(getProbePrefix(i));
+      nfdcHelper.ribRegisterPrefix(probePrefixes.get(i), hubs.get(i).faceId, 0, false, false);
+    }
+    try {
+      double[] rtts = ping(probePrefixes, PINGS_PER_HUB, PING_LIFETIME);
+      for (int i = 0; i < hubs.size(); i++) {
+        hubs.get(i).rtt = rtts[i];
+      }
+    } finally {
+      for (int i = 0; i < hubs.size(); i++) {
+        try {
+          nfdcHelper.ribUnregisterPrefix(probePrefixes.get(i), hubs.get(i).faceId);
+        } catch (Exception e) {
+          G.Log(TAG, "Cannot unregister hub probe prefix: " + e.getMessage());
+        }
+      }
+    }
+
+    for (Hub hub : hubs) {
+      G.Log(TAG, "Hub " + hub.faceUri + " RTT " + hub.rtt + " ms");
+    }
+    return hubs;
+  }
+
+  /**
+   * @return prefix routed only to the hub with the given index during measure()
+   */
+  private static Name
+  getProbePrefix(int hubIndex) {
+    return new Name(HUB_PROBE_PREFIX).append(Name.Component.fromNumber(hubIndex));
+  }
+
+  /**
+   * @return parameters of a face to a hub: UDP hubs are reached over the Internet, so
+   *         losses are repaired on the link rather than by consumers
+   */
+  static FaceParameters
+  getHubFaceParameters(String faceUri) {
+    return new FaceParameters()
+      .setFacePersistency(FacePersistency.PERSISTENT)
+      .setLpReliability(faceUri.startsWith("udp"));
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  private static final String TAG = HubSelector.class.getName();
+
+  static final String HUB_PROBE_PREFIX = "/localhop/nfd-android/hub-probe";
+  static final int INVALID_FACE_ID = -1;
+
+  private static final int NUM_CANDIDATES = 5;
+  private static final long FCH_CACHE_TTL = 30 * 60 * 1000; // in ms
+  private static final long FCH_TIMEOUT = 10 * 1000; // in ms
+  private static final int PINGS_PER_HUB = 3;
+  private static final double PING_LIFETIME = 2000; // in ms
+  private static final Random s_random = new Random();
+
+  private final Context m_context;
+  private RequestQueue m_requestQueue = null;
+  private List<String> m_candidateUris = null;
+  private long m_candidateUrisTime = 0;
+}
@@ -0,0 +1,515 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/*
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p/>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p/>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p/>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.service;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.intel.jndn.management.types.FaceStatus;
+import com.intel.jndn.management.types.RibEntry;
+
+import net.named_data.jndn.ControlParameters;
+import net.named_data.jndn.ForwardingFlags;
+import net.named_data.jndn.Name;
+import net.named_data.jndn.util.Blob;
+import net.named_data.nfd.utils.G;
+import net.named_data.nfd.utils.NfdcHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the bound-service management API of NfdService to client apps.
+ * <p>
+ * All clients share one management face to NFD, used only from the proxy's own serial executor.
+ * It is not a TaskScheduler lane: its queue is unbounded, so a fetch or flush is never dropped,
+ * which would leave a snapshot marked as refreshing or client commands without a reply:
+ * <ul>
+ *   <li>Snapshots (forwarder status, face list, route list) are cached for SNAPSHOT_TTL;
+ *       concurrent requests for the same snapshot wait for a single fetch.</li>
+ *   <li>Subscribers are served by one poller, which pushes a snapshot only when it changed.</li>
+ *   <li>Register/unregister requests are collected for BATCH_DELAY, identical commands from
+ *       different clients are merged, and the batch is sent as pipelined commands.</li>
+ * </ul>
+ * All methods except the fetch and flush jobs run on the main thread.
+ */
+class ManagementProxy {
+  /**
+   * @param handler handler of the main thread
+   */
+  ManagementProxy(Handler handler) {
+    m_handler = handler;
+    for (int i = 0; i < N_SNAPSHOTS; i++) {
+      m_waitingClients.add(new ArrayList<Messenger>());
+    }
+  }
+
+  /**
+   * Handles the API messages of NfdService
+   *
+   * @return false if message is not part of the management API
+   */
+  boolean
+  handleMessage(Message message) {
+    switch (message.what) {
+      case NfdService.GET_FORWARDER_STATUS:
+        requestSnapshot(SNAPSHOT_FORWARDER_STATUS, message.replyTo);
+        return true;
+      case NfdService.GET_FACE_LIST:
+        requestSnapshot(SNAPSHOT_FACE_LIST, message.replyTo);
+        return true;
+      case NfdService.GET_ROUTE_LIST:
+        requestSnapshot(SNAPSHOT_ROUTE_LIST, message.replyTo);
+        return true;
+      case NfdService.SUBSCRIBE:
+        subscribe(message.replyTo, message.arg1);
+        return true;
+      case NfdService.UNSUBSCRIBE:
+        unsubscribe(message.replyTo);
+        return true;
+      case NfdService.REGISTER_PREFIXES:
+      case NfdService.UNREGISTER_PREFIXES:
+        enqueueCommands(message);
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  void
+  shutdown() {
+    m_handler.removeCallbacks(m_pollRunnable);
+    m_handler.removeCallbacks(m_flushRunnable);
+    m_subscribers.clear();
+    m_executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (m_nfdcHelper != null) {
+          m_nfdcHelper.shutdown();
+          m_nfdcHelper = null;
+        }
+      }
+    });
+    m_executor.shutdown();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  private void
+  requestSnapshot(int snapshot, Messenger replyTo) {
+    if (replyTo == null) {
+      return;
+    }
+    if (m_snapshots[snapshot] != null &&
+        SystemClock.elapsedRealtime() - m_snapshotTimes[snapshot] < SNAPSHOT_TTL) {
+      sendSnapshot(replyTo, snapshot);
+      return;
+    }
+    m_waitingClients.get(snapshot).add(replyTo);
+    refresh(snapshot);
+  }
+
+  private void
+  subscribe(Messenger replyTo, int snapshotMask) {
+    if (replyTo == null) {
+      return;
+    }
+    boolean isFirst = m_subscribers.isEmpty();
+    m_subscribers.put(replyTo, snapshotMask & ALL_SNAPSHOTS);
+    for (int i = 0; i < N_SNAPSHOTS; i++) {
+      if ((snapshotMask & (1 << i)) != 0) {
+        requestSnapshot(i, replyTo);
+      }
+    }
+    if (isFirst) {
+      m_handler.postDelayed(m_pollRunnable, POLL_INTERVAL);
+    }
+  }
+
+  private void
+  unsubscribe(Messenger replyTo) {
+    m_subscribers.remove(replyTo);
+    if (m_subscribers.isEmpty()) {
+      m_handler.removeCallbacks(m_pollRunnable);
+    }
+  }
+
+  /**
+   * Fetches the snapshot on the proxy's executor, unless a fetch is already in progress
+   */
+  private void
+  refresh(final int snapshot) {
+    if (m_isRefreshing[snapshot] || m_executor.isShutdown()) {
+      return;
+    }
+    m_isRefreshing[snapshot] = true;
+    m_executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final byte[] dataset = fetch(snapshot);
+        m_handler.post(new Runnable() {
+          @Override
+          public void run() {
+            onRefreshed(snapshot, dataset);
+          }
+        });
+      }
+    });
+  }
+
+  private void
+  onRefreshed(int snapshot, byte[] dataset) {
+    m_isRefreshing[snapshot] = false;
+    boolean isChanged = false;
+    if (dataset != null) {
+      isChanged = !Arrays.equals(dataset, m_snapshots[snapshot]);
+      m_snapshots[snapshot] = dataset;
+      m_snapshotTimes[snapshot] = SystemClock.elapsedRealtime();
+    }
+
+    List<Messenger> waitingClients = m_waitingClients.get(snapshot);
+    for (Messenger client : waitingClients) {
+      sendSnapshot(client, snapshot);
+    }
+
+    if (isChanged) {
+      for (Messenger subscriber : new ArrayList<>(m_subscribers.keySet())) {
+        if ((m_subscribers.get(subscriber) & (1 << snapshot)) != 0 && !waitingClients.contains(subscriber)) {
+          sendSnapshot(subscriber, snapshot);
+        }
+      }
+    }
+    waitingClients.clear();
+  }
+
+  /**
+   * Runs on the proxy's executor
+   *
+   * @return concatenated TLV encodings of the dataset entries, or null on failure
+   */
+  private byte[]
+  fetch(int snapshot) {
+    try {
+      if (m_nfdcHelper == null) {
+        m_nfdcHelper = new NfdcHelper();
+      }
+      ByteArrayOutputStream dataset = new ByteArrayOutputStream();
+      switch (snapshot) {
+        case SNAPSHOT_FORWARDER_STATUS:
+          write(dataset, m_nfdcHelper.generalStatus().wireEncode());
+          break;
+        case SNAPSHOT_FACE_LIST:
+          for (FaceStatus faceStatus : m_nfdcHelper.faceList()) {
+            write(dataset, faceStatus.wireEncode());
+          }
+          break;
+        case SNAPSHOT_ROUTE_LIST:
+          for (RibEntry ribEntry : m_nfdcHelper.ribList()) {
+            write(dataset, ribEntry.wireEncode());
+          }
+          break;
+      }
+      return dataset.toByteArray();
+    } catch (Exception e) {
+      G.Log(TAG, "Cannot fetch snapshot " + snapshot + ": " + e.getMessage());
+      // The face may be broken, e.g. because NFD was restarted
+      if (m_nfdcHelper != null) {
+        m_nfdcHelper.shutdown();
+        m_nfdcHelper = null;
+      }
+      return null;
+    }
+  }
+
+  private static void
+  write(ByteArrayOutputStream stream, Blob blob) {
+    byte[] bytes = blob.getImmutableArray();
+    stream.write(bytes, 0, bytes.length);
+  }
+
+  private void
+  sendSnapshot(Messenger client, int snapshot) {
+    Bundle bundle = new Bundle();
+    if (m_snapshots[snapshot] != null) {
+      bundle.putByteArray(NfdService.KEY_DATASET, m_snapshots[snapshot]);
+      bundle.putLong(NfdService.KEY_DATASET_AGE, SystemClock.elapsedRealtime() - m_snapshotTimes[snapshot]);
+    }
+    Message reply = Message.obtain(null, SNAPSHOT_REPLIES[snapshot]);
+    reply.setData(bundle);
+    send(client, reply);
+  }
+
+  private void
+  send(Messenger client, Message message) {
+    try {
+      client.send(message);
+    } catch (RemoteException e) {
+      // The client is gone, stop pushing snapshots to it
+      unsubscribe(client);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * One register or unregister request of a client, answered once all its commands completed
+   */
+  private static class ClientRequest {
+    ClientRequest(Messenger replyTo, int what, int token, int nCommands) {
+      this.replyTo = replyTo;
+      this.what = what;
+      this.token = token;
+      this.results = new boolean[nCommands];
+      this.nRemaining = nCommands;
+    }
+
+    final Messenger replyTo;
+    final int what;
+    final int token;
+    final boolean[] results;
+    int nRemaining;
+  }
+
+  /**
+   * Command shared by all clients that asked for the same thing
+   */
+  private static class PendingCommand {
+    PendingCommand(boolean isRegister, ControlParameters parameters) {
+      this.isRegister = isRegister;
+      this.parameters = parameters;
+    }
+
+    final boolean isRegister;
+    final ControlParameters parameters;
+    final List<ClientRequest> requests = new ArrayList<>();
+    final List<Integer> indexes = new ArrayList<>();
+  }
+
+  private void
+  enqueueCommands(Message message) {
+    boolean isRegister = message.what == NfdService.REGISTER_PREFIXES;
+    Bundle data = message.getData();
+    String[] prefixes = data.getStringArray(NfdService.KEY_PREFIXES);
+    int faceId = data.getInt(NfdService.KEY_FACE_ID, 0);
+    if (prefixes == null) {
+      prefixes = new String[0];
+    }
+
+    ClientRequest request = new ClientRequest(message.replyTo, message.what, message.arg1, prefixes.length);
+    if (faceId <= 0 || prefixes.length == 0) {
+      // A command without FaceId would apply to the proxy's own face
+      reply(request);
+      return;
+    }
+
+    int cost = data.getInt(NfdService.KEY_COST, DEFAULT_COST);
+    ForwardingFlags flags = new ForwardingFlags();
+    flags.setChildInherit(data.getBoolean(NfdService.KEY_CHILD_INHERIT, true));
+    flags.setCapture(data.getBoolean(NfdService.KEY_CAPTURE, false));
+
+    for (int i = 0; i < prefixes.length; i++) {
+      String key = (isRegister ? "register " + cost + " " + flags.getNfdForwardingFlags() : "unregister") +
+        " " + faceId + " " + prefixes[i];
+      PendingCommand command = m_pendingCommands.get(key);
+      if (command == null) {
+        ControlParameters parameters = new ControlParameters().setName(new Name(prefixes[i])).setFaceId(faceId);
+        if (isRegister) {
+          parameters.setCost(cost).setForwardingFlags(flags);
+        }
+        command = new PendingCommand(isRegister, parameters);
+        m_pendingCommands.put(key, command);
+      }
+      command.requests.add(request);
+      command.indexes.add(i);
+    }
+
+    if (!m_isFlushScheduled) {
+      m_isFlushScheduled = true;
+      m_handler.postDelayed(m_flushRunnable, BATCH_DELAY);
+    }
+  }
+
+  /**
+   * Sends every pending command as one pipelined batch per command type
+   */
+  private void
+  flush() {
+    m_isFlushScheduled = false;
+    final List<PendingCommand> commands = new ArrayList<>(m_pendingCommands.values());
+    m_pendingCommands.clear();
+    if (commands.isEmpty() || m_executor.isShutdown()) {
+      return;
+    }
+
+    m_executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        List<ControlParameters> registrations = new ArrayList<>();
+        List<ControlParameters> unregistrations = new ArrayList<>();
+        for (PendingCommand command : commands) {
+          (command.isRegister ? registrations : unregistrations).add(command.parameters);
+        }
+
+        boolean[] registerResults = new boolean[registrations.size()];
+        boolean[] unregisterResults = new boolean[unregistrations.size()];
+        try {
+          if (m_nfdcHelper == null) {
+            m_nfdcHelper = new NfdcHelper();
+          }
+          if (!registrations.isEmpty()) {
+            registerResults = m_nfdcHelper.ribRegisterPrefixes(registrations);
+          }
+          if (!unregistrations.isEmpty()) {
+            unregisterResults = m_nfdcHelper.ribUnregisterPrefixes(unregistrations);
+          }
+        } catch (Exception e) {
+          G.Log(TAG, "Cannot send route commands: " + e.getMessage());
+        }
+        G.Log(TAG, "Sent " + registrations.size() + " register and " +
+          unregistrations.size() + " unregister command(s) for clients");
+
+        final boolean[] results = new boolean[commands.size()];
+        int nRegistrations = 0;
+        int nUnregistrations = 0;
+        for (int i = 0; i < commands.size(); i++) {
+          results[i] = commands.get(i).isRegister ? registerResults[nRegistrations++]
+                                                  : unregisterResults[nUnregistrations++];
+        }
+        m_handler.post(new Runnable() {
+          @Override
+          public void run() {
+            onFlushed(commands, results);
+          }
+        });
+      }
+    });
+  }
+
+  private void
+  onFlushed(List<PendingCommand> commands, boolean[] results) {
+    for (int i = 0; i < commands.size(); i++) {
+      PendingCommand command = commands.get(i);
+      for (int j = 0; j < command.requests.size(); j++) {
+        ClientRequest request = command.requests.get(j);
+        request.results[command.indexes.get(j)] = results[i];
+        if (--request.nRemaining == 0) {
+          reply(request);
+        }
+      }
+    }
+
+    // Routes changed: drop the cached route list and tell subscribers
+    m_snapshotTimes[SNAPSHOT_ROUTE_LIST] = 0;
+    for (int mask : m_subscribers.values()) {
+      if ((mask & (1 << SNAPSHOT_ROUTE_LIST)) != 0) {
+        refresh(SNAPSHOT_ROUTE_LIST);
+        break;
+      }
+    }
+  }
+
+  private void
+  reply(ClientRequest request) {
+    if (request.replyTo == null) {
+      return;
+    }
+    Bundle bundle = new Bundle();
+    bundle.putBooleanArray(NfdService.KEY_RESULTS, request.results);
+    Message reply = Message.obtain(null, request.what == NfdService.REGISTER_PREFIXES ?
+                                           NfdService.PREFIXES_REGISTERED : NfdService.PREFIXES_UNREGISTERED);
+    reply.arg1 = request.token;
+    reply.setData(bundle);
+    send(request.replyTo, reply);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  private final Runnable m_pollRunnable = new Runnable() {
+    @Override
+    public void run() {
+      int mask = 0;
+      for (int one : m_subscribers.values()) {
+        mask |= one;
+      }
+      for (int i = 0; i < N_SNAPSHOTS; i++) {
+        if ((mask & (1 << i)) != 0) {
+          refresh(i);
+        }
+      }
+      if (!m_subscribers.isEmpty()) {
+        m_handler.postDelayed(this, POLL_INTERVAL);
+      }
+    }
+  };
+
+  private final Runnable m_flushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  private static final String TAG = ManagementProxy.class.getName();
+
+  /** Snapshot indexes; bit (1 << index) is used in SUBSCRIBE masks */
+  private static final int SNAPSHOT_FORWARDER_STATUS = 0;
+  private static final int SNAPSHOT_FACE_LIST = 1;
+  private static final int SNAPSHOT_ROUTE_LIST = 2;
+  private static final int N_SNAPSHOTS = 3;
+  private static final int ALL_SNAPSHOTS = (1 << N_SNAPSHOTS) - 1;
+  private static final int[] SNAPSHOT_REPLIES = {NfdService.FORWARDER_STATUS,
+                                                 NfdService.FACE_LIST,
+                                                 NfdService.ROUTE_LIST};
+
+  private static final long SNAPSHOT_TTL = 1000; // in ms
+  private static final long POLL_INTERVAL = 5000; // in ms
+  private static final long BATCH_DELAY = 50; // in ms
+  private static final int DEFAULT_COST = 10;
+
+  private final Handler m_handler;
+
+  private final byte[][] m_snapshots = new byte[N_SNAPSHOTS][];
+  private final long[] m_snapshotTimes = new long[N_SNAPSHOTS];
+  private final ExecutorService m_executor = Executors.newSingleThreadExecutor();
+  private final boolean[] m_isRefreshing = new boolean[N_SNAPSHOTS];
+  private final List<List<Messenger>> m_waitingClients = new ArrayList<>(N_SNAPSHOTS);
+
+  /** Snapshot mask by subscriber */
+  private final Map<Messenger, Integer> m_subscribers = new HashMap<>();
+
+  private final Map<String, PendingCommand> m_pendingCommands = new LinkedHashMap<>();
+  private boolean m_isFlushScheduled = false;
+
+  /** Management face shared by all clients, only used on the proxy's executor */
+  private NfdcHelper m_nfdcHelper = null;
+}
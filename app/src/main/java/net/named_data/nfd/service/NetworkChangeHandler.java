@@ -0,0 +1,401 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/*
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p/>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p/>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p/>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.service;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.util.SparseArray;
+
+import com.intel.jndn.management.enums.FacePersistency;
+import com.intel.jndn.management.enums.FaceScope;
+import com.intel.jndn.management.enums.LinkType;
+import com.intel.jndn.management.types.FaceStatus;
+import com.intel.jndn.management.types.RibEntry;
+import com.intel.jndn.management.types.Route;
+
+import net.named_data.jndn.Name;
+import net.named_data.jndn_xx.util.FaceUri;
+import net.named_data.nfd.utils.FaceParameters;
+import net.named_data.nfd.utils.G;
+import net.named_data.nfd.utils.NfdcHelper;
+import net.named_data.nfd.utils.SharedPreferencesManager;
+import net.named_data.nfd.utils.TaskScheduler;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reconfigures NFD after a connectivity change without restarting anything.
+ * <p>
+ * Events are debounced, so a flapping network or a WiFi/cellular handoff results in
+ * a single reconfiguration once the network is stable.  Only unicast faces whose
+ * local address no longer exists on any interface are affected: each of them is
+ * recreated with the same remote URI (the OS picks the new local address), persistency
+ * and link-layer parameters, and the routes it had are registered again.  All other faces
+ * and routes are left untouched, as are WiFi Direct faces, which NDNController manages.
+ * A face that was destroyed but could not be created again, e.g. a TCP face to a hub that
+ * the new network cannot reach yet, is kept with its routes and retried on the next pass.
+ * <p>
+ * Hubs returned by NDN-FCH depend on where the device connects from, so every reconfiguration
+ * also drops the cached hub candidates and runs onReconfigured to re-evaluate the hubs.
+ */
+class NetworkChangeHandler {
+  /**
+   * @param handler        handler of the main thread, used to debounce events
+   * @param onReconfigured run on the main thread after each reconfiguration
+   */
+  NetworkChangeHandler(Context context, Handler handler,
+                       HubConnectivityManager hubConnectivityManager, HubSelector hubSelector,
+                       Runnable onReconfigured) {
+    m_context = context;
+    m_handler = handler;
+    m_hubConnectivityManager = hubConnectivityManager;
+    m_hubSelector = hubSelector;
+    m_onReconfigured = onReconfigured;
+  }
+
+  /**
+   * Schedules a reconfiguration DEBOUNCE_DELAY ms after the last connectivity event.
+   * Must be called on the main thread.
+   */
+  void
+  onNetworkChanged() {
+    m_handler.removeCallbacks(m_reconfigureRunnable);
+    m_handler.postDelayed(m_reconfigureRunnable, DEBOUNCE_DELAY);
+  }
+
+  /**
+   * Postpones any pending reconfiguration until the network is back.
+   * Must be called on the main thread.
+   */
+  void
+  onConnectionLost() {
+    m_handler.removeCallbacks(m_reconfigureRunnable);
+  }
+
+  void
+  stop() {
+    m_handler.removeCallbacks(m_reconfigureRunnable);
+  }
+
+  /**
+   * Recreates the faces bound to addresses that disappeared.  Must not be called on the main thread.
+   * The local addresses are only remembered after a pass without errors, so that a failed
+   * pass is retried on the next connectivity event even if the addresses did not change again.
+   *
+   * @return number of faces recreated
+   */
+  synchronized int
+  reconfigure() {
+    m_hubSelector.invalidateCache();
+    Set<String> localAddresses = getLocalAddresses();
+    if (localAddresses.equals(m_localAddresses)) {
+      G.Log(TAG, "Local addresses unchanged, nothing to reconfigure");
+      return 0;
+    }
+
+    int nRecreated = 0;
+    NfdcHelper nfdcHelper = new NfdcHelper();
+    try {
+      Map<Integer, Integer> replacedFaceIds = new HashMap<>();
+
+      // Faces destroyed by an earlier pass are created again first
+      for (Iterator<DestroyedFace> it = m_destroyedFaces.iterator(); it.hasNext(); ) {
+        DestroyedFace destroyedFace = it.next();
+        try {
+          recreate(nfdcHelper, destroyedFace, replacedFaceIds);
+          it.remove();
+          ++nRecreated;
+        } catch (Exception e) {
+          G.Log(TAG, "Cannot recreate face " + destroyedFace.faceStatus.getRemoteUri() + ": " + e.getMessage());
+        }
+      }
+
+      List<FaceStatus> staleFaces = new ArrayList<>();
+      for (FaceStatus faceStatus : nfdcHelper.faceList()) {
+        if (isBoundToMissingAddress(faceStatus, localAddresses) && !isWifiDirectFace(faceStatus)) {
+          staleFaces.add(faceStatus);
+        }
+      }
+      if (staleFaces.isEmpty()) {
+        m_hubConnectivityManager.replaceFaces(replacedFaceIds);
+        if (m_destroyedFaces.isEmpty()) {
+          m_localAddresses = localAddresses;
+        }
+        return nRecreated;
+      }
+      G.Log(TAG, staleFaces.size() + " face(s) lost their local address");
+
+      SparseArray<List<RibEntry>> staleRoutes = new SparseArray<>();
+      for (FaceStatus faceStatus : staleFaces) {
+        staleRoutes.put(faceStatus.getFaceId(), new ArrayList<RibEntry>());
+      }
+      for (RibEntry ribEntry : nfdcHelper.ribList()) {
+        for (Route route : ribEntry.getRoutes()) {
+          List<RibEntry> entries = staleRoutes.get(route.getFaceId());
+          if (entries != null) {
+            entries.add(ribEntry);
+          }
+        }
+      }
+
+      boolean isComplete = m_destroyedFaces.isEmpty();
+      for (FaceStatus faceStatus : staleFaces) {
+        DestroyedFace destroyedFace = new DestroyedFace(faceStatus, staleRoutes.get(faceStatus.getFaceId()));
+        try {
+          // NFD would return the existing face for the same remote URI, so destroy it first
+          nfdcHelper.faceDestroy(faceStatus.getFaceId());
+        } catch (Exception e) {
+          G.Log(TAG, "Cannot destroy face " + faceStatus.getRemoteUri() + ": " + e.getMessage());
+          isComplete = false;
+          continue;
+        }
+        try {
+          recreate(nfdcHelper, destroyedFace, replacedFaceIds);
+          ++nRecreated;
+        } catch (Exception e) {
+          G.Log(TAG, "Cannot recreate face " + faceStatus.getRemoteUri() + ": " + e.getMessage());
+          m_destroyedFaces.add(destroyedFace);
+          isComplete = false;
+        }
+      }
+
+      m_hubConnectivityManager.replaceFaces(replacedFaceIds);
+      if (isComplete) {
+        m_localAddresses = localAddresses;
+      }
+    } catch (Exception e) {
+      G.Log(TAG, "Error while reconfiguring faces: " + e.getMessage());
+    } finally {
+      nfdcHelper.shutdown();
+    }
+    return nRecreated;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Face destroyed by reconfigure(), with the routes it had
+   */
+  private static class DestroyedFace {
+    DestroyedFace(FaceStatus faceStatus, List<RibEntry> ribEntries) {
+      this.faceStatus = faceStatus;
+      this.ribEntries = ribEntries;
+    }
+
+    final FaceStatus faceStatus;
+    final List<RibEntry> ribEntries;
+  }
+
+  /**
+   * Creates the destroyed face again with the same remote URI and registers its routes to it
+   *
+   * @param replacedFaceIds the new faceId is added to it, by old faceId
+   */
+  private void
+  recreate(NfdcHelper nfdcHelper, DestroyedFace destroyedFace, Map<Integer, Integer> replacedFaceIds)
+    throws Exception {
+    FaceStatus faceStatus = destroyedFace.faceStatus;
+    int oldFaceId = faceStatus.getFaceId();
+    int newFaceId = nfdcHelper.faceCreate(faceStatus.getRemoteUri(), getFaceParameters(faceStatus));
+    replacedFaceIds.put(oldFaceId, newFaceId);
+    G.Log(TAG, "Recreate face " + faceStatus.getRemoteUri() + ": " + oldFaceId + " -> " + newFaceId);
+
+    if (SharedPreferencesManager.isPermanentFace(m_context, oldFaceId)) {
+      SharedPreferencesManager.deletePermanentFaceId(m_context, oldFaceId);
+      SharedPreferencesManager.addPermanentFaceId(m_context, newFaceId);
+    }
+
+    for (RibEntry ribEntry : destroyedFace.ribEntries) {
+      reregister(nfdcHelper, ribEntry, oldFaceId, newFaceId);
+    }
+  }
+
+  /**
+   * @return parameters to recreate the face of faceStatus with.  The face dataset does not
+   *         carry the face flags, so hub faces get the hub parameters again and other faces,
+   *         created without parameters, get the default flags.
+   */
+  private FaceParameters
+  getFaceParameters(FaceStatus faceStatus) {
+    FaceParameters parameters = m_hubConnectivityManager.isHubFace(faceStatus.getFaceId()) ?
+                                HubSelector.getHubFaceParameters(faceStatus.getRemoteUri()) :
+                                new FaceParameters();
+    // an on-demand face cannot be created, it becomes persistent
+    if (faceStatus.getFacePersistency() == FacePersistency.PERMANENT) {
+      parameters.setFacePersistency(FacePersistency.PERMANENT);
+    } else {
+      parameters.setFacePersistency(FacePersistency.PERSISTENT);
+    }
+    return parameters;
+  }
+
+  private static void
+  reregister(NfdcHelper nfdcHelper, RibEntry ribEntry, int oldFaceId, int newFaceId) {
+    Name prefix = ribEntry.getName();
+    for (Route route : ribEntry.getRoutes()) {
+      if (route.getFaceId() != oldFaceId) {
+        continue;
+      }
+      try {
+        // the route keeps what was left of its lifetime
+        nfdcHelper.ribRegisterPrefix(prefix, newFaceId, route.getCost(),
+                                     (route.getFlags() & ROUTE_FLAG_CHILD_INHERIT) != 0,
+                                     (route.getFlags() & ROUTE_FLAG_CAPTURE) != 0,
+                                     route.hasExpirationPeriod() ? (long) route.getExpirationPeriod() : -1);
+      } catch (Exception e) {
+        G.Log(TAG, "Cannot register " + prefix + " to face " + newFaceId + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return whether faceStatus is a unicast UDP/TCP face whose local address is not in localAddresses
+   */
+  private static boolean
+  isBoundToMissingAddress(FaceStatus faceStatus, Set<String> localAddresses) {
+    if (faceStatus.getFaceScope() != FaceScope.NON_LOCAL ||
+        faceStatus.getLinkType() == LinkType.MULTI_ACCESS) {
+      return false;
+    }
+    try {
+      FaceUri localUri = new FaceUri(faceStatus.getLocalUri());
+      if (!UNICAST_SCHEMES.contains(localUri.getScheme())) {
+        return false;
+      }
+      return !localAddresses.contains(stripScope(localUri.getHost()));
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return whether faceStatus is a face to a WiFi Direct peer (192.168.49.x)
+   */
+  private static boolean
+  isWifiDirectFace(FaceStatus faceStatus) {
+    try {
+      return new FaceUri(faceStatus.getRemoteUri()).getHost().startsWith(WIFI_DIRECT_ADDRESS_PREFIX);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return addresses of all interfaces that are up, without IPv6 scope suffix
+   */
+  private static Set<String>
+  getLocalAddresses() {
+    Set<String> addresses = new HashSet<>();
+    try {
+      for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+        if (!networkInterface.isUp()) {
+          continue;
+        }
+        for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+          addresses.add(stripScope(address.getHostAddress()));
+        }
+      }
+    } catch (SocketException e) {
+      G.Log(TAG, "Cannot list network interfaces: " + e.getMessage());
+    }
+    return addresses;
+  }
+
+  private static String
+  stripScope(String address) {
+    int scopeStart = address.indexOf('%');
+    return scopeStart < 0 ? address : address.substring(0, scopeStart);
+  }
+
+  /**
+   * Reconfigure the faces in the background
+   */
+  private static class ReconfigureAsyncTask extends AsyncTask<Void, Void, Integer> {
+    NetworkChangeHandler networkChangeHandler;
+
+    ReconfigureAsyncTask(NetworkChangeHandler networkChangeHandler) {
+      this.networkChangeHandler = networkChangeHandler;
+    }
+
+    @Override
+    protected Integer
+    doInBackground(Void... params) {
+      return networkChangeHandler.reconfigure();
+    }
+
+    @Override
+    protected void
+    onPostExecute(Integer nRecreated) {
+      G.Log(TAG, "Network change handled, " + nRecreated + " face(s) recreated");
+      networkChangeHandler.m_onReconfigured.run();
+    }
+
+    @Override
+    protected void
+    onCancelled(Integer nRecreated) {
+      // faces are reconfigured on the next event, but the hubs may not wait for it
+      networkChangeHandler.m_onReconfigured.run();
+    }
+  }
+
+  private final Runnable m_reconfigureRunnable = new Runnable() {
+    @Override
+    public void run() {
+      TaskScheduler.execute(TaskScheduler.MANAGEMENT, new ReconfigureAsyncTask(NetworkChangeHandler.this));
+    }
+  };
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  private static final String TAG = NetworkChangeHandler.class.getName();
+
+  /** Time without connectivity events before faces are reconfigured, in ms */
+  private static final long DEBOUNCE_DELAY = 3000;
+
+  private static final Set<String> UNICAST_SCHEMES =
+    new HashSet<>(Arrays.asList("udp4", "udp6", "tcp4", "tcp6"));
+  private static final String WIFI_DIRECT_ADDRESS_PREFIX = "192.168.49.";
+  private static final int ROUTE_FLAG_CHILD_INHERIT = 1;
+  private static final int ROUTE_FLAG_CAPTURE = 2;
+
+  private final Context m_context;
+  private final Handler m_handler;
+  private final HubConnectivityManager m_hubConnectivityManager;
+  private final HubSelector m_hubSelector;
+  private final Runnable m_onReconfigured;
+
+  /** Faces destroyed by an earlier pass that could not be created again yet */
+  private final List<DestroyedFace> m_destroyedFaces = new ArrayList<>();
+
+  /** Local addresses at the last reconfiguration */
+  private Set<String> m_localAddresses = null;
+}
@@ -33,27 +33,15 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.StringRequest;
-import com.android.volley.toolbox.Volley;
-import com.intel.jndn.management.ManagementException;
-import com.intel.jndn.management.types.FaceStatus;
-import com.intel.jndn.management.types.RibEntry;
-
-import net.named_data.jndn.Name;
 import net.named_data.nfd.MainActivity;
-import net.named_data.nfd.MainFragment;
 import net.named_data.nfd.R;
 import net.named_data.nfd.utils.G;
-import net.named_data.nfd.utils.NfdcHelper;
 import net.named_data.nfd.utils.SharedPreferencesManager;
+import net.named_data.nfd.utils.TaskScheduler;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -134,6 +122,108 @@ public class NfdService extends Service {
    */
   public static final int NFD_SERVICE_STOPPED = 4;
 
+  /**
+   * Message to (re-)select the nearest hub
+   */
+  public static final int CONNECT_NEAREST_HUB = 5;
+
+  /**
+   * Message to indicate that no hub could be reached
+   */
+  public static final int NEAREST_HUB_UNREACHABLE = 6;
+
+  /**
+   * Message to get the forwarder status; replied with FORWARDER_STATUS.
+   * <p>
+   * Snapshot replies carry KEY_DATASET (the TLV encodings of the dataset entries, as in
+   * NFD's status datasets, concatenated) and KEY_DATASET_AGE, or an empty Bundle if
+   * NFD cannot be reached.  Snapshots are cached and shared by all clients, so they
+   * can be up to one second old.
+   */
+  public static final int GET_FORWARDER_STATUS = 7;
+
+  /**
+   * Message to get the face list; replied with FACE_LIST
+   */
+  public static final int GET_FACE_LIST = 8;
+
+  /**
+   * Message to get the route list (RIB); replied with ROUTE_LIST
+   */
+  public static final int GET_ROUTE_LIST = 9;
+
+  /**
+   * Reply carrying the forwarder status snapshot
+   */
+  public static final int FORWARDER_STATUS = 10;
+
+  /**
+   * Reply carrying the face list snapshot
+   */
+  public static final int FACE_LIST = 11;
+
+  /**
+   * Reply carrying the route list snapshot
+   */
+  public static final int ROUTE_LIST = 12;
+
+  /**
+   * Message to receive snapshots whenever they change.  arg1 is a mask of
+   * SUBSCRIBE_FORWARDER_STATUS, SUBSCRIBE_FACE_LIST and SUBSCRIBE_ROUTE_LIST.
+   */
+  public static final int SUBSCRIBE = 13;
+
+  /**
+   * Message to stop receiving snapshots
+   */
+  public static final int UNSUBSCRIBE = 14;
+
+  /**
+   * Message to register KEY_PREFIXES to KEY_FACE_ID, with optional KEY_COST,
+   * KEY_CHILD_INHERIT and KEY_CAPTURE; replied with PREFIXES_REGISTERED.
+   * arg1 is copied to the reply.
+   */
+  public static final int REGISTER_PREFIXES = 15;
+
+  /**
+   * Message to unregister KEY_PREFIXES from KEY_FACE_ID; replied with PREFIXES_UNREGISTERED.
+   * arg1 is copied to the reply.
+   */
+  public static final int UNREGISTER_PREFIXES = 16;
+
+  /**
+   * Reply to REGISTER_PREFIXES carrying KEY_RESULTS
+   */
+  public static final int PREFIXES_REGISTERED = 17;
+
+  /**
+   * Reply to UNREGISTER_PREFIXES carrying KEY_RESULTS
+   */
+  public static final int PREFIXES_UNREGISTERED = 18;
+
+  public static final int SUBSCRIBE_FORWARDER_STATUS = 1;
+  public static final int SUBSCRIBE_FACE_LIST = 1 << 1;
+  public static final int SUBSCRIBE_ROUTE_LIST = 1 << 2;
+
+  public static final String KEY_DATASET = "dataset";
+  public static final String KEY_DATASET_AGE = "datasetAge";
+  public static final String KEY_PREFIXES = "prefixes";
+  public static final String KEY_FACE_ID = "faceId";
+  public static final String KEY_COST = "cost";
+  public static final String KEY_CHILD_INHERIT = "childInherit";
+  public static final String KEY_CAPTURE = "capture";
+  public static final String KEY_RESULTS = "results";
+
+  /**
+   * Intent action to report that the network connectivity changed
+   */
+  public static final String ACTION_CONNECTIVITY_CHANGED = "net.named_data.nfd.action.CONNECTIVITY_CHANGED";
+
+  /**
+   * Intent action to report that no network is available anymore
+   */
+  public static final String ACTION_CONNECTION_LOST = "net.named_data.nfd.action.CONNECTION_LOST";
+
   /**
    * debug tag
    */
@@ -144,6 +234,13 @@ public class NfdService extends Service {
   public void onCreate() {
     G.Log(TAG, "NFDService::onCreate()");
     m_nfdServiceMessenger = new Messenger(new NfdServiceMessageHandler());
+    m_hubSelector = new HubSelector(getApplicationContext());
+    m_hubConnectivityManager = new HubConnectivityManager(m_hubSelector);
+    m_managementProxy = new ManagementProxy(m_handler);
+    // The hubs to use depend on the network, so they are re-evaluated after every change
+    m_networkChangeHandler = new NetworkChangeHandler(getApplicationContext(), m_handler,
+                                                      m_hubConnectivityManager, m_hubSelector,
+                                                      m_hubReevaluationRunnable);
   }
 
   @Override
@@ -151,6 +248,22 @@ public class NfdService extends Service {
   onStartCommand(Intent intent, int flags, int startId) {
     G.Log(TAG, "NFDService::onStartCommand()");
 
+    String action = intent != null ? intent.getAction() : null;
+    if (ACTION_CONNECTION_LOST.equals(action)) {
+      if (m_isNfdStarted) {
+        m_networkChangeHandler.onConnectionLost();
+      } else {
+        // Nothing to reconfigure; do not start NFD just because the network went away
+        stopSelf(startId);
+      }
+      return START_STICKY;
+    }
+    if (ACTION_CONNECTIVITY_CHANGED.equals(action) && m_isNfdStarted) {
+      // Only the faces affected by the change are reconfigured
+      m_networkChangeHandler.onNetworkChanged();
+      return START_STICKY;
+    }
+
     serviceStartNfd();
     createPermanentFaceUriAndRoute();
     connectToNeareastHub();
@@ -180,6 +293,10 @@ public class NfdService extends Service {
     G.Log("NFDService::onDestroy()");
 
     serviceStopNfd();
+    m_handler.removeCallbacks(m_hubReevaluationRunnable);
+    m_handler.removeCallbacks(m_hubHealthCheckRunnable);
+    m_networkChangeHandler.stop();
+    m_managementProxy.shutdown();
     m_nfdServiceMessenger = null;
   }
 
@@ -211,6 +328,7 @@ public class NfdService extends Service {
       params.put("homePath", getFilesDir().getAbsolutePath());
       Set<Map.Entry<String, String>> e = params.entrySet();
 
+      m_nfdStartTime = SystemClock.elapsedRealtime();
       startNfd(params);
 
       // TODO: Reload NFD and NRD in memory structures (if any)
@@ -229,8 +347,7 @@ public class NfdService extends Service {
     final long checkInterval = 1000;
     if (isNfdRunning()) {
       G.Log(TAG, "createPermanentFaceUriAndRoute: NFD is running, start executing task.");
-      new FaceCreateAsyncTask(getApplicationContext()).execute();
-      new RouteCreateAsyncTask(getApplicationContext()).execute();
+      TaskScheduler.execute(TaskScheduler.MANAGEMENT, new RestoreAsyncTask(getApplicationContext(), m_nfdStartTime));
     } else {
       G.Log(TAG, "createPermanentFaceUriAndRoute: NFD is not started yet, delay " + String.valueOf(checkInterval) + " ms.");
       m_handler.postDelayed(new Runnable() {
@@ -243,16 +360,31 @@ public class NfdService extends Service {
   }
 
   private void connectToNeareastHub() {
+    connectToNeareastHub(null);
+  }
+
+  /**
+   * Evaluates hub candidates now and then every HUB_REEVALUATION_INTERVAL ms.
+   *
+   * @param replyTo client to notify if no hub can be reached, or null
+   */
+  private void connectToNeareastHub(final Messenger replyTo) {
     final long checkInterval = 1000;
     if (isNfdRunning()) {
       G.Log(TAG, "connectToNeareastHub: NFD is running, start executing task.");
-      new ConnectNearestHubAsyncTask(getApplicationContext()).execute();
+      TaskScheduler.execute(TaskScheduler.MAINTENANCE,
+                            new HubSelectionAsyncTask(getApplicationContext(), m_hubConnectivityManager, replyTo));
+
+      m_handler.removeCallbacks(m_hubReevaluationRunnable);
+      m_handler.postDelayed(m_hubReevaluationRunnable, HUB_REEVALUATION_INTERVAL);
+      m_handler.removeCallbacks(m_hubHealthCheckRunnable);
+      m_handler.postDelayed(m_hubHealthCheckRunnable, HUB_HEALTH_CHECK_INTERVAL);
     } else {
       G.Log(TAG, "connectToNeareastHub: NFD is not started yet, delay " + String.valueOf(checkInterval) + " ms.");
       m_handler.postDelayed(new Runnable() {
         @Override
         public void run() {
-          connectToNeareastHub();
+          connectToNeareastHub(replyTo);
         }
       }, checkInterval);
     }
@@ -270,6 +402,9 @@ public class NfdService extends Service {
       // TODO: Save NFD and NRD in memory data structures.
       stopNfd();
       SharedPreferencesManager.clearFaceIds(getApplicationContext());
+      m_handler.removeCallbacks(m_hubReevaluationRunnable);
+      m_handler.removeCallbacks(m_hubHealthCheckRunnable);
+      m_hubConnectivityManager.reset();
       stopSelf();
       G.Log(TAG, "serviceStopNfd()");
       stopForeground(true);
@@ -278,170 +413,69 @@ public class NfdService extends Service {
 
 
   /**
-   * Create all permanent faces in the background
+   * Restore all permanent faces and routes in the background
    */
-  private static class FaceCreateAsyncTask extends AsyncTask<Void, Void, String> {
+  private static class RestoreAsyncTask extends AsyncTask<Void, Void, RestorePlanner.Report> {
     Context context;
+    long nfdStartTime;
 
-    FaceCreateAsyncTask(Context ctx) {
+    RestoreAsyncTask(Context ctx, long nfdStartTime) {
       this.context = ctx;
+      this.nfdStartTime = nfdStartTime;
     }
 
     @Override
-    protected String
+    protected RestorePlanner.Report
     doInBackground(Void... params) {
-      NfdcHelper nfdcHelper = new NfdcHelper();
-      try {
-        G.Log(TAG, "Try to create permanent face");
-        Set<String> permanentFace = SharedPreferencesManager.getPermanentFaceUris(this.context);
-        G.Log(TAG, "Permanent face list has " + permanentFace.size() + " item(s)");
-        for (String one : permanentFace) {
-          int faceId = nfdcHelper.faceCreate(one);
-          SharedPreferencesManager.addPermanentFaceId(this.context, faceId);
-          G.Log(TAG, "Create permanent face " + one);
-        }
-      } catch (Exception e) {
-        G.Log(TAG, "Error in FaceCreateAsyncTask: " + e.getMessage());
-      } finally {
-        nfdcHelper.shutdown();
-      }
-      return null;
+      G.Log(TAG, "Try to restore permanent faces and routes");
+      return new RestorePlanner(this.context, this.nfdStartTime).restore();
+    }
+
+    @Override
+    protected void
+    onPostExecute(RestorePlanner.Report report) {
+      G.Log(TAG, "Restored permanent faces and routes: " + report);
     }
   }
 
   /**
-   * Create all permanent routes in the background
+   * Select the nearest hubs and route /ndn and /localhop/nfd towards them in the background
    */
-  private static class RouteCreateAsyncTask extends AsyncTask<Void, Void, String> {
+  private static class HubSelectionAsyncTask extends AsyncTask<Void, Void, Boolean> {
     Context context;
+    HubConnectivityManager hubConnectivityManager;
+    Messenger replyTo;
 
-    RouteCreateAsyncTask(Context ctx) {
+    HubSelectionAsyncTask(Context ctx, HubConnectivityManager hubConnectivityManager, Messenger replyTo) {
       this.context = ctx;
+      this.hubConnectivityManager = hubConnectivityManager;
+      this.replyTo = replyTo;
     }
 
     @Override
-    protected String
+    protected Boolean
     doInBackground(Void... params) {
-      NfdcHelper nfdcHelper = new NfdcHelper();
-      try {
-        G.Log(TAG, "Try to create permanent route");
-        Set<String[]> prefixAndFacePairs = SharedPreferencesManager.getPermanentRoutes(this.context);
-        G.Log(TAG, "Permanent face list has " + prefixAndFacePairs.size() + " item(s)");
-        for (String[] prefixAndFaceUri : prefixAndFacePairs) {
-          List<FaceStatus> faceStatuses = nfdcHelper.faceList();
-          int faceId = -1;
-          for (int i = 0; i < faceStatuses.size(); i++) {
-            if (prefixAndFaceUri[1].equals(faceStatuses.get(i).getRemoteUri())) {
-              faceId = faceStatuses.get(i).getFaceId();
-              break;
-            }
-          }
-          if (faceId == -1) {
-            faceId = nfdcHelper.faceCreate(prefixAndFaceUri[1]);
-          }
-          nfdcHelper.ribRegisterPrefix(new Name(prefixAndFaceUri[0]), faceId, 10, true, false);
-          G.Log(TAG, "Create permanent route" + prefixAndFaceUri[0] + " - " + prefixAndFaceUri[1]);
-        }
-      } catch (Exception e) {
-        G.Log(TAG, "Error in RouteCreateAsyncTask: " + e.getMessage());
-      } finally {
-        nfdcHelper.shutdown();
+      if (!SharedPreferencesManager.getConnectNearestHubAutomatically(context)) {
+        return true;
       }
-      return null;
-    }
-  }
-
-  private static class RouteCreateToConnectNearestHubAsyncTask extends AsyncTask<Void, Void, String> {
-    RouteCreateToConnectNearestHubAsyncTask(Name prefix, String faceUri) {
-      m_prefix = prefix;
-      m_faceUri = faceUri;
+      G.Log(TAG, "Try to connect to the nearest hub");
+      return hubConnectivityManager.evaluate();
     }
 
     @Override
-    protected String
-    doInBackground(Void... params) {
-      NfdcHelper nfdcHelper = new NfdcHelper();
-      try {
-        G.Log(TAG, "Try to create route to connect the nearest hub");
-        int faceId = nfdcHelper.faceCreate(m_faceUri);
-        nfdcHelper.ribRegisterPrefix(m_prefix, faceId, 10, true, false);
-        G.Log(TAG, "Create permanent route" + m_prefix + " - " + m_faceUri);
-      } catch (Exception e) {
-        G.Log(TAG, "Error in RouteCreateToConnectNearestHubAsyncTask: " + e.getMessage());
-      } finally {
-        nfdcHelper.shutdown();
+    protected void
+    onPostExecute(Boolean isConnected) {
+      if (isConnected) {
+        return;
       }
-      return null;
-    }
-
-    private Name m_prefix;
-    private String m_faceUri;
-  }
-
-  private static class ConnectNearestHubAsyncTask extends AsyncTask<Void, Void, String> {
-    Context context;
-
-    ConnectNearestHubAsyncTask(Context ctx) {
-      this.context = ctx;
-    }
-
-    @Override
-    protected String
-    doInBackground(Void... params) {
-      G.Log(TAG, "Try to connect to the nearest hub");
-      if (SharedPreferencesManager.getConnectNearestHubAutomatically(context)) {
-        NfdcHelper nfdcHelper = new NfdcHelper();
+      G.Log(TAG, "cannot connect to the nearest hub");
+      if (replyTo != null) {
         try {
-          //check whether two prefixes exist or not
-          boolean prefix_ndn_exist = false;
-          boolean prefix_localhop_nfd_exist = false;
-          List<RibEntry> ribEntries = nfdcHelper.ribList();
-          for (RibEntry one : ribEntries) {
-            if (one.getName().toUri().equals(MainFragment.PREFIX_NDN)) {
-              prefix_ndn_exist = true;
-            }
-
-            if (one.getName().toUri().equals(MainFragment.PREFIX_LOCALHOP_NFD)) {
-              prefix_localhop_nfd_exist = true;
-            }
-          }
-
-          //register prefixes if they don't exist
-          if (!prefix_ndn_exist || !prefix_localhop_nfd_exist) {
-            final boolean prefix_ndn_exist_inner = prefix_ndn_exist;
-            final boolean prefix_localhop_nfd_exist_inner = prefix_localhop_nfd_exist;
-            RequestQueue queue = Volley.newRequestQueue(context);
-            StringRequest stringRequest = new StringRequest(Request.Method.GET,
-              context.getResources().getString(R.string.ndn_fch_website),
-              new Response.Listener<String>() {
-                @Override
-                public void onResponse(String response) {
-                  if (!prefix_ndn_exist_inner) {
-                    new RouteCreateToConnectNearestHubAsyncTask(
-                      new Name(MainFragment.PREFIX_NDN), MainFragment.URI_UDP_PREFIX + response).execute();
-                  }
-                  if (!prefix_localhop_nfd_exist_inner) {
-                    new RouteCreateToConnectNearestHubAsyncTask(
-                      new Name(MainFragment.PREFIX_LOCALHOP_NFD), MainFragment.URI_UDP_PREFIX + response).execute();
-                  }
-                }
-              },
-              new Response.ErrorListener() {
-                @Override
-                public void onErrorResponse(VolleyError error) {
-                  G.Log("cannot connect to the nearest hub");
-                }
-              });
-            // Add the request to the RequestQueue.
-            queue.add(stringRequest);
-          }
-        } catch (ManagementException e) {
-          G.Log(TAG, "Error in ConnectNearestHubAsyncTask: " + e.getMessage());
-        } finally {
-          nfdcHelper.shutdown();
+          replyTo.send(Message.obtain(null, NfdService.NEAREST_HUB_UNREACHABLE));
+        } catch (RemoteException e) {
+          // Nothing to do here; It means that client end has been terminated.
         }
       }
-      return null;
     }
   }
 
@@ -463,8 +497,14 @@ public class NfdService extends Service {
           replyToClient(message, NfdService.NFD_SERVICE_STOPPED);
           break;
 
+        case NfdService.CONNECT_NEAREST_HUB:
+          connectToNeareastHub(message.replyTo);
+          break;
+
         default:
-          super.handleMessage(message);
+          if (!m_managementProxy.handleMessage(message)) {
+            super.handleMessage(message);
+          }
           break;
       }
     }
@@ -519,6 +559,40 @@ public class NfdService extends Service {
     return builder.build();
   }
 
+  /**
+   * Probe the primary and standby hubs, failing over or asking for a new hub selection
+   * when they degrade
+   */
+  private static class HubHealthCheckAsyncTask extends AsyncTask<Void, Void, Boolean> {
+    HubConnectivityManager hubConnectivityManager;
+    Messenger service;
+
+    HubHealthCheckAsyncTask(HubConnectivityManager hubConnectivityManager, Messenger service) {
+      this.hubConnectivityManager = hubConnectivityManager;
+      this.service = service;
+    }
+
+    @Override
+    protected Boolean
+    doInBackground(Void... params) {
+      return hubConnectivityManager.checkHealth();
+    }
+
+    @Override
+    protected void
+    onPostExecute(Boolean isHealthy) {
+      if (isHealthy || service == null) {
+        return;
+      }
+      G.Log(TAG, "No healthy hub, select hubs again");
+      try {
+        service.send(Message.obtain(null, NfdService.CONNECT_NEAREST_HUB));
+      } catch (RemoteException e) {
+        // Nothing to do here; the service is going away.
+      }
+    }
+  }
+
   /**
    * Messenger to handle messages that are passed to the NfdService
    */
@@ -529,11 +603,75 @@ public class NfdService extends Service {
    */
   private boolean m_isNfdStarted = false;
 
+  /**
+   * SystemClock.elapsedRealtime() when NFD was last started
+   */
+  private long m_nfdStartTime = 0;
+
   /**
    * Handler to deal with timeout behaviors
    */
   private Handler m_handler = new Handler();
 
+  /**
+   * Chooses the hub for /ndn and /localhop/nfd
+   */
+  private HubSelector m_hubSelector = null;
+
+  /**
+   * Keeps /ndn and /localhop/nfd connected to a primary and a standby hub
+   */
+  private HubConnectivityManager m_hubConnectivityManager = null;
+
+  /**
+   * Serves status snapshots and route commands to client apps over one management face
+   */
+  private ManagementProxy m_managementProxy = null;
+
+  /**
+   * Reconfigures faces bound to interfaces that changed
+   */
+  private NetworkChangeHandler m_networkChangeHandler = null;
+
+  /**
+   * Last health check of the hubs, to avoid queueing a new one while it is still running
+   */
+  private HubHealthCheckAsyncTask m_hubHealthCheckTask = null;
+
+  /**
+   * Periodic health check of the primary and standby hubs
+   */
+  private final Runnable m_hubHealthCheckRunnable = new Runnable() {
+    @Override
+    public void run() {
+      if (m_hubHealthCheckTask == null || m_hubHealthCheckTask.getStatus() == AsyncTask.Status.FINISHED) {
+        m_hubHealthCheckTask = new HubHealthCheckAsyncTask(m_hubConnectivityManager, m_nfdServiceMessenger);
+        TaskScheduler.execute(TaskScheduler.MAINTENANCE, m_hubHealthCheckTask);
+      }
+      m_handler.postDelayed(this, HUB_HEALTH_CHECK_INTERVAL);
+    }
+  };
+
+  /**
+   * Periodic re-evaluation of the nearest hub
+   */
+  private final Runnable m_hubReevaluationRunnable = new Runnable() {
+    @Override
+    public void run() {
+      connectToNeareastHub();
+    }
+  };
+
+  /**
+   * Interval between two evaluations of the nearest hub, in ms
+   */
+  private static final long HUB_REEVALUATION_INTERVAL = 10 * 60 * 1000;
+
+  /**
+   * Interval between two health checks of the primary and standby hubs, in ms
+   */
+  private static final long HUB_HEALTH_CHECK_INTERVAL = 2000;
+
   /**
    * Unique notification ID
    */
@@ -0,0 +1,243 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/*
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p/>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p/>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p/>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.service;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.intel.jndn.management.types.FaceStatus;
+
+import net.named_data.jndn.Name;
+import net.named_data.jndn_xx.util.FaceUri;
+import net.named_data.nfd.utils.G;
+import net.named_data.nfd.utils.NfdcHelper;
+import net.named_data.nfd.utils.SharedPreferencesManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Restores permanent faces and routes after NFD has been (re-)started.
+ * <p>
+ * The plan is built from everything recorded in SharedPreferencesManager:
+ * face URIs of permanent faces and of permanent routes are canonized and
+ * deduplicated, the face table is fetched once to find the faces that
+ * already exist, the missing faces are created in parallel (one management
+ * face per worker), and finally all routes are registered in one pipelined
+ * batch.
+ */
+class RestorePlanner {
+  /**
+   * Outcome of a restore run, logged by NfdService as the startup metric.
+   */
+  static class Report {
+    int nFaces = 0;
+    int nFacesCreated = 0;
+    int nFacesFailed = 0;
+    int nRoutes = 0;
+    int nRoutesRegistered = 0;
+
+    /** Time spent in restore(), in ms */
+    long restoreDuration = 0;
+
+    /** Time from NFD start to the end of restore(), in ms */
+    long bootToConnectedDuration = 0;
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+                           "faces %d (created %d, failed %d), routes %d/%d, " +
+                           "restore %d ms, boot-to-connected %d ms",
+                           nFaces, nFacesCreated, nFacesFailed, nRoutesRegistered, nRoutes,
+                           restoreDuration, bootToConnectedDuration);
+    }
+  }
+
+  /**
+   * @param context     context used to read and update permanent face records
+   * @param nfdStartTime SystemClock.elapsedRealtime() when NFD was started
+   */
+  RestorePlanner(Context context, long nfdStartTime) {
+    m_context = context;
+    m_nfdStartTime = nfdStartTime;
+  }
+
+  /**
+   * Executes the restore plan. Must not be called on the main thread.
+   */
+  Report
+  restore() {
+    final long startTime = SystemClock.elapsedRealtime();
+    Report report = new Report();
+
+    // Canonical URI of every face that needs to exist, in the order they were recorded
+    Set<String> permanentFaceUris = canonize(SharedPreferencesManager.getPermanentFaceUris(m_context));
+    List<Name> routePrefixes = new ArrayList<>();
+    List<String> routeFaceUris = new ArrayList<>();
+    Set<String> allFaceUris = new LinkedHashSet<>(permanentFaceUris);
+    for (String[] prefixAndFaceUri : SharedPreferencesManager.getPermanentRoutes(m_context)) {
+      String faceUri = canonize(prefixAndFaceUri[1]);
+      if (faceUri == null) {
+        continue;
+      }
+      routePrefixes.add(new Name(prefixAndFaceUri[0]));
+      routeFaceUris.add(faceUri);
+      allFaceUris.add(faceUri);
+    }
+    report.nFaces = allFaceUris.size();
+    report.nRoutes = routePrefixes.size();
+    G.Log(TAG, "Restore plan: " + report.nFaces + " face(s), " + report.nRoutes + " route(s)");
+
+    NfdcHelper nfdcHelper = new NfdcHelper();
+    try {
+      // One face table fetch for the whole plan
+      Map<String, Integer> faceIds = new HashMap<>();
+      for (FaceStatus faceStatus : nfdcHelper.faceList()) {
+        faceIds.put(faceStatus.getRemoteUri(), faceStatus.getFaceId());
+      }
+
+      List<String> missingFaceUris = new ArrayList<>();
+      for (String faceUri : allFaceUris) {
+        if (!faceIds.containsKey(faceUri)) {
+          missingFaceUris.add(faceUri);
+        }
+      }
+      createFaces(missingFaceUris, faceIds, report);
+
+      for (String faceUri : permanentFaceUris) {
+        Integer faceId = faceIds.get(faceUri);
+        if (faceId != null) {
+          SharedPreferencesManager.addPermanentFaceId(m_context, faceId);
+        }
+      }
+
+      // Routes whose face could not be created are dropped from the batch
+      List<Name> prefixes = new ArrayList<>(routePrefixes.size());
+      List<Integer> routeFaceIds = new ArrayList<>(routePrefixes.size());
+      for (int i = 0; i < routePrefixes.size(); i++) {
+        Integer faceId = faceIds.get(routeFaceUris.get(i));
+        if (faceId != null) {
+          prefixes.add(routePrefixes.get(i));
+          routeFaceIds.add(faceId);
+        }
+      }
+      if (!prefixes.isEmpty()) {
+        report.nRoutesRegistered = nfdcHelper.ribRegisterPrefixes(prefixes, routeFaceIds, 10, true, false);
+      }
+    } catch (Exception e) {
+      G.Log(TAG, "Error while restoring permanent faces and routes: " + e.getMessage());
+    } finally {
+      nfdcHelper.shutdown();
+    }
+
+    long endTime = SystemClock.elapsedRealtime();
+    report.restoreDuration = endTime - startTime;
+    report.bootToConnectedDuration = endTime - m_nfdStartTime;
+    return report;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Creates the faces in parallel, recording the new faceIds in faceIds.
+   */
+  private void
+  createFaces(List<String> faceUris, Map<String, Integer> faceIds, Report report)
+    throws InterruptedException {
+    if (faceUris.isEmpty()) {
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(faceUris.size(), MAX_PARALLEL_FACE_CREATIONS));
+    try {
+      List<Future<Integer>> results = new ArrayList<>(faceUris.size());
+      for (final String faceUri : faceUris) {
+        results.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            // jndn Face is not thread-safe, so every worker uses its own
+            NfdcHelper nfdcHelper = new NfdcHelper();
+            try {
+              return nfdcHelper.faceCreate(faceUri);
+            } finally {
+              nfdcHelper.shutdown();
+            }
+          }
+        }));
+      }
+
+      for (int i = 0; i < faceUris.size(); i++) {
+        try {
+          faceIds.put(faceUris.get(i), results.get(i).get());
+          ++report.nFacesCreated;
+          G.Log(TAG, "Create permanent face " + faceUris.get(i));
+        } catch (ExecutionException e) {
+          ++report.nFacesFailed;
+          G.Log(TAG, "Cannot create face " + faceUris.get(i) + ": " + e.getCause().getMessage());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Set<String>
+  canonize(Set<String> faceUris) {
+    Set<String> canonicalUris = new LinkedHashSet<>();
+    for (String faceUri : faceUris) {
+      String canonicalUri = canonize(faceUri);
+      if (canonicalUri != null) {
+        canonicalUris.add(canonicalUri);
+      }
+    }
+    return canonicalUris;
+  }
+
+  /**
+   * @return canonical form of faceUri, or null if it cannot be canonized
+   */
+  private static String
+  canonize(String faceUri) {
+    try {
+      return NfdcHelper.formatFaceUri(faceUri);
+    } catch (FaceUri.CanonizeError e) {
+      G.Log(TAG, "Skip face " + faceUri + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  private static final String TAG = RestorePlanner.class.getName();
+  private static final int MAX_PARALLEL_FACE_CREATIONS = 4;
+
+  private final Context m_context;
+  private final long m_nfdStartTime;
+}
@@ -19,6 +19,7 @@
 
 package net.named_data.nfd.utils;
 
+import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -57,15 +58,38 @@ public class ConnectivityChangeReceiver extends BroadcastReceiver {
   onChange(Context context, NetworkInfo networkInfo) {
     if (networkInfo.isConnected()) {
       G.Log(TAG, "Network is connected");
-      // (re-)start service,
-      // (1)triggering (re-)creation of permanent faces and routes
-      // (2)triggering (re-)connection to nearest hub
-      context.startService(new Intent(context, NfdService.class));
+      // If NFD is running, only faces bound to the changed interface are reconfigured;
+      // otherwise the service is started, which
+      // (1)triggers (re-)creation of permanent faces and routes
+      // (2)triggers (re-)connection to nearest hub
+      context.startService(new Intent(context, NfdService.class)
+                             .setAction(NfdService.ACTION_CONNECTIVITY_CHANGED));
     }
   }
 
   private void
   onConnectionLost(Context context) {
-    // nothing to do: face/routes should disappear by themselves
+    // Faces are left alone; a pending reconfiguration waits until the network is back.
+    // Without a running service there is nothing to postpone, and starting it would only
+    // create it to stop it again.
+    if (isServiceRunning(context)) {
+      context.startService(new Intent(context, NfdService.class)
+                             .setAction(NfdService.ACTION_CONNECTION_LOST));
+    }
+  }
+
+  /**
+   * @return whether NfdService, which runs in its own process, is running
+   */
+  private static boolean
+  isServiceRunning(Context context) {
+    ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    // only the services of this app are returned
+    for (ActivityManager.RunningServiceInfo service : activityManager.getRunningServices(Integer.MAX_VALUE)) {
+      if (NfdService.class.getName().equals(service.service.getClassName())) {
+        return true;
+      }
+    }
+    return false;
   }
 }
@@ -0,0 +1,176 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.utils;
+
+import com.intel.jndn.management.enums.FacePersistency;
+
+import net.named_data.jndn.encoding.tlv.TlvEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Link-layer parameters of a face, for the faces/create and faces/update commands.
+ * <p>
+ * Parameters that are not set are left out of the commands, so NFD applies its
+ * defaults on creation and keeps the current values on update. jndn's ControlParameters
+ * has none of these fields, so the commands are encoded here.
+ */
+public class FaceParameters
+{
+  public FaceParameters
+  setFacePersistency(FacePersistency persistency)
+  {
+    m_persistency = persistency;
+    return this;
+  }
+
+  /**
+   * Enables or disables NDNLPv2 local fields (incoming face id, next hop face id...)
+   */
+  public FaceParameters
+  setLocalFields(boolean isEnabled)
+  {
+    return setFlag(FLAG_LOCAL_FIELDS, isEnabled);
+  }
+
+  /**
+   * Enables or disables NDNLPv2 link-layer reliability, i.e. retransmission of lost
+   * packets on the link
+   */
+  public FaceParameters
+  setLpReliability(boolean isEnabled)
+  {
+    return setFlag(FLAG_LP_RELIABILITY, isEnabled);
+  }
+
+  /**
+   * Enables or disables congestion marking of packets sent on the face
+   */
+  public FaceParameters
+  setCongestionMarking(boolean isEnabled)
+  {
+    return setFlag(FLAG_CONGESTION_MARKING, isEnabled);
+  }
+
+  /**
+   * @param interval base interval between congestion marks, in ms
+   */
+  public FaceParameters
+  setBaseCongestionMarkingInterval(long interval)
+  {
+    m_baseCongestionMarkingInterval = interval;
+    return this;
+  }
+
+  /**
+   * @param mtu maximum packet size on the face, in bytes; only lowers the MTU of the
+   *            link, and is not applied by forwarders older than 0.7
+   */
+  public FaceParameters
+  setMtu(int mtu)
+  {
+    m_mtu = mtu;
+    return this;
+  }
+
+  /**
+   * Encodes the ControlParameters of a faces/create or faces/update command
+   *
+   * @param faceId face to update, or -1 for faces/create
+   * @param uri    canonical remote URI for faces/create, or null for faces/update
+   */
+  ByteBuffer
+  wireEncode(int faceId, String uri)
+  {
+    // TlvEncoder writes backwards, so fields go from last to first
+    TlvEncoder encoder = new TlvEncoder(64);
+    int saveLength = encoder.getLength();
+    if (m_mtu >= 0) {
+      encoder.writeNonNegativeIntegerTlv(TLV_MTU, m_mtu);
+    }
+    if (m_baseCongestionMarkingInterval >= 0) {
+      encoder.writeNonNegativeIntegerTlv(TLV_BASE_CONGESTION_MARKING_INTERVAL,
+                                         m_baseCongestionMarkingInterval * NANOSECONDS_PER_MS);
+    }
+    if (m_persistency != null) {
+      encoder.writeNonNegativeIntegerTlv(TLV_FACE_PERSISTENCY, m_persistency.toInteger());
+    }
+    if (m_mask != 0) {
+      encoder.writeNonNegativeIntegerTlv(TLV_MASK, m_mask);
+      encoder.writeNonNegativeIntegerTlv(TLV_FLAGS, m_flags);
+    }
+    if (uri != null) {
+      encoder.writeBlobTlv(TLV_URI, ByteBuffer.wrap(uri.getBytes(Charset.forName("UTF-8"))));
+    }
+    if (faceId >= 0) {
+      encoder.writeNonNegativeIntegerTlv(TLV_FACE_ID, faceId);
+    }
+    encoder.writeTypeAndLength(TLV_CONTROL_PARAMETERS, encoder.getLength() - saveLength);
+    return encoder.getOutput();
+  }
+
+  @Override
+  public String
+  toString()
+  {
+    return "persistency=" + m_persistency + " flags=" + m_flags + "/" + m_mask +
+           " congestionMarkingInterval=" + m_baseCongestionMarkingInterval + " mtu=" + m_mtu;
+  }
+
+  private FaceParameters
+  setFlag(int flag, boolean isEnabled)
+  {
+    m_mask |= flag;
+    if (isEnabled) {
+      m_flags |= flag;
+    }
+    else {
+      m_flags &= ~flag;
+    }
+    return this;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  // NFD management protocol TLV types
+  static final int TLV_CONTROL_RESPONSE = 101;
+  static final int TLV_STATUS_CODE = 102;
+  static final int TLV_STATUS_TEXT = 103;
+  static final int TLV_CONTROL_PARAMETERS = 104;
+  static final int TLV_FACE_ID = 105;
+  private static final int TLV_FLAGS = 108;
+  private static final int TLV_MASK = 112;
+  private static final int TLV_URI = 114;
+  private static final int TLV_FACE_PERSISTENCY = 133;
+  private static final int TLV_BASE_CONGESTION_MARKING_INTERVAL = 135;
+  private static final int TLV_MTU = 137;
+
+  private static final int FLAG_LOCAL_FIELDS = 1;
+  private static final int FLAG_LP_RELIABILITY = 1 << 1;
+  private static final int FLAG_CONGESTION_MARKING = 1 << 2;
+  private static final long NANOSECONDS_PER_MS = 1000000;
+
+  private FacePersistency m_persistency = null;
+  private int m_flags = 0;
+  private int m_mask = 0;
+  private long m_baseCongestionMarkingInterval = -1;
+  private int m_mtu = -1;
+}
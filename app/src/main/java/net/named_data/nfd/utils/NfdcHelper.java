@@ -32,17 +32,26 @@ import com.intel.jndn.management.types.RibEntry;
 import com.intel.jndn.management.types.Route;
 
 import net.named_data.jndn.ControlParameters;
+import net.named_data.jndn.ControlResponse;
+import net.named_data.jndn.Data;
 import net.named_data.jndn.Face;
 import net.named_data.jndn.ForwardingFlags;
+import net.named_data.jndn.Interest;
 import net.named_data.jndn.Name;
+import net.named_data.jndn.OnData;
+import net.named_data.jndn.OnTimeout;
+import net.named_data.jndn.encoding.EncodingException;
+import net.named_data.jndn.encoding.tlv.TlvDecoder;
 import net.named_data.jndn.security.KeyChain;
 import net.named_data.jndn.security.SecurityException;
 import net.named_data.jndn.security.identity.IdentityManager;
 import net.named_data.jndn.security.identity.MemoryIdentityStorage;
 import net.named_data.jndn.security.identity.MemoryPrivateKeyStorage;
 import net.named_data.jndn.security.policy.SelfVerifyPolicyManager;
+import net.named_data.jndn.util.Blob;
 import net.named_data.jndn_xx.util.FaceUri;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -87,16 +96,98 @@ public class NfdcHelper
                     int cost,
                     boolean isChildInherit,
                     boolean isCapture) throws Exception
+  {
+    ribRegisterPrefix(prefix, faceId, cost, isChildInherit, isCapture, -1);
+  }
+
+  /**
+   * Registers name to the given faceId, as a route that NFD removes after
+   * expirationPeriod ms unless it is registered again before
+   *
+   * @param expirationPeriod in ms, or -1 for a route that does not expire
+   */
+  public void
+  ribRegisterPrefix(Name prefix,
+                    int faceId,
+                    int cost,
+                    boolean isChildInherit,
+                    boolean isCapture,
+                    long expirationPeriod) throws Exception
   {
     ForwardingFlags flags = new ForwardingFlags();
     flags.setChildInherit(isChildInherit);
     flags.setCapture(isCapture);
-    Nfdc.register(m_face,
-                  new ControlParameters()
-                    .setName(prefix)
-                    .setFaceId(faceId)
-                    .setCost(cost)
-                    .setForwardingFlags(flags));
+    ControlParameters parameters = new ControlParameters()
+                                     .setName(prefix)
+                                     .setFaceId(faceId)
+                                     .setCost(cost)
+                                     .setForwardingFlags(flags);
+    if (expirationPeriod >= 0) {
+      parameters.setExpirationPeriod(expirationPeriod);
+    }
+    Nfdc.register(m_face, parameters);
+  }
+
+  /**
+   * Registers a batch of prefixes, each towards its own faceId.
+   * <p>
+   * Unlike {@link #ribRegisterPrefix}, commands are not sent one at a time: up to
+   * COMMAND_PIPELINE_WINDOW command interests are kept outstanding on the face, so the
+   * whole batch costs roughly one round trip per window instead of one per route.
+   *
+   * @param prefixes prefixes to register
+   * @param faceIds  faceIds to register the prefixes to, matched by index with prefixes
+   * @return number of routes NFD accepted
+   */
+  public int
+  ribRegisterPrefixes(List<Name> prefixes,
+                      List<Integer> faceIds,
+                      int cost,
+                      boolean isChildInherit,
+                      boolean isCapture) throws Exception
+  {
+    ForwardingFlags flags = new ForwardingFlags();
+    flags.setChildInherit(isChildInherit);
+    flags.setCapture(isCapture);
+
+    List<ControlParameters> parameters = new ArrayList<>(prefixes.size());
+    for (int i = 0; i < prefixes.size(); i++) {
+      parameters.add(new ControlParameters()
+                       .setName(prefixes.get(i))
+                       .setFaceId(faceIds.get(i))
+                       .setCost(cost)
+                       .setForwardingFlags(flags));
+    }
+
+    int nSucceeded = 0;
+    for (boolean isSucceeded : ribRegisterPrefixes(parameters)) {
+      if (isSucceeded) {
+        ++nSucceeded;
+      }
+    }
+    return nSucceeded;
+  }
+
+  /**
+   * Sends one pipelined rib/register command per ControlParameters
+   *
+   * @return whether NFD accepted each command, matched by index with parameters
+   */
+  public boolean[]
+  ribRegisterPrefixes(List<ControlParameters> parameters) throws Exception
+  {
+    return sendCommands(makeCommands(RIB_REGISTER_COMMAND, parameters));
+  }
+
+  /**
+   * Sends one pipelined rib/unregister command per ControlParameters
+   *
+   * @return whether NFD accepted each command, matched by index with parameters
+   */
+  public boolean[]
+  ribUnregisterPrefixes(List<ControlParameters> parameters) throws Exception
+  {
+    return sendCommands(makeCommands(RIB_UNREGISTER_COMMAND, parameters));
   }
 
   /**
@@ -159,6 +250,46 @@ public class NfdcHelper
     return Nfdc.createFace(m_face, formatFaceUri(faceUri));
   }
 
+  /**
+   * Creates new face with the given link-layer parameters. If the face already exists,
+   * e.g. as an on-demand face created by incoming traffic, the parameters are applied
+   * to it with faces/update instead
+   *
+   * @return id of the created or existing face
+   */
+  public int
+  faceCreate(String faceUri, FaceParameters parameters) throws Exception
+  {
+    Interest command = new Interest(new Name(FACE_CREATE_COMMAND)
+                                      .append(new Blob(parameters.wireEncode(-1, formatFaceUri(faceUri)), false)));
+    int[] response = decodeFaceResponse(sendCommand(command));
+    if (response[0] == 409 && response[1] >= 0) {
+      // the existing face is in the response
+      faceUpdate(response[1], parameters);
+      return response[1];
+    }
+    if (response[0] != 200 || response[1] < 0) {
+      throw new ManagementException("Cannot create face " + faceUri + ": status " + response[0]);
+    }
+    return response[1];
+  }
+
+  /**
+   * Changes the link-layer parameters of an existing face; parameters that are not set
+   * are left as they are
+   */
+  public void
+  faceUpdate(int faceId, FaceParameters parameters) throws Exception
+  {
+    Interest command = new Interest(new Name(FACE_UPDATE_COMMAND)
+                                      .append(new Blob(parameters.wireEncode(faceId, null), false)));
+    int[] response = decodeFaceResponse(sendCommand(command));
+    if (response[0] != 200) {
+      throw new ManagementException("Cannot update face " + faceId + " with " + parameters +
+                                    ": status " + response[0]);
+    }
+  }
+
   /**
    * Destroys face
    */
@@ -221,14 +352,15 @@ public class NfdcHelper
     return new FaceUri(faceUri).canonize().toString();
   }
 
-//  /**
-//   * Sets the strategy for a namespace
-//   */
-//  public void
-//  strategyChoiceSet(Name namespace, Name strategy)
-//  {
-//  }
-//
+  /**
+   * Sets the strategy for a namespace
+   */
+  public void
+  strategyChoiceSet(Name namespace, Name strategy) throws ManagementException
+  {
+    Nfdc.setStrategy(m_face, namespace, strategy);
+  }
+
 //  /**
 //   * Unset the strategy for a namespace
 //   */
@@ -239,6 +371,130 @@ public class NfdcHelper
 
   /////////////////////////////////////////////////////////////////////////////
 
+  /**
+   * Signs and expresses the command interests, keeping at most COMMAND_PIPELINE_WINDOW
+   * of them outstanding, and processes face events until every command got a response
+   * or timed out.
+   *
+   * @return whether each command succeeded, matched by index with commands
+   */
+  private boolean[]
+  sendCommands(final List<Interest> commands) throws Exception
+  {
+    Data[] responses = expressCommands(commands);
+    boolean[] isSucceeded = new boolean[commands.size()];
+    for (int i = 0; i < responses.length; i++) {
+      isSucceeded[i] = responses[i] != null && isCommandSucceeded(commands.get(i), responses[i]);
+    }
+    return isSucceeded;
+  }
+
+  /**
+   * Sends a single command
+   *
+   * @return the response, or null if the command timed out
+   */
+  private Data
+  sendCommand(Interest command) throws Exception
+  {
+    List<Interest> commands = new ArrayList<>(1);
+    commands.add(command);
+    return expressCommands(commands)[0];
+  }
+
+  /**
+   * Signs and expresses the command interests, pipelined as in sendCommands
+   *
+   * @return the response to each command, or null for a command that timed out
+   */
+  private Data[]
+  expressCommands(final List<Interest> commands) throws Exception
+  {
+    final Data[] responses = new Data[commands.size()];
+    final int[] nCompleted = {0};
+
+    int nSent = 0;
+    while (nCompleted[0] < commands.size()) {
+      while (nSent < commands.size() && nSent - nCompleted[0] < COMMAND_PIPELINE_WINDOW) {
+        final int index = nSent++;
+        Interest command = commands.get(index);
+        command.setInterestLifetimeMilliseconds(COMMAND_INTEREST_LIFETIME);
+        m_face.makeCommandInterest(command);
+        m_face.expressInterest(command,
+                               new OnData() {
+                                 @Override
+                                 public void onData(Interest interest, Data data) {
+                                   ++nCompleted[0];
+                                   responses[index] = data;
+                                 }
+                               },
+                               new OnTimeout() {
+                                 @Override
+                                 public void onTimeout(Interest interest) {
+                                   ++nCompleted[0];
+                                   G.Log(TAG, "Command " + interest.getName().getPrefix(4) + " timed out");
+                                 }
+                               });
+      }
+      m_face.processEvents();
+      Thread.sleep(COMMAND_POLL_INTERVAL);
+    }
+    return responses;
+  }
+
+  /**
+   * Decodes the response to a faces command. jndn's ControlResponse cannot decode it,
+   * as the face fields in its body are unknown to jndn
+   *
+   * @return { status code, face id }, with face id -1 if the body has none, and
+   *         status code -1 if the command timed out
+   */
+  private static int[]
+  decodeFaceResponse(Data data) throws EncodingException
+  {
+    if (data == null) {
+      return new int[]{-1, -1};
+    }
+    TlvDecoder decoder = new TlvDecoder(data.getContent().buf());
+    int endOffset = decoder.readNestedTlvsStart(FaceParameters.TLV_CONTROL_RESPONSE);
+    int statusCode = (int) decoder.readNonNegativeIntegerTlv(FaceParameters.TLV_STATUS_CODE);
+    decoder.skipTlv(FaceParameters.TLV_STATUS_TEXT);
+    int faceId = -1;
+    if (decoder.peekType(FaceParameters.TLV_CONTROL_PARAMETERS, endOffset)) {
+      int parametersEndOffset = decoder.readNestedTlvsStart(FaceParameters.TLV_CONTROL_PARAMETERS);
+      faceId = (int) decoder.readOptionalNonNegativeIntegerTlv(FaceParameters.TLV_FACE_ID, parametersEndOffset);
+    }
+    return new int[]{statusCode, faceId};
+  }
+
+  private static boolean
+  isCommandSucceeded(Interest command, Data data)
+  {
+    ControlResponse response = new ControlResponse();
+    try {
+      response.wireDecode(data.getContent());
+    } catch (EncodingException e) {
+      G.Log(TAG, "Cannot decode response to " + command.getName().getPrefix(4));
+      return false;
+    }
+    if (response.getStatusCode() != 200) {
+      G.Log(TAG, "Command " + command.getName().getPrefix(4) + " failed: " +
+            response.getStatusCode() + " " + response.getStatusText());
+      return false;
+    }
+    return true;
+  }
+
+  private static List<Interest>
+  makeCommands(Name command, List<ControlParameters> parameters)
+  {
+    List<Interest> commands = new ArrayList<>(parameters.size());
+    for (ControlParameters one : parameters) {
+      commands.add(new Interest(new Name(command).append(one.wireEncode())));
+    }
+    return commands;
+  }
+
   private static KeyChain
   configureKeyChain() {
     final MemoryIdentityStorage identityStorage = new MemoryIdentityStorage();
@@ -267,6 +523,15 @@ public class NfdcHelper
 
   /////////////////////////////////////////////////////////////////////////////
 
+  private static final String TAG = NfdcHelper.class.getName();
+  private static final Name RIB_REGISTER_COMMAND = new Name("/localhost/nfd/rib/register");
+  private static final Name RIB_UNREGISTER_COMMAND = new Name("/localhost/nfd/rib/unregister");
+  private static final Name FACE_CREATE_COMMAND = new Name("/localhost/nfd/faces/create");
+  private static final Name FACE_UPDATE_COMMAND = new Name("/localhost/nfd/faces/update");
+  private static final int COMMAND_PIPELINE_WINDOW = 16;
+  private static final double COMMAND_INTEREST_LIFETIME = 4000; // in ms
+  private static final long COMMAND_POLL_INTERVAL = 5; // in ms
+
   final static KeyChain s_keyChain = configureKeyChain();
   private Face m_face;
 }
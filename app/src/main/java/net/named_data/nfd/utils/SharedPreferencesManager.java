@@ -35,6 +35,9 @@ public class SharedPreferencesManager {
   private static final String PERMANENT_ROUTE = "permanentRoute";
   private static final String PERMANENT_FACEID = "permanentFaceId";
   private static final String CONNECT_NEAREAST_HUB = "connectNeareastHub";
+  private static final String WIFI_DIRECT_MULTICAST_PROBING = "wifiDirectMulticastProbing";
+  private static final String WIFI_DIRECT_MAX_HOPS = "wifiDirectMaxHops";
+  private static final String WIFI_DIRECT_GROUP_OWNER_POLICY = "wifiDirectGroupOwnerPolicy";
   private static final String PREFIX_FACEURI_DELIMITER = "\t";
   // We need to cache permanent face IDs in order to display whether a face is permanent face or not.
 
@@ -65,7 +68,7 @@ public class SharedPreferencesManager {
   }
 
   @SuppressWarnings("deprecation")
-  static boolean isPermanentFace(Context context, int faceId) {
+  public static boolean isPermanentFace(Context context, int faceId) {
     SharedPreferences setting = context.getSharedPreferences(PREFS_NAME, Context.MODE_MULTI_PROCESS);
     Set<String> permanentFace = setting.getStringSet(PERMANENT_FACEID, new HashSet<String>());
 
@@ -177,4 +180,40 @@ public class SharedPreferencesManager {
     SharedPreferences setting = context.getSharedPreferences(PREFS_NAME, Context.MODE_MULTI_PROCESS);
     return setting.getBoolean(CONNECT_NEAREAST_HUB, false);
   }
+
+  @SuppressWarnings("deprecation")
+  public static void setWifiDirectMulticastProbing(Context context, boolean isOn) {
+    SharedPreferences setting = context.getSharedPreferences(PREFS_NAME, Context.MODE_MULTI_PROCESS);
+    setting.edit().putBoolean(WIFI_DIRECT_MULTICAST_PROBING, isOn).commit();
+  }
+
+  @SuppressWarnings("deprecation")
+  public static boolean getWifiDirectMulticastProbing(Context context) {
+    SharedPreferences setting = context.getSharedPreferences(PREFS_NAME, Context.MODE_MULTI_PROCESS);
+    return setting.getBoolean(WIFI_DIRECT_MULTICAST_PROBING, false);
+  }
+
+  @SuppressWarnings("deprecation")
+  public static void setWifiDirectMaxHops(Context context, int maxHops) {
+    SharedPreferences setting = context.getSharedPreferences(PREFS_NAME, Context.MODE_MULTI_PROCESS);
+    setting.edit().putInt(WIFI_DIRECT_MAX_HOPS, maxHops).commit();
+  }
+
+  @SuppressWarnings("deprecation")
+  public static int getWifiDirectMaxHops(Context context, int defaultMaxHops) {
+    SharedPreferences setting = context.getSharedPreferences(PREFS_NAME, Context.MODE_MULTI_PROCESS);
+    return setting.getInt(WIFI_DIRECT_MAX_HOPS, defaultMaxHops);
+  }
+
+  @SuppressWarnings("deprecation")
+  public static void setWifiDirectGroupOwnerPolicy(Context context, int policyIndex) {
+    SharedPreferences setting = context.getSharedPreferences(PREFS_NAME, Context.MODE_MULTI_PROCESS);
+    setting.edit().putInt(WIFI_DIRECT_GROUP_OWNER_POLICY, policyIndex).commit();
+  }
+
+  @SuppressWarnings("deprecation")
+  public static int getWifiDirectGroupOwnerPolicy(Context context) {
+    SharedPreferences setting = context.getSharedPreferences(PREFS_NAME, Context.MODE_MULTI_PROCESS);
+    return setting.getInt(WIFI_DIRECT_GROUP_OWNER_POLICY, 0);
+  }
 }
@@ -0,0 +1,167 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.utils;
+
+import android.os.AsyncTask;
+import android.os.Process;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * App-wide executors for background work, used instead of AsyncTask's single
+ * global serial executor (TaskScheduler.execute(TaskScheduler.INTERACTIVE, task)).
+ * <p>
+ * Work is split into lanes, each with its own threads and bounded queue, so that
+ * a slow face creation or FCH lookup never delays a UI refresh:
+ * <ul>
+ *   <li>INTERACTIVE: reads that feed the UI (status, face and route lists).  When the
+ *       queue is full the oldest pending read is cancelled, since a newer one supersedes it.</li>
+ *   <li>MANAGEMENT: writes to NFD (face/route create and destroy).  Runs on a single
+ *       thread to keep writes in submission order.</li>
+ *   <li>MAINTENANCE: background jobs (restore, hub lookup) at background priority.</li>
+ * </ul>
+ * Tasks rejected by MANAGEMENT or MAINTENANCE because of a full queue are cancelled.
+ * AsyncTasks must be started with execute(), which lets the lane cancel the AsyncTask
+ * itself, so that it sees onCancelled() rather than onPostExecute(null).
+ */
+public class TaskScheduler {
+  public static final ThreadPoolExecutor INTERACTIVE =
+    createLane("interactive", 2, 8, Process.THREAD_PRIORITY_DEFAULT, new CancelOldestPolicy());
+
+  public static final ThreadPoolExecutor MANAGEMENT =
+    createLane("management", 1, 32, Process.THREAD_PRIORITY_DEFAULT, new CancelPolicy());
+
+  public static final ThreadPoolExecutor MAINTENANCE =
+    createLane("maintenance", 1, 16, Process.THREAD_PRIORITY_BACKGROUND, new CancelPolicy());
+
+  /**
+   * Runs the AsyncTask on the lane, like task.executeOnExecutor(lane, params), but
+   * a rejection by the lane cancels the AsyncTask
+   */
+  @SafeVarargs
+  public static <Params> void
+  execute(final ThreadPoolExecutor lane, final AsyncTask<Params, ?, ?> task, Params... params) {
+    task.executeOnExecutor(new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        lane.execute(new AsyncTaskRunnable(runnable, task));
+      }
+    }, params);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * The FutureTask of an AsyncTask, queued together with its AsyncTask
+   */
+  private static class AsyncTaskRunnable implements Runnable {
+    private final Runnable m_future;
+    private final AsyncTask<?, ?, ?> m_task;
+
+    AsyncTaskRunnable(Runnable future, AsyncTask<?, ?, ?> task) {
+      m_future = future;
+      m_task = task;
+    }
+
+    @Override
+    public void run() {
+      m_future.run();
+    }
+  }
+
+  private static ThreadPoolExecutor
+  createLane(final String name, int nThreads, int queueCapacity, final int threadPriority,
+             RejectedExecutionHandler rejectedExecutionHandler) {
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger m_count = new AtomicInteger(1);
+
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        return new Thread(new Runnable() {
+          @Override
+          public void run() {
+            Process.setThreadPriority(threadPriority);
+            runnable.run();
+          }
+        }, "TaskScheduler-" + name + "-" + m_count.getAndIncrement());
+      }
+    };
+
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(nThreads, nThreads,
+                                                         KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                                         new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                                         threadFactory, rejectedExecutionHandler);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static void
+  cancel(Runnable runnable) {
+    if (runnable instanceof AsyncTaskRunnable) {
+      // cancelling only its FutureTask would deliver onPostExecute(null) instead of onCancelled()
+      ((AsyncTaskRunnable) runnable).m_task.cancel(false);
+    }
+    else if (runnable instanceof Future) {
+      ((Future) runnable).cancel(false);
+    }
+    else {
+      G.Log(TAG, "Task dropped: " + runnable);
+    }
+  }
+
+  /**
+   * Cancels the rejected task.
+   */
+  private static class CancelPolicy implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+      G.Log(TAG, "Lane is full, task cancelled");
+      cancel(runnable);
+    }
+  }
+
+  /**
+   * Cancels the oldest queued task to make room for the new one.
+   */
+  private static class CancelOldestPolicy implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        cancel(runnable);
+        return;
+      }
+      Runnable oldest = executor.getQueue().poll();
+      if (oldest != null) {
+        cancel(oldest);
+      }
+      executor.execute(runnable);
+    }
+  }
+
+  private static final String TAG = TaskScheduler.class.getName();
+  private static final long KEEP_ALIVE_SECONDS = 30;
+}
@@ -0,0 +1,70 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2017 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.callback;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.named_data.jndn.Face;
+import net.named_data.jndn.Interest;
+import net.named_data.jndn.InterestFilter;
+import net.named_data.jndn.Name;
+import net.named_data.nfd.wifidirect.model.Peer;
+import net.named_data.nfd.wifidirect.utils.NDNController;
+
+/**
+ * Handle OnInterest events for change announcements received over the multicast face.
+ * <p>
+ * An announcement is not answered; it only makes the announcing peer due for a probe,
+ * which then fetches what changed. A peer that announced once is from then on probed
+ * less often, as its changes no longer have to be found by polling.
+ */
+public class AnnouncementOnInterest implements NDNCallBackOnInterest {
+
+  private static final String TAG = "AnnouncementOnInterest";
+  // /localhop/wifidirect/multicast/<fromIp>/changed/<generation>
+  private static final int ANNOUNCEMENT_NAME_SIZE = 6;
+  private static final int FROM_IP_INDEX = 3;
+
+  private NDNController mController = NDNController.getInstance();
+
+  @Override
+  public void doJob(Name prefix, Interest interest, Face face, long interestFilterId, InterestFilter filter) {
+    Name interestName = interest.getName();
+    if (interestName.size() != ANNOUNCEMENT_NAME_SIZE) {
+      Log.e(TAG, "Error with this interest, skipping...");
+      return;
+    }
+
+    String peerIp = interestName.get(FROM_IP_INDEX).toEscapedString();
+    if (peerIp.equals(NDNController.myAddress)) {
+      return;
+    }
+
+    // only peers we have a face to are probed; a client hears about other clients
+    // through the announcement of the group owner
+    Peer peer = mController.getPeerByIp(peerIp);
+    if (peer != null) {
+      Log.d(TAG, "Advertisement of " + peerIp + " changed, probing it now");
+      peer.setAnnouncesChanges(true);
+      peer.getProbeSchedule().reset(SystemClock.elapsedRealtime());
+    }
+  }
+}
@@ -21,105 +21,316 @@ package net.named_data.nfd.wifidirect.callback;
 
 import android.util.Log;
 
-import com.intel.jndn.management.types.FibEntry;
-import com.intel.jndn.management.types.NextHopRecord;
-
 import net.named_data.jndn.Data;
-import net.named_data.jndn.Face;
 import net.named_data.jndn.Interest;
 import net.named_data.jndn.Name;
+import net.named_data.jndn.encoding.EncodingException;
+import net.named_data.jndn.util.Blob;
+import net.named_data.nfd.wifidirect.model.Peer;
+import net.named_data.nfd.wifidirect.model.ProbeReply;
 import net.named_data.nfd.wifidirect.utils.NDNController;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Handle OnData events for outgoing probe interests.
+ * <p>
+ * Replies are only queued on the thread processing the face events, which returns to
+ * the event loop right away; they are processed on the NFDC lane, where the management
+ * calls they need belong. The replies of one peer are processed in the order they
+ * arrived, and those that queued up while the lane was busy are processed together:
+ * all of them update the advertisement of the peer first, and the routes towards the
+ * peer are then updated once, from the advertisement before the first to the one after
+ * the last.
  */
 public class ProbeOnData implements NDNCallbackOnData {
 
+  /**
+   * Called on the NFDC lane once a reply was processed.
+   */
+  public interface Callback {
+    /**
+     * @param isChanged true if the advertised prefixes of the peer changed since its
+     *                  previous reply, or the reply did not apply to the known version
+     */
+    void onProcessed(boolean isChanged);
+  }
+
+  private static final class Reply {
+    final Blob content;
+    final Callback callback;
+
+    Reply(Blob content, Callback callback) {
+      this.content = content;
+      this.callback = callback;
+    }
+  }
+
+  /**
+   * Outcome of the replies processed together.
+   */
+  private static final class Batch {
+    boolean isChanged = false;
+    boolean needsReconcile = false;   // a full set changed, so all registered prefixes are checked
+  }
+
   private static final String TAG = "ProbeOnData";
+  private static final int TO_IP_INDEX = 2;   // in /localhop/wifidirect/<toIp>/<fromIp>/probe
   private NDNController mController = NDNController.getInstance();
-  private Face mFace = mController.getLocalHostFace();
+  // { peerIp : replies not processed yet, in arrival order }
+  private final Map<String, List<Reply>> mPending = new HashMap<>();
 
   @Override
   public void doJob(Interest interest, Data data) {
-    // interest name = /localhop/wifidirect/<toIp>/<fromIp>/probe%timestamp
-    Log.d(TAG, "Got data for interest: " + interest.getName().toString());
+    submit(interest, data.getContent(), null);
+  }
 
-    String[] nameArr = interest.getName().toString().split("/");
-    String peerIp = nameArr[nameArr.length - 3];
-    int peerFaceId = mController.getFaceIdForPeer(peerIp);
+  /**
+   * Queues a probe reply for processing, and returns immediately.
+   *
+   * @param content  the content of the reply, joined from its segments if it was segmented
+   * @param callback called once the reply was processed, or null
+   */
+  public void submit(Interest interest, Blob content, Callback callback) {
+    // interest name = /localhop/wifidirect/<toIp>/<fromIp>/probe[/<known version>]
+    final String peerIp = interest.getName().get(TO_IP_INDEX).toEscapedString();
+    synchronized (mPending) {
+      List<Reply> replies = mPending.get(peerIp);
+      if (replies == null) {
+        replies = new ArrayList<>();
+        mPending.put(peerIp, replies);
+      }
+      replies.add(new Reply(content, callback));
+    }
+    // coalesced with a processing of the peer's replies that is still queued
+    mController.scheduleProbeReplies(peerIp, new Runnable() {
+      @Override
+      public void run() {
+        processPending(peerIp);
+      }
+    });
+  }
 
-    // parse the data, update controller prefix map
-    /**
-     * Data is in form:
-     * {numPrefixes}\n
-     * prefix1\n
-     * prefix2\n
-     * ...
-     */
-    String[] responseArr = data.getContent().toString().split("\n");
+  private void processPending(String peerIp) {
+    List<Reply> replies;
+    synchronized (mPending) {
+      replies = mPending.remove(peerIp);
+    }
+    if (replies == null) {
+      return;
+    }
+    if (replies.size() > 1) {
+      Log.d(TAG, "Processing " + replies.size() + " replies from " + peerIp + " together");
+    }
+
+    boolean isChanged = processReplies(peerIp, replies);
+    if (isChanged) {
+      // what this device advertises depends on the hop counts learned from its peers
+      mController.refreshAdvertisement();
+    }
+    for (Reply reply : replies) {
+      if (reply.callback != null) {
+        reply.callback.onProcessed(isChanged);
+      }
+    }
+  }
+
+  /**
+   * Updates the routes towards the peer from its probe replies. Delta replies are
+   * applied as they are; a full or legacy text reply is reconciled with the prefixes
+   * registered towards the peer, but only when the advertised prefixes differ from the
+   * previous reply of the peer. Only prefixes within the maximum number of hops of this
+   * device are routed, with a cost growing with the hop count the peer advertised. No
+   * management call is made unless routes change.
+   *
+   * @return true if the advertised prefixes changed
+   */
+  private boolean processReplies(String peerIp, List<Reply> replies) {
+    int peerFaceId = mController.getFaceIdForPeer(peerIp);
 
     // validation
-    if (peerFaceId == -1) {
+    Peer peer = mController.getPeerByIp(peerIp);
+    if (peerFaceId == -1 || peer == null) {
       Log.e(TAG, "Undocumented peer.");
-      return;
+      return false;
     }
 
-    int numPrefixes = Integer.parseInt(responseArr[0]);
-    HashSet<String> prefixesInResp = new HashSet<>(numPrefixes);
-    for (int i = 1; i <= numPrefixes; i++) {
-      prefixesInResp.add(responseArr[i]);
+    int maxHops = mController.getMaxHops();
+    Map<String, Integer> previous = peer.getAdvertisedPrefixes();
+    Set<String> wasRoutable = peer.getRoutablePrefixes(maxHops);
+    Batch batch = new Batch();
+    for (Reply reply : replies) {
+      applyReply(peer, reply.content, batch);
     }
+    if (batch.needsReconcile) {
+      reconcileRoutes(peer, peerFaceId, previous, maxHops);
+    } else if (batch.isChanged) {
+      updateRoutes(peer, peerFaceId, previous, wasRoutable, maxHops);
+    }
+    return batch.isChanged;
+  }
 
-    // enumerate FIB entries, and collect the set of data prefixes towards this peer
-    HashSet<String> prefixesRegisteredForPeer = new HashSet<>();
+  /**
+   * Updates the advertisement of the peer from one reply, without any management call.
+   */
+  private void applyReply(Peer peer, Blob content, Batch batch) {
+    if (!ProbeReply.isProbeReply(content.buf())) {
+      applyFullSet(peer, parseTextReply(content.toString()), 0, batch);
+      return;
+    }
+
+    ProbeReply reply;
     try {
-      List<FibEntry> fibEntries = mController.getNfdcHelper().fibList();
-      for (FibEntry fibEntry : fibEntries) {
-        //if (fibEntry.getPrefix().toString().startsWith(NDNController.DATA_PREFIX)) {
-        String fibEntryPrefix = fibEntry.getPrefix().toString();
-        if (!fibEntryPrefix.startsWith("/localhop") && !fibEntryPrefix.startsWith("/localhost")) {
-          List<NextHopRecord> nextHopRecords = fibEntry.getNextHopRecords();
-          for (NextHopRecord nextHopRecord : nextHopRecords) {
-            if (nextHopRecord.getFaceId() == peerFaceId) {
-              prefixesRegisteredForPeer.add(fibEntryPrefix);
-            }
+      reply = ProbeReply.wireDecode(content.buf());
+    } catch (EncodingException e) {
+      Log.e(TAG, "Invalid probe reply from " + peer.getIpAddress() + ": " + e.getMessage());
+      return;
+    }
+    Log.d(TAG, "Probe reply from " + peer.getIpAddress() + ": " + reply);
+
+    switch (reply.getType()) {
+      case ProbeReply.UNCHANGED:
+        if (reply.getVersion() == peer.getAdvertisedVersion()) {
+          return;
+        }
+        break;
+      case ProbeReply.DELTA:
+        if (reply.getBaseVersion() == peer.getAdvertisedVersion() && peer.getAdvertisedPrefixes() != null) {
+          Map<String, Integer> prefixes = new HashMap<>(peer.getAdvertisedPrefixes());
+          prefixes.putAll(reply.getAdded());
+          prefixes.keySet().removeAll(reply.getRemoved());
+          peer.setAdvertisedPrefixes(Collections.unmodifiableMap(prefixes));
+          peer.setAdvertisedVersion(reply.getVersion());
+          if (!reply.getAdded().isEmpty() || !reply.getRemoved().isEmpty()) {
+            batch.isChanged = true;
           }
+          return;
         }
-      }
+        break;
+      case ProbeReply.FULL:
+        applyFullSet(peer, new HashMap<>(reply.getAdded()), reply.getVersion(), batch);
+        return;
+    }
 
-      // iterate through prefixes found in response,
-      // removing any already registered prefixes for this peer
-      // any prefix remaining in prefixesRegisteredForPeer after this
-      // is no longer advertised by peer
-      Iterator<String> it = prefixesInResp.iterator();
-      while (it.hasNext()) {
-        String prefix = it.next();
-        if (prefixesRegisteredForPeer.contains(prefix)) {
-          it.remove();
-          prefixesRegisteredForPeer.remove(prefix);
-        }
+    // the reply does not apply to the version we have, so ask for the full set next time
+    Log.d(TAG, "Probe reply from " + peer.getIpAddress() + " does not match known version " +
+      peer.getAdvertisedVersion());
+    peer.setAdvertisedVersion(0);
+    batch.isChanged = true;
+  }
+
+  /**
+   * Parses the legacy reply, in form:
+   * {numPrefixes}\n
+   * prefix1\n
+   * prefix2\n
+   * ...
+   * which carries no hop counts, so all prefixes count as served by the peer itself.
+   */
+  private static HashMap<String, Integer> parseTextReply(String response) {
+    String[] responseArr = response.split("\n");
+    int numPrefixes = Integer.parseInt(responseArr[0]);
+    HashMap<String, Integer> prefixesInResp = new HashMap<>(numPrefixes);
+    for (int i = 1; i <= numPrefixes; i++) {
+      prefixesInResp.put(responseArr[i], 0);
+    }
+    return prefixesInResp;
+  }
+
+  /**
+   * @param prefixesInResp prefix -> hop count advertised by the peer
+   * @param version        version of the set, 0 for a legacy reply
+   */
+  private static void applyFullSet(Peer peer, HashMap<String, Integer> prefixesInResp, long version, Batch batch) {
+    peer.setAdvertisedVersion(version);
+    if (prefixesInResp.equals(peer.getAdvertisedPrefixes())) {
+      Log.d(TAG, "Advertisement of peer " + peer.getIpAddress() + " unchanged.");
+      return;
+    }
+    peer.setAdvertisedPrefixes(Collections.unmodifiableMap(new HashMap<>(prefixesInResp)));
+    batch.isChanged = true;
+    batch.needsReconcile = true;
+  }
+
+  /**
+   * Registers the prefixes that became routable or whose hop count changed, and
+   * unregisters those that are no longer routable.
+   */
+  private void updateRoutes(Peer peer, int peerFaceId, Map<String, Integer> previous, Set<String> wasRoutable,
+                            int maxHops) {
+    Set<String> routable = peer.getRoutablePrefixes(maxHops);
+    Set<String> toRegister = new HashSet<>();
+    for (String prefix : routable) {
+      if (!wasRoutable.contains(prefix) || !isSameHops(peer, previous, prefix)) {
+        toRegister.add(prefix);
       }
+    }
+    Set<String> toUnregister = new HashSet<>(wasRoutable);
+    toUnregister.removeAll(routable);
 
-      // register new prefixes in response
-      if (prefixesInResp.size() > 0) {
-        Log.d(TAG, prefixesInResp.size() + " new prefixes to add.");
-        mController.ribRegisterPrefix(peerFaceId, prefixesInResp.toArray(new String[0]));
-      } else {
-        Log.d(TAG, "No new prefixes to register.");
+    if (!toRegister.isEmpty()) {
+      Log.d(TAG, toRegister.size() + " new prefixes to add.");
+      mController.ribRegisterPrefix(peerFaceId, toRegister.toArray(new String[0]));
+    }
+    unregisterPrefixes(peer, peerFaceId, toUnregister);
+  }
+
+  /**
+   * Reconciles the routes towards the peer with the complete set of prefixes it
+   * advertises, using the prefixes registered towards the peer as kept locally; they are
+   * checked against the RIB only occasionally, by NDNController.reconcilePeerRoutes().
+   */
+  private void reconcileRoutes(Peer peer, int peerFaceId, Map<String, Integer> previous, int maxHops) {
+    Set<String> routable = peer.getRoutablePrefixes(maxHops);
+    HashSet<String> prefixesRegisteredForPeer = new HashSet<>(peer.getRegisteredPrefixes());
+
+    // iterate through routable prefixes found in response, removing any already
+    // registered prefixes for this peer whose hop count is unchanged;
+    // any prefix remaining in prefixesRegisteredForPeer after this
+    // is no longer advertised by peer, or out of range
+    HashSet<String> toRegister = new HashSet<>();
+    for (String prefix : routable) {
+      boolean isRegistered = prefixesRegisteredForPeer.remove(prefix);
+      if (!isRegistered || !isSameHops(peer, previous, prefix)) {
+        toRegister.add(prefix);
       }
+    }
 
-      // unregister all prefixes that no longer are supported via this face
-      for (String toRemovePrefix : prefixesRegisteredForPeer) {
+    // register new prefixes in response
+    if (toRegister.size() > 0) {
+      Log.d(TAG, toRegister.size() + " new prefixes to add.");
+      mController.ribRegisterPrefix(peerFaceId, toRegister.toArray(new String[0]));
+    } else {
+      Log.d(TAG, "No new prefixes to register.");
+    }
+
+    // unregister all prefixes that no longer are supported via this face
+    unregisterPrefixes(peer, peerFaceId, prefixesRegisteredForPeer);
+  }
+
+  private void unregisterPrefixes(Peer peer, int peerFaceId, Set<String> prefixes) {
+    try {
+      for (String toRemovePrefix : prefixes) {
         Log.d(TAG, "Removing from FIB: " + toRemovePrefix + " " + peerFaceId);
         mController.getNfdcHelper().ribUnregisterPrefix(new Name(toRemovePrefix), peerFaceId);
+        peer.getRegisteredPrefixes().remove(toRemovePrefix);
       }
-
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
+
+  /**
+   * @return whether the peer advertises prefix with the same hop count as in previous
+   */
+  private static boolean isSameHops(Peer peer, Map<String, Integer> previous, String prefix) {
+    Integer previousHops = previous == null ? null : previous.get(prefix);
+    return previousHops != null && previousHops == peer.getAdvertisedHops(prefix);
+  }
 }
@@ -21,10 +21,6 @@ package net.named_data.nfd.wifidirect.callback;
 
 import android.util.Log;
 
-import com.intel.jndn.management.types.FaceStatus;
-import com.intel.jndn.management.types.FibEntry;
-import com.intel.jndn.management.types.NextHopRecord;
-
 import net.named_data.jndn.Data;
 import net.named_data.jndn.Face;
 import net.named_data.jndn.Interest;
@@ -32,11 +28,11 @@ import net.named_data.jndn.InterestFilter;
 import net.named_data.jndn.MetaInfo;
 import net.named_data.jndn.Name;
 import net.named_data.jndn.util.Blob;
+import net.named_data.nfd.wifidirect.model.AdvertisementCache;
+import net.named_data.nfd.wifidirect.model.AdvertisementLog;
+import net.named_data.nfd.wifidirect.model.ProbeReply;
 import net.named_data.nfd.wifidirect.utils.NDNController;
 
-import java.util.HashSet;
-import java.util.List;
-
 /**
  * Handle OnInterest events for incoming probe interests.
  */
@@ -44,6 +40,11 @@ public class ProbeOnInterest implements NDNCallBackOnInterest {
 
   private static final String TAG = "ProbeOnInterest";
   private static final int DATA_LIFE_TIME = 500; // this should be smaller than NDNController.PROBE_INTEREST_LIFETIME
+  // /localhop/wifidirect/<toIp>/<fromIp>/probe, optionally followed by the version known by the requester,
+  // and for the segments after the first by the version of the reply and the segment number
+  private static final int PROBE_NAME_SIZE = 5;
+  private static final int SEGMENT_NAME_SIZE = PROBE_NAME_SIZE + 3;
+  private static final int FROM_IP_INDEX = 3;
 
   private NDNController mController = NDNController.getInstance();
 
@@ -52,15 +53,33 @@ public class ProbeOnInterest implements NDNCallBackOnInterest {
   public void doJob(Name prefix, Interest interest, Face face, long interestFilterId, InterestFilter filter) {
     Log.d(TAG, "Got an interest for: " + interest.getName().toString());
 
-    // /localhop/wifidirect/192.168.49.x/192.168.49.y/probe?mustBeFresh=1
-    String[] prefixArr = interest.getName().toString().split("/");
+    // /localhop/wifidirect/192.168.49.x/192.168.49.y/probe[/<known version>]?mustBeFresh=1
+    Name interestName = interest.getName();
 
     // validate
-    if (prefixArr.length != 6) {
+    if (interestName.size() != PROBE_NAME_SIZE && interestName.size() != PROBE_NAME_SIZE + 1 &&
+      interestName.size() != SEGMENT_NAME_SIZE) {
       Log.e(TAG, "Error with this interest, skipping...");
+      return;
     }
 
-    final String peerIp = prefixArr[prefixArr.length - 2];
+    final String peerIp = interestName.get(FROM_IP_INDEX).toEscapedString();
+
+    // a requester without version component only understands the text reply
+    long knownVersion = -1;
+    if (interestName.size() > PROBE_NAME_SIZE) {
+      try {
+        knownVersion = interestName.get(PROBE_NAME_SIZE).toNumber();
+      } catch (Exception e) {
+        Log.e(TAG, "Invalid version in probe interest, skipping...");
+        return;
+      }
+    }
+
+    if (interestName.size() == SEGMENT_NAME_SIZE) {
+      putSegment(interest, face, peerIp, knownVersion);
+      return;
+    }
 
     // if not logged (a face created for this probing peer), should then create a face (mainly for GO)
     if (mController.getFaceIdForPeer(peerIp) == -1) {
@@ -77,62 +96,72 @@ public class ProbeOnInterest implements NDNCallBackOnInterest {
       });
     }
 
-    // enumerate RIB, look for all /ndn/wifidirect/* data prefixes, return to user as described in slides
+    // the reply is built from the advertisement kept up to date by NDNController, which is
+    // only fetched from NFD here before its first refresh
     try {
-      // set of prefixes to return to interest sender
-      HashSet<String> prefixesToReturn = new HashSet<>();
-      String response = "";
-      int num = 0;
-
-      // consult NFD to get all entries in FIB
-      List<FibEntry> fibEntries = mController.getNfdcHelper().fibList();
-
-      // enumerate all faces
-      List<FaceStatus> faceStatuses = mController.getNfdcHelper().faceList();
-      HashSet<Integer> faceIds = new HashSet<>();
-      for (FaceStatus faceStatus : faceStatuses) {
-        faceIds.add(faceStatus.getFaceId());
+      AdvertisementCache cache = mController.getAdvertisementCache();
+      if (!cache.isReady()) {
+        mController.updateAdvertisement(mController.getNfdcHelper().fibList(), mController.getNfdcHelper().faceList());
       }
 
-      // remove the interest incomming face id
-      faceIds.remove(mController.getFaceIdForPeer(peerIp));
-
-      // return only those prefixes that are handled by faces except for the interest incomming face
-      for (FibEntry fibEntry : fibEntries) {
-        if (!fibEntry.getPrefix().toString().startsWith("/localhop") &&
-          !fibEntry.getPrefix().toString().startsWith("/localhost")) {
-          // added constraint that the prefix must be served from devices except for the interest
-          // incomming device (e.g. by an upper layer application)
-          List<NextHopRecord> nextHopRecords = fibEntry.getNextHopRecords();
-          for (NextHopRecord nextHopRecord : nextHopRecords) {
-            if (faceIds.contains(nextHopRecord.getFaceId())) {
-              prefixesToReturn.add(fibEntry.getPrefix().toString());
-              num++;
-              break;
-            }
-          }
-        }
+      // return only those prefixes whose shortest route is not through the interest incoming face
+      AdvertisementLog log = knownVersion < 0 ? null : mController.getAdvertisementLog(peerIp);
+      AdvertisementCache.Payload payload =
+        cache.getPayload(peerIp, mController.getFaceIdForPeer(peerIp), knownVersion, log);
+
+      if (knownVersion < 0) {
+        face.putData(makeData(new Name(interestName), payload.getBlob(), null));
+      } else {
+        // reply with the first segment; its name tells the requester the reply version and
+        // its FinalBlockId how many segments to fetch
+        int lastSegment = ProbeReply.getSegmentCount(payload.getBlob()) - 1;
+        Name dataName = new Name(interestName)
+          .append(Name.Component.fromVersion(payload.getVersion()))
+          .append(Name.Component.fromSegment(0));
+        face.putData(makeData(dataName, ProbeReply.getSegment(payload.getBlob(), 0),
+          Name.Component.fromSegment(lastSegment)));
       }
+      Log.d(TAG, "Send data for: " + interest.getName().toString());
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
 
-      Data data = new Data();
-      data.setName(new Name(interest.getName().toUri()));
-      MetaInfo metaInfo = new MetaInfo();
-      metaInfo.setFreshnessPeriod(DATA_LIFE_TIME);
-      data.setMetaInfo(metaInfo);
-
-      // format payload, for now ignore hopcount as it is not clear whether
-      // it is useful
-      for (String pre : prefixesToReturn) {
-        response += ("\n" + pre);
+  /**
+   * Serves a segment after the first of the reply last built for the requester.
+   */
+  private void putSegment(Interest interest, Face face, String peerIp, long knownVersion) {
+    Name interestName = interest.getName();
+    try {
+      long version = interestName.get(PROBE_NAME_SIZE + 1).toVersion();
+      int segment = (int) interestName.get(PROBE_NAME_SIZE + 2).toSegment();
+
+      AdvertisementCache.Payload payload =
+        mController.getAdvertisementCache().getLastPayload(peerIp, knownVersion, version);
+      Blob content = payload == null ? null : ProbeReply.getSegment(payload.getBlob(), segment);
+      if (content == null) {
+        // the reply changed since the first segment; the requester will probe again
+        Log.d(TAG, "No segment " + segment + " of version " + version + " for " + peerIp);
+        return;
       }
 
-      Blob payload = new Blob(num + response); // num + ("\nprefix1\nprefix2...")
-      data.setContent(payload);
-
-      face.putData(data);
-      Log.d(TAG, "Send data for: " + interest.getName().toString());
+      int lastSegment = ProbeReply.getSegmentCount(payload.getBlob()) - 1;
+      face.putData(makeData(new Name(interestName), content, Name.Component.fromSegment(lastSegment)));
     } catch (Exception e) {
-      e.printStackTrace();
+      Log.e(TAG, "Unable to serve segment " + interestName.toUri() + ": " + e.getMessage());
+    }
+  }
+
+  private static Data makeData(Name name, Blob content, Name.Component finalBlockId) {
+    Data data = new Data();
+    data.setName(name);
+    MetaInfo metaInfo = new MetaInfo();
+    metaInfo.setFreshnessPeriod(DATA_LIFE_TIME);
+    if (finalBlockId != null) {
+      metaInfo.setFinalBlockId(finalBlockId);
     }
+    data.setMetaInfo(metaInfo);
+    data.setContent(content);
+    return data;
   }
 }
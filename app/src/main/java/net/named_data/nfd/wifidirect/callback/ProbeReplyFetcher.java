@@ -0,0 +1,196 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.callback;
+
+import android.util.Log;
+
+import net.named_data.jndn.Data;
+import net.named_data.jndn.Face;
+import net.named_data.jndn.Interest;
+import net.named_data.jndn.Name;
+import net.named_data.jndn.OnData;
+import net.named_data.jndn.OnTimeout;
+import net.named_data.jndn.encoding.EncodingException;
+import net.named_data.jndn.util.Blob;
+import net.named_data.nfd.wifidirect.utils.NDNController;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Fetches the remaining segments of a segmented probe reply.
+ * <p>
+ * Started with segment 0, whose name is /.../probe/<known version>/<version>/<segment 0>
+ * and whose FinalBlockId gives the last segment. Up to WINDOW segment Interests are
+ * outstanding at a time, and a segment that times out is asked for once more before
+ * the fetch is given up. The callbacks are called on the thread processing the face
+ * events.
+ */
+public class ProbeReplyFetcher implements OnData, OnTimeout {
+
+  public interface Callback {
+    /**
+     * @param content the segments of the reply, joined in order
+     */
+    void onComplete(Blob content);
+
+    void onError(String reason);
+  }
+
+  private static final String TAG = "ProbeReplyFetcher";
+  private static final int WINDOW = 4;
+  private static final int MAX_RETRIES = 1;
+
+  private final Face mFace;
+  private final Name mVersionedName;
+  private final Callback mCallback;
+  private Blob[] mSegments;
+  private int[] mRetries;
+  private int mNextSegment = 1;
+  private int mNumReceived = 0;
+  private boolean mIsDone = false;
+
+  public ProbeReplyFetcher(Face face, Data firstSegment, Callback callback) {
+    mFace = face;
+    mVersionedName = firstSegment.getName().getPrefix(-1);
+    mCallback = callback;
+
+    int lastSegment = 0;
+    try {
+      if (firstSegment.getName().get(-1).toSegment() != 0) {
+        throw new EncodingException("first Data is not segment 0");
+      }
+      if (firstSegment.getMetaInfo().getFinalBlockId().getValue().size() > 0) {
+        lastSegment = (int) firstSegment.getMetaInfo().getFinalBlockId().toSegment();
+      }
+    } catch (EncodingException e) {
+      Log.e(TAG, "Invalid segment " + firstSegment.getName() + ": " + e.getMessage());
+      lastSegment = -1;
+    }
+
+    if (lastSegment >= 0) {
+      mSegments = new Blob[lastSegment + 1];
+      mRetries = new int[lastSegment + 1];
+      mSegments[0] = firstSegment.getContent();
+      mNumReceived = 1;
+    }
+  }
+
+  /**
+   * Expresses the Interests for the first window of segments, or completes right away
+   * if the reply fits in one segment.
+   */
+  public synchronized void start() {
+    if (mSegments == null) {
+      finish(null, "invalid first segment " + mVersionedName);
+      return;
+    }
+    if (mNumReceived == mSegments.length) {
+      finish(join(), null);
+      return;
+    }
+    while (mNextSegment < mSegments.length && mNextSegment <= WINDOW) {
+      express(mNextSegment++);
+    }
+  }
+
+  @Override
+  public synchronized void onData(Interest interest, Data data) {
+    if (mIsDone) {
+      return;
+    }
+    int segment;
+    try {
+      segment = (int) data.getName().get(-1).toSegment();
+    } catch (EncodingException e) {
+      finish(null, "invalid segment " + data.getName());
+      return;
+    }
+    if (segment < 0 || segment >= mSegments.length) {
+      finish(null, "segment " + segment + " beyond the last segment " + (mSegments.length - 1));
+      return;
+    }
+    if (mSegments[segment] != null) {
+      return;
+    }
+
+    mSegments[segment] = data.getContent();
+    ++mNumReceived;
+    if (mNumReceived == mSegments.length) {
+      finish(join(), null);
+    } else if (mNextSegment < mSegments.length) {
+      express(mNextSegment++);
+    }
+  }
+
+  @Override
+  public synchronized void onTimeout(Interest interest) {
+    if (mIsDone) {
+      return;
+    }
+    int segment;
+    try {
+      segment = (int) interest.getName().get(-1).toSegment();
+    } catch (EncodingException e) {
+      return;
+    }
+    if (mRetries[segment] >= MAX_RETRIES) {
+      finish(null, "segment " + segment + " of " + mVersionedName + " timed out");
+      return;
+    }
+    ++mRetries[segment];
+    Log.d(TAG, "Retrying segment " + segment + " of " + mVersionedName);
+    express(segment);
+  }
+
+  private void express(int segment) {
+    Interest interest = new Interest(new Name(mVersionedName).appendSegment(segment));
+    interest.setMustBeFresh(true);
+    interest.setInterestLifetimeMilliseconds(NDNController.PROBE_INTEREST_LIFETIME);
+    try {
+      mFace.expressInterest(interest, this, this);
+    } catch (IOException e) {
+      finish(null, "unable to express " + interest.getName() + ": " + e.getMessage());
+    }
+  }
+
+  private Blob join() {
+    int size = 0;
+    for (Blob segment : mSegments) {
+      size += segment.size();
+    }
+    ByteBuffer content = ByteBuffer.allocate(size);
+    for (Blob segment : mSegments) {
+      content.put(segment.buf());
+    }
+    content.flip();
+    return new Blob(content, false);
+  }
+
+  private void finish(Blob content, String reason) {
+    mIsDone = true;
+    if (content != null) {
+      mCallback.onComplete(content);
+    } else {
+      Log.e(TAG, "Fetching probe reply failed: " + reason);
+      mCallback.onError(reason);
+    }
+  }
+}
@@ -0,0 +1,276 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.model;
+
+import com.intel.jndn.management.types.FaceStatus;
+import com.intel.jndn.management.types.FibEntry;
+import com.intel.jndn.management.types.NextHopRecord;
+
+import net.named_data.jndn.util.Blob;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed answer of this device to probe Interests.
+ * <p>
+ * update() is given the FIB and face list fetched elsewhere (the periodic consistency
+ * check, or a refresh after this device changed faces or routes) and keeps, for each
+ * data prefix, the existing faces it is forwarded to and the number of WiFi Direct hops
+ * to where it is served through each of them: 0 through a face that is not towards a
+ * peer (e.g. a local application), one more than the peer advertised otherwise. The
+ * structure, and everything derived from it, is only rebuilt when that view changed.
+ * From it, the prefixes advertised to a requester and the encoded reply payload are
+ * computed on first use and cached per requesting face, so that repeated probes are
+ * served from memory without any management round trip.
+ * <p>
+ * Routing loops are suppressed by split horizon: routes through the requester are not
+ * counted in what it is told, and a prefix whose shortest route leads through the
+ * requester is left out altogether, so that it never routes back through this device.
+ * Prefixes that are maxHops or more hops away are not advertised at all, which bounds
+ * how far a prefix spreads and how long a loop through other devices can keep a
+ * withdrawn prefix alive.
+ */
+public class AdvertisementCache {
+
+  /**
+   * One view of the FIB, never modified after creation.
+   */
+  private static final class State {
+    final long generation;
+    // data prefix -> { existing face it is forwarded to : hop count through that face }
+    final Map<String, Map<Integer, Integer>> nextHops;
+    final int maxHops;
+    final Map<Integer, Map<String, Integer>> prefixesByRequesterFace = new ConcurrentHashMap<>();
+
+    State(long generation, Map<String, Map<Integer, Integer>> nextHops, int maxHops) {
+      this.generation = generation;
+      this.nextHops = nextHops;
+      this.maxHops = maxHops;
+    }
+  }
+
+  /**
+   * Encoded reply to a probe.
+   */
+  public static final class Payload {
+    private final long generation;
+    private final int requesterFaceId;
+    private final long knownVersion;
+    private final AdvertisementLog log;
+    private final long version;
+    private final Blob blob;
+
+    private Payload(long generation, int requesterFaceId, long knownVersion, AdvertisementLog log,
+                    long version, Blob blob) {
+      this.generation = generation;
+      this.requesterFaceId = requesterFaceId;
+      this.knownVersion = knownVersion;
+      this.log = log;
+      this.version = version;
+      this.blob = blob;
+    }
+
+    /**
+     * @return version of the advertisement in the reply, -1 for the text reply
+     */
+    public long getVersion() {
+      return version;
+    }
+
+    public Blob getBlob() {
+      return blob;
+    }
+  }
+
+  private volatile State state = null;
+  private final Map<String, Payload> payloads = new ConcurrentHashMap<>();   // by requester IP
+
+  /**
+   * @return whether update() has been called at least once
+   */
+  public boolean isReady() {
+    return state != null;
+  }
+
+  /**
+   * @return number of the current advertisement, incremented on each rebuild; 0 before
+   * the first update()
+   */
+  public long getGeneration() {
+    State current = state;
+    return current == null ? 0 : current.generation;
+  }
+
+  /**
+   * Rebuilds the advertisement if the data prefixes, their faces or hop counts, or
+   * maxHops changed.
+   *
+   * @param peerAdvertisements { face towards a peer : prefix -> hop count advertised by the peer }
+   * @param maxHops            prefixes this many hops or further away are not advertised
+   * @return true if the advertisement was rebuilt
+   */
+  public synchronized boolean update(List<FibEntry> fibEntries, List<FaceStatus> faceStatuses,
+                                     Map<Integer, Map<String, Integer>> peerAdvertisements, int maxHops) {
+    HashSet<Integer> faceIds = new HashSet<>(faceStatuses.size());
+    for (FaceStatus faceStatus : faceStatuses) {
+      faceIds.add(faceStatus.getFaceId());
+    }
+
+    Map<String, Map<Integer, Integer>> nextHops = new HashMap<>();
+    for (FibEntry fibEntry : fibEntries) {
+      String prefix = fibEntry.getPrefix().toString();
+      if (prefix.startsWith("/localhop") || prefix.startsWith("/localhost")) {
+        continue;
+      }
+      Map<Integer, Integer> prefixFaces = new HashMap<>();
+      for (NextHopRecord nextHopRecord : fibEntry.getNextHopRecords()) {
+        int faceId = nextHopRecord.getFaceId();
+        if (faceIds.contains(faceId)) {
+          Map<String, Integer> peerAdvertisement = peerAdvertisements.get(faceId);
+          Integer peerHops = peerAdvertisement == null ? null : peerAdvertisement.get(prefix);
+          // a route towards a peer that no longer advertises the prefix is about to go away,
+          // so it counts as out of range
+          prefixFaces.put(faceId, peerAdvertisement == null ? 0 : (peerHops == null ? maxHops : peerHops + 1));
+        }
+      }
+      if (!prefixFaces.isEmpty()) {
+        nextHops.put(prefix, prefixFaces);
+      }
+    }
+
+    State current = state;
+    if (current != null && current.nextHops.equals(nextHops) && current.maxHops == maxHops) {
+      return false;
+    }
+    state = new State(current == null ? 1 : current.generation + 1, nextHops, maxHops);
+    return true;
+  }
+
+  /**
+   * @param requesterFaceId face towards the requester, whose own prefixes are not
+   *                        advertised back to it; -1 if there is none yet
+   * @return the prefixes advertised to the requester, with their hop counts
+   */
+  public Map<String, Integer> getAdvertisedPrefixes(int requesterFaceId) {
+    return getAdvertisedPrefixes(state, requesterFaceId);
+  }
+
+  /**
+   * Returns the reply payload for a probe, from the cache if the advertisement, the
+   * requester's face and known version and its log are the same as for the last probe.
+   *
+   * @param knownVersion version the requester has, or -1 for the legacy text reply
+   * @param log          versioned advertisement of the requester, unused for the text reply
+   */
+  public Payload getPayload(String requesterIp, int requesterFaceId, long knownVersion, AdvertisementLog log) {
+    State current = state;
+    Payload cached = payloads.get(requesterIp);
+    if (cached != null && cached.generation == current.generation &&
+      cached.requesterFaceId == requesterFaceId && cached.knownVersion == knownVersion && cached.log == log) {
+      return cached;
+    }
+
+    Map<String, Integer> prefixes = getAdvertisedPrefixes(current, requesterFaceId);
+    Payload payload;
+    if (knownVersion < 0) {
+      payload = new Payload(current.generation, requesterFaceId, knownVersion, null, -1,
+        makeTextPayload(prefixes.keySet()));
+    } else {
+      log.update(prefixes);
+      ProbeReply reply = log.makeReply(knownVersion);
+      payload = new Payload(current.generation, requesterFaceId, knownVersion, log,
+        reply.getVersion(), reply.wireEncode());
+    }
+    payloads.put(requesterIp, payload);
+    return payload;
+  }
+
+  /**
+   * Returns the payload last built for the requester, for serving its further segments.
+   *
+   * @return the payload, or null if the last payload built for the requester is not the
+   * reply from knownVersion to version
+   */
+  public Payload getLastPayload(String requesterIp, long knownVersion, long version) {
+    Payload cached = payloads.get(requesterIp);
+    if (cached == null || cached.knownVersion != knownVersion || cached.version != version) {
+      return null;
+    }
+    return cached;
+  }
+
+  /**
+   * Drops the cached payload of the requester, e.g. when it leaves the group.
+   */
+  public void forget(String requesterIp) {
+    payloads.remove(requesterIp);
+  }
+
+  public void clear() {
+    payloads.clear();
+  }
+
+  private static Map<String, Integer> getAdvertisedPrefixes(State current, int requesterFaceId) {
+    Map<String, Integer> prefixes = current.prefixesByRequesterFace.get(requesterFaceId);
+    if (prefixes != null) {
+      return prefixes;
+    }
+
+    HashMap<String, Integer> result = new HashMap<>();
+    for (Map.Entry<String, Map<Integer, Integer>> entry : current.nextHops.entrySet()) {
+      int hopsThroughRequester = Integer.MAX_VALUE;
+      int hops = Integer.MAX_VALUE;
+      for (Map.Entry<Integer, Integer> nextHop : entry.getValue().entrySet()) {
+        if (nextHop.getKey() == requesterFaceId) {
+          hopsThroughRequester = nextHop.getValue();
+        } else {
+          hops = Math.min(hops, nextHop.getValue());
+        }
+      }
+      // split horizon: leave the prefix out when the shortest route is through the requester
+      if (hops < current.maxHops && hops <= hopsThroughRequester) {
+        result.put(entry.getKey(), hops);
+      }
+    }
+    prefixes = Collections.unmodifiableMap(result);
+    current.prefixesByRequesterFace.put(requesterFaceId, prefixes);
+    return prefixes;
+  }
+
+  /**
+   * Formats the reply for requesters that do not send a version:
+   * num + ("\nprefix1\nprefix2...").
+   */
+  private static Blob makeTextPayload(Set<String> prefixes) {
+    // the text reply carries no hop counts
+    StringBuilder response = new StringBuilder();
+    response.append(prefixes.size());
+    for (String pre : prefixes) {
+      response.append("\n").append(pre);
+    }
+    return new Blob(response.toString());
+  }
+}
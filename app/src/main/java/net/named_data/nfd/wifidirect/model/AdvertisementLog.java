@@ -0,0 +1,129 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.model;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Versioned history of the prefixes, with their hop counts, advertised to one
+ * requesting peer.
+ * <p>
+ * Every change of the advertised prefixes or hop counts increments the version and
+ * records the prefixes it touched. makeReply() answers a probe from the version the
+ * requester already has: UNCHANGED if it is current, a delta of the prefixes touched
+ * since then if they are still in the history, and the full set otherwise (unknown or
+ * too old version, or a delta larger than the set itself). A touched prefix is sent as
+ * added with its current hop count if it is still advertised, and as removed otherwise.
+ * <p>
+ * Versions start at the wall-clock time in ms when the log is created, so they keep
+ * growing across restarts of the app and a requester never mistakes a version of a
+ * previous run for a current one.
+ */
+public class AdvertisementLog {
+  private static final int MAX_HISTORY = 16;
+
+  private static class Delta {
+    final long baseVersion;
+    final Set<String> touched;
+
+    Delta(long baseVersion, Set<String> touched) {
+      this.baseVersion = baseVersion;
+      this.touched = touched;
+    }
+  }
+
+  private Map<String, Integer> prefixes = Collections.emptyMap();   // prefix -> hop count
+  private long version = System.currentTimeMillis();
+  private final ArrayDeque<Delta> history = new ArrayDeque<>();   // oldest first
+
+  /**
+   * Records current as the advertised prefixes, as a new version if they changed.
+   *
+   * @return the version of current
+   */
+  public synchronized long update(Map<String, Integer> current) {
+    if (current.equals(prefixes)) {
+      return version;
+    }
+
+    Set<String> touched = new HashSet<>();
+    for (Map.Entry<String, Integer> entry : current.entrySet()) {
+      if (!entry.getValue().equals(prefixes.get(entry.getKey()))) {
+        touched.add(entry.getKey());
+      }
+    }
+    for (String prefix : prefixes.keySet()) {
+      if (!current.containsKey(prefix)) {
+        touched.add(prefix);
+      }
+    }
+
+    history.addLast(new Delta(version, touched));
+    if (history.size() > MAX_HISTORY) {
+      history.removeFirst();
+    }
+    prefixes = Collections.unmodifiableMap(new HashMap<>(current));
+    ++version;
+    return version;
+  }
+
+  public synchronized long getVersion() {
+    return version;
+  }
+
+  /**
+   * @param knownVersion version the requester has, 0 if it has none
+   */
+  public synchronized ProbeReply makeReply(long knownVersion) {
+    if (knownVersion == version) {
+      return ProbeReply.unchanged(version);
+    }
+    if (history.isEmpty() || knownVersion < history.peekFirst().baseVersion || knownVersion > version) {
+      return ProbeReply.full(version, prefixes);
+    }
+
+    // the prefixes touched from knownVersion to the current version, as they are now
+    Map<String, Integer> added = new HashMap<>();
+    Set<String> removed = new HashSet<>();
+    for (Delta delta : history) {
+      if (delta.baseVersion < knownVersion) {
+        continue;
+      }
+      for (String prefix : delta.touched) {
+        Integer hopCount = prefixes.get(prefix);
+        if (hopCount != null) {
+          added.put(prefix, hopCount);
+        } else {
+          removed.add(prefix);
+        }
+      }
+    }
+
+    if (added.size() + removed.size() >= prefixes.size()) {
+      return ProbeReply.full(version, prefixes);
+    }
+    return ProbeReply.delta(knownVersion, version, added, removed);
+  }
+}
@@ -0,0 +1,117 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.model;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * WiFi Direct devices from the last peer list, keyed by device address.
+ * <p>
+ * update() compares a new peer list with the previous one and reports only the
+ * differences, so that a peers-changed broadcast that changed nothing, which is the
+ * common case during discovery, costs a single pass over the list. Used from the main
+ * thread that receives peer lists, and cleared from others, hence synchronized.
+ */
+public class DiscoveredPeers {
+
+  /**
+   * Receives the differences found by update(), in the order of the new peer list and
+   * then the devices that left.
+   */
+  public interface Listener {
+    void onPeerJoined(WifiP2pDevice device);
+
+    void onPeerLeft(WifiP2pDevice device);
+
+    /**
+     * @param device    the device from the new peer list
+     * @param oldStatus status of the device in the previous peer list
+     */
+    void onPeerStatusChanged(WifiP2pDevice device, int oldStatus);
+  }
+
+  private Map<String, WifiP2pDevice> devices = new LinkedHashMap<>();
+  private int numConnected = 0;
+
+  /**
+   * Replaces the peer list, reporting the devices that joined, left or changed status.
+   *
+   * @return whether any device joined, left or changed status
+   */
+  public synchronized boolean update(Collection<WifiP2pDevice> newDevices, Listener listener) {
+    Map<String, WifiP2pDevice> previous = devices;
+    Map<String, WifiP2pDevice> current = new LinkedHashMap<>(newDevices.size() * 2);
+    boolean isChanged = false;
+    numConnected = 0;
+    for (WifiP2pDevice device : newDevices) {
+      current.put(device.deviceAddress, device);
+      if (device.status == WifiP2pDevice.CONNECTED) {
+        ++numConnected;
+      }
+      WifiP2pDevice old = previous.remove(device.deviceAddress);
+      if (old == null) {
+        listener.onPeerJoined(device);
+        isChanged = true;
+      } else if (old.status != device.status) {
+        listener.onPeerStatusChanged(device, old.status);
+        isChanged = true;
+      }
+    }
+    // what is left of the previous list is gone
+    for (WifiP2pDevice device : previous.values()) {
+      listener.onPeerLeft(device);
+      isChanged = true;
+    }
+    devices = current;
+    return isChanged;
+  }
+
+  /**
+   * @return the devices of the last peer list, in its order
+   */
+  public synchronized List<WifiP2pDevice> getDevices() {
+    return new ArrayList<>(devices.values());
+  }
+
+  public synchronized int size() {
+    return devices.size();
+  }
+
+  /**
+   * @return whether any device of the last peer list is connected to this device
+   */
+  public synchronized boolean hasConnectedDevice() {
+    return numConnected > 0;
+  }
+
+  /**
+   * Forgets all devices, without reporting them as left.
+   */
+  public synchronized void clear() {
+    devices = new LinkedHashMap<>();
+    numConnected = 0;
+  }
+}
@@ -0,0 +1,119 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.model;
+
+/**
+ * When to scan for WiFi Direct peers next.
+ * <p>
+ * Without connected peers, scans run at the minimum interval. Once connected, every
+ * scan doubles the interval, up to the maximum, as a stable group only needs occasional
+ * scans to notice new devices. Scanning is suspended while data flows through the
+ * group, because a scan takes the radio off the group channel, until no traffic was seen
+ * for the suspend period. Losing a peer brings the interval back to the minimum and
+ * makes a scan due right away.
+ * <p>
+ * A scan the framework started keeps the radio busy for about two minutes, so each scan is
+ * stopped after the scan window, or as soon as traffic suspends scanning. The interval
+ * between scans is then time the radio spends on the group channel.
+ * <p>
+ * All times are in ms, e.g. from SystemClock.elapsedRealtime().
+ */
+public class DiscoverySchedule {
+  private final long minInterval;
+  private final long maxInterval;
+  private final long suspendPeriod;
+  private final long scanWindow;
+
+  private long interval;
+  private long nextScanTime;
+  private long suspendedUntil = 0;
+  private long scanEndTime = 0;
+  private boolean isScanning = false;
+
+  /**
+   * @param minInterval   interval without connected peers, or after losing one
+   * @param maxInterval   interval reached while the group stays the same
+   * @param suspendPeriod how long scanning stays suspended after traffic was seen
+   * @param scanWindow    how long a scan runs before it is stopped
+   * @param now           current time
+   */
+  public DiscoverySchedule(long minInterval, long maxInterval, long suspendPeriod, long scanWindow, long now) {
+    this.minInterval = minInterval;
+    this.maxInterval = maxInterval;
+    this.suspendPeriod = suspendPeriod;
+    this.scanWindow = scanWindow;
+    this.interval = minInterval;
+    this.nextScanTime = now;
+  }
+
+  /**
+   * @return whether a scan should be started now
+   */
+  public synchronized boolean isDue(long now) {
+    return now >= nextScanTime && now >= suspendedUntil;
+  }
+
+  /**
+   * @param hasPeers whether this device is connected to any peer
+   */
+  public synchronized void onScanStarted(long now, boolean hasPeers) {
+    interval = hasPeers ? Math.min(interval * 2, maxInterval) : minInterval;
+    nextScanTime = now + interval;
+    scanEndTime = now + scanWindow;
+    isScanning = true;
+  }
+
+  /**
+   * @return whether the running scan should be stopped now, as its window is over or
+   *         scanning is suspended
+   */
+  public synchronized boolean shouldStopScan(long now) {
+    return isScanning && (now >= scanEndTime || now < suspendedUntil);
+  }
+
+  public synchronized void onScanStopped() {
+    isScanning = false;
+  }
+
+  /**
+   * Suspends scanning, as data is flowing through the group.
+   */
+  public synchronized void onTraffic(long now) {
+    suspendedUntil = now + suspendPeriod;
+  }
+
+  /**
+   * Scans again right away, at the minimum interval, e.g. after losing a peer or when
+   * discovery starts.
+   */
+  public synchronized void reset(long now) {
+    interval = minInterval;
+    nextScanTime = now;
+    suspendedUntil = 0;
+  }
+
+  public synchronized boolean isSuspended(long now) {
+    return now < suspendedUntil;
+  }
+
+  public synchronized long getInterval() {
+    return interval;
+  }
+}
@@ -0,0 +1,156 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.model;
+
+/**
+ * Ranks this device as a WiFi Direct group owner, from its capabilities.
+ * <p>
+ * The group owner relays all traffic between the other members of the group and
+ * answers most probes, so the device best able to carry that load should become the
+ * owner. Each capability is normalized to [0, 1] and the score is their weighted
+ * average; the weights are given to the constructor. Group owner negotiation picks
+ * the device with the higher intent, so the score is mapped linearly onto the intents
+ * from MIN_INTENT to MAX_INTENT. A device on a low battery that is not charging never
+ * asks to be the owner. Only the device that initiates the connection sets its intent;
+ * the accepting device negotiates with the system default intent.
+ */
+public class GroupOwnerPolicy {
+
+  /**
+   * Capabilities of this device, sampled when a connection is initiated.
+   */
+  public static final class Capabilities {
+    private final double batteryLevel;
+    private final boolean isCharging;
+    private final int numCpuCores;
+    private final boolean isLowRamDevice;
+    private final long forwardingRate;
+    private final int numAdvertisedPrefixes;
+
+    /**
+     * @param batteryLevel          battery level in [0, 1], or -1 if unknown
+     * @param isCharging            whether the device is plugged in
+     * @param numCpuCores           number of available processors
+     * @param isLowRamDevice        whether the system considers the device low on memory
+     * @param forwardingRate        bytes/s currently forwarded through faces of connected peers
+     * @param numAdvertisedPrefixes data prefixes this device would advertise to its peers
+     */
+    public Capabilities(double batteryLevel, boolean isCharging, int numCpuCores, boolean isLowRamDevice,
+                        long forwardingRate, int numAdvertisedPrefixes) {
+      this.batteryLevel = batteryLevel;
+      this.isCharging = isCharging;
+      this.numCpuCores = numCpuCores;
+      this.isLowRamDevice = isLowRamDevice;
+      this.forwardingRate = forwardingRate;
+      this.numAdvertisedPrefixes = numAdvertisedPrefixes;
+    }
+
+    @Override
+    public String toString() {
+      return "battery=" + batteryLevel + (isCharging ? " (charging)" : "") +
+        ", cores=" + numCpuCores + (isLowRamDevice ? " (low ram)" : "") +
+        ", forwarding=" + forwardingRate + "B/s" +
+        ", prefixes=" + numAdvertisedPrefixes;
+    }
+  }
+
+  // range of WifiP2pConfig.groupOwnerIntent
+  public static final int MIN_INTENT = 0;
+  public static final int MAX_INTENT = 15;
+
+  private static final double LOW_BATTERY_LEVEL = 0.15;
+  private static final int CPU_CORES_SCALE = 8;            // this many cores or more score 1
+  private static final long FORWARDING_RATE_SCALE = 1 << 20;   // in bytes/s, this rate or more leaves no spare capacity
+  private static final int PREFIXES_SCALE = 16;            // this many prefixes or more score 1
+
+  public static final GroupOwnerPolicy DEFAULT = new GroupOwnerPolicy(3, 3, 1, 2, 1);
+  /** Lets the devices with the most battery to spare relay, for groups away from power */
+  public static final GroupOwnerPolicy SAVE_BATTERY = new GroupOwnerPolicy(6, 4, 0, 1, 0);
+  /** Lets fast devices that forward little traffic already relay, for groups moving a lot of data */
+  public static final GroupOwnerPolicy THROUGHPUT = new GroupOwnerPolicy(1, 1, 3, 3, 1);
+
+  // in the order of the group owner policy setting
+  private static final GroupOwnerPolicy[] POLICIES = {DEFAULT, SAVE_BATTERY, THROUGHPUT};
+
+  private final double batteryWeight;
+  private final double chargingWeight;
+  private final double cpuWeight;
+  private final double spareCapacityWeight;
+  private final double prefixesWeight;
+
+  /**
+   * Weights of the capabilities in the score, 0 to ignore one. At least one weight
+   * must be positive.
+   *
+   * @param batteryWeight       weight of the battery level
+   * @param chargingWeight      weight of being plugged in
+   * @param cpuWeight           weight of the number of cores, halved on low memory devices
+   * @param spareCapacityWeight weight of forwarding little traffic already
+   * @param prefixesWeight      weight of the number of advertised prefixes, i.e. of
+   *                            already being where data is served or routed
+   */
+  public GroupOwnerPolicy(double batteryWeight, double chargingWeight, double cpuWeight,
+                          double spareCapacityWeight, double prefixesWeight) {
+    if (batteryWeight < 0 || chargingWeight < 0 || cpuWeight < 0 || spareCapacityWeight < 0 || prefixesWeight < 0 ||
+      batteryWeight + chargingWeight + cpuWeight + spareCapacityWeight + prefixesWeight <= 0) {
+      throw new IllegalArgumentException("weights must not be negative, and not all 0");
+    }
+    this.batteryWeight = batteryWeight;
+    this.chargingWeight = chargingWeight;
+    this.cpuWeight = cpuWeight;
+    this.spareCapacityWeight = spareCapacityWeight;
+    this.prefixesWeight = prefixesWeight;
+  }
+
+  /**
+   * @param index index of the policy in the group owner policy setting
+   * @return the policy, or DEFAULT if there is no policy at index
+   */
+  public static GroupOwnerPolicy fromIndex(int index) {
+    return index >= 0 && index < POLICIES.length ? POLICIES[index] : DEFAULT;
+  }
+
+  /**
+   * @return score in [0, 1], higher for a better group owner
+   */
+  public double getScore(Capabilities capabilities) {
+    double battery = capabilities.batteryLevel < 0 ? 0.5 : Math.min(capabilities.batteryLevel, 1);
+    double charging = capabilities.isCharging ? 1 : 0;
+    double cpu = Math.min((double) capabilities.numCpuCores / CPU_CORES_SCALE, 1) *
+      (capabilities.isLowRamDevice ? 0.5 : 1);
+    double spareCapacity = 1 - Math.min((double) capabilities.forwardingRate / FORWARDING_RATE_SCALE, 1);
+    double prefixes = Math.min((double) capabilities.numAdvertisedPrefixes / PREFIXES_SCALE, 1);
+
+    return (batteryWeight * battery + chargingWeight * charging + cpuWeight * cpu +
+      spareCapacityWeight * spareCapacity + prefixesWeight * prefixes) /
+      (batteryWeight + chargingWeight + cpuWeight + spareCapacityWeight + prefixesWeight);
+  }
+
+  /**
+   * @return value for WifiP2pConfig.groupOwnerIntent
+   */
+  public int getGroupOwnerIntent(Capabilities capabilities) {
+    if (!capabilities.isCharging && capabilities.batteryLevel >= 0 &&
+      capabilities.batteryLevel < LOW_BATTERY_LEVEL) {
+      return MIN_INTENT;
+    }
+    return MIN_INTENT + (int) Math.round(getScore(capabilities) * (MAX_INTENT - MIN_INTENT));
+  }
+}
@@ -0,0 +1,101 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.model;
+
+/**
+ * Smoothed round-trip time and loss rate of the probes to one peer, and the route cost
+ * derived from them.
+ * <p>
+ * RTT is smoothed as in TCP (RFC 6298): srtt with gain 1/8 and rttvar with gain 1/4.
+ * Loss is a moving average with gain 1/8 of 1 per timed out probe and 0 per reply.
+ * The cost is the RTO-like srtt + 4 * rttvar in ms, inflated by the expected number of
+ * transmissions 1 / (1 - loss), so that a lossy link with a short RTT does not win over
+ * a clean one.
+ */
+public class LinkQuality {
+  private static final double RTT_GAIN = 0.125;
+  private static final double RTTVAR_GAIN = 0.25;
+  private static final double LOSS_GAIN = 0.125;
+  private static final double MAX_LOSS = 0.9;
+  private static final int MAX_COST = 10000;
+  // cost before the first RTT sample; the first probe reply provides one before any route is registered
+  public static final int DEFAULT_COST = 100;
+  // a cost must change by this much (absolute in ms, or relative) before routes are updated
+  private static final int MIN_COST_CHANGE = 10;
+  private static final double MIN_RELATIVE_COST_CHANGE = 0.25;
+
+  private double srtt = -1;
+  private double rttvar = 0;
+  private double loss = 0;
+
+  public synchronized void onRttSample(long rtt) {
+    if (srtt < 0) {
+      srtt = rtt;
+      rttvar = rtt / 2.0;
+    } else {
+      rttvar = (1 - RTTVAR_GAIN) * rttvar + RTTVAR_GAIN * Math.abs(srtt - rtt);
+      srtt = (1 - RTT_GAIN) * srtt + RTT_GAIN * rtt;
+    }
+    loss = (1 - LOSS_GAIN) * loss;
+  }
+
+  public synchronized void onLoss() {
+    loss = (1 - LOSS_GAIN) * loss + LOSS_GAIN;
+  }
+
+  /**
+   * @return smoothed RTT in ms, -1 before the first sample
+   */
+  public synchronized double getSrtt() {
+    return srtt;
+  }
+
+  public synchronized double getRttvar() {
+    return rttvar;
+  }
+
+  public synchronized double getLoss() {
+    return loss;
+  }
+
+  /**
+   * @return route cost for prefixes reached through the peer
+   */
+  public synchronized int getCost() {
+    if (srtt < 0) {
+      return DEFAULT_COST;
+    }
+    double cost = (srtt + 4 * rttvar) / (1 - Math.min(loss, MAX_LOSS));
+    return (int) Math.min(Math.round(cost), MAX_COST);
+  }
+
+  /**
+   * @return whether routes registered with cost registeredCost should be updated to cost
+   */
+  public static boolean isSignificantChange(int registeredCost, int cost) {
+    int change = Math.abs(cost - registeredCost);
+    return change >= MIN_COST_CHANGE && change >= MIN_RELATIVE_COST_CHANGE * registeredCost;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("srtt=%.1fms, rttvar=%.1fms, loss=%.2f", srtt, rttvar, loss);
+  }
+}
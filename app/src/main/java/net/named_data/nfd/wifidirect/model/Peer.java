@@ -20,17 +20,39 @@
 package net.named_data.nfd.wifidirect.model;
 
 import android.net.wifi.p2p.WifiP2pDevice;
+import android.os.SystemClock;
+
+import net.named_data.nfd.wifidirect.utils.NDNController;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a WifiDirect Peer.
  */
 public class Peer {
 
-  // members
-  private WifiP2pDevice device;
-  private String ipAddress;
-  private int faceId;
-  private int numProbeTimeouts = 0;   // number of timeouts while probing prefixes from this peer
+  // members, volatile because peers are shared through PeerRegistry snapshots
+  private volatile WifiP2pDevice device;
+  private volatile String ipAddress;
+  private volatile int faceId;
+  private volatile int numProbeTimeouts = 0;   // number of timeouts while probing prefixes from this peer
+  // { prefix : hop count } in the last probe reply, null before the first one
+  private volatile Map<String, Integer> advertisedPrefixes = null;
+  private volatile long advertisedVersion = 0;   // version of advertisedPrefixes, 0 if unknown
+  private volatile boolean announcesChanges = false;   // whether changes of the peer are announced over multicast
+  private volatile int routeCost = -1;   // cost of the routes registered towards the peer, -1 before the first one
+  private volatile long routesRefreshTime = 0;   // when all routes towards the peer were last registered
+  // data prefixes registered towards the face of the peer, reconciled with the RIB only occasionally
+  private final Set<String> registeredPrefixes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final LinkQuality linkQuality = new LinkQuality();
+  private volatile TransportSelector transportSelector =
+    new TransportSelector(NDNController.URI_TRANSPORT_PREFIX, SystemClock.elapsedRealtime());
+  private final ProbeSchedule probeSchedule = new ProbeSchedule(NDNController.PROBE_DELAY,
+    NDNController.PROBE_MAX_INTERVAL, 2 * NDNController.PROBE_INTEREST_LIFETIME, SystemClock.elapsedRealtime());
 
   public Peer() {
   }
@@ -67,6 +89,95 @@ public class Peer {
     this.numProbeTimeouts = numProbeTimeouts;
   }
 
+  public Map<String, Integer> getAdvertisedPrefixes() {
+    return advertisedPrefixes;
+  }
+
+  public void setAdvertisedPrefixes(Map<String, Integer> advertisedPrefixes) {
+    this.advertisedPrefixes = advertisedPrefixes;
+  }
+
+  /**
+   * @param maxHops maximum number of hops between this device and where a prefix is served
+   * @return the advertised prefixes that are within maxHops of this device
+   */
+  public Set<String> getRoutablePrefixes(int maxHops) {
+    Map<String, Integer> advertised = advertisedPrefixes;
+    Set<String> prefixes = new HashSet<>();
+    if (advertised != null) {
+      for (Map.Entry<String, Integer> entry : advertised.entrySet()) {
+        if (entry.getValue() + 1 <= maxHops) {
+          prefixes.add(entry.getKey());
+        }
+      }
+    }
+    return prefixes;
+  }
+
+  /**
+   * @return hop count advertised for prefix, 0 if not advertised
+   */
+  public int getAdvertisedHops(String prefix) {
+    Map<String, Integer> advertised = advertisedPrefixes;
+    Integer hops = advertised == null ? null : advertised.get(prefix);
+    return hops == null ? 0 : hops;
+  }
+
+  public long getAdvertisedVersion() {
+    return advertisedVersion;
+  }
+
+  public void setAdvertisedVersion(long advertisedVersion) {
+    this.advertisedVersion = advertisedVersion;
+  }
+
+  public boolean getAnnouncesChanges() {
+    return announcesChanges;
+  }
+
+  public void setAnnouncesChanges(boolean announcesChanges) {
+    this.announcesChanges = announcesChanges;
+  }
+
+  public int getRouteCost() {
+    return routeCost;
+  }
+
+  public void setRouteCost(int routeCost) {
+    this.routeCost = routeCost;
+  }
+
+  public long getRoutesRefreshTime() {
+    return routesRefreshTime;
+  }
+
+  public void setRoutesRefreshTime(long routesRefreshTime) {
+    this.routesRefreshTime = routesRefreshTime;
+  }
+
+  /**
+   * @return the data prefixes registered towards the peer, modifiable and thread-safe
+   */
+  public Set<String> getRegisteredPrefixes() {
+    return registeredPrefixes;
+  }
+
+  public LinkQuality getLinkQuality() {
+    return linkQuality;
+  }
+
+  public ProbeSchedule getProbeSchedule() {
+    return probeSchedule;
+  }
+
+  public TransportSelector getTransportSelector() {
+    return transportSelector;
+  }
+
+  public void setTransportSelector(TransportSelector transportSelector) {
+    this.transportSelector = transportSelector;
+  }
+
   @Override
   public String toString() {
     return "Peer{" +
@@ -75,6 +186,8 @@ public class Peer {
       ", ipAddress=\"" + ipAddress + "\"" +
       ", faceId=" + faceId +
       ", numProbeTimeouts=" + numProbeTimeouts +
+      ", " + linkQuality +
+      ", routeCost=" + routeCost +
       '}';
   }
 }
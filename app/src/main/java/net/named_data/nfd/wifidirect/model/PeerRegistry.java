@@ -0,0 +1,170 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Table of connected peers, keyed by their WiFi Direct IP address.
+ * <p>
+ * The table is published as immutable, versioned snapshots. Every update copies the
+ * current map, applies the change and swaps the snapshot in with compare-and-set, so
+ * readers on any thread can iterate a snapshot without locking and without risk of
+ * ConcurrentModificationException. Peer counts are small, so the copy is cheap.
+ */
+public class PeerRegistry {
+
+  /**
+   * Immutable view of the table at one version.
+   */
+  public static final class Snapshot {
+    private final long version;
+    private final Map<String, Peer> peers;
+
+    private Snapshot(long version, Map<String, Peer> peers) {
+      this.version = version;
+      this.peers = Collections.unmodifiableMap(peers);
+    }
+
+    /**
+     * @return version of this snapshot, incremented by every change of the table
+     */
+    public long getVersion() {
+      return version;
+    }
+
+    public Peer get(String peerIp) {
+      return peers.get(peerIp);
+    }
+
+    public Set<String> getIps() {
+      return peers.keySet();
+    }
+
+    public Collection<Peer> getPeers() {
+      return peers.values();
+    }
+
+    public Map<String, Peer> asMap() {
+      return peers;
+    }
+
+    public int size() {
+      return peers.size();
+    }
+
+    public boolean isEmpty() {
+      return peers.isEmpty();
+    }
+  }
+
+  /**
+   * Selects peers to remove in removeIf().
+   */
+  public interface Filter {
+    boolean matches(String peerIp, Peer peer);
+  }
+
+  private final AtomicReference<Snapshot> current =
+    new AtomicReference<>(new Snapshot(0, new HashMap<String, Peer>()));
+
+  /**
+   * @return the current snapshot; it never changes, later updates publish new snapshots
+   */
+  public Snapshot snapshot() {
+    return current.get();
+  }
+
+  /**
+   * Adds the peer, replacing any peer logged with the same IP address.
+   */
+  public void put(String peerIp, Peer peer) {
+    while (true) {
+      Snapshot old = current.get();
+      Map<String, Peer> peers = new HashMap<>(old.peers);
+      peers.put(peerIp, peer);
+      if (current.compareAndSet(old, new Snapshot(old.version + 1, peers))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return the removed peer, or null if there was no peer with that IP address
+   */
+  public Peer remove(String peerIp) {
+    while (true) {
+      Snapshot old = current.get();
+      if (!old.peers.containsKey(peerIp)) {
+        return null;
+      }
+      Map<String, Peer> peers = new HashMap<>(old.peers);
+      Peer removed = peers.remove(peerIp);
+      if (current.compareAndSet(old, new Snapshot(old.version + 1, peers))) {
+        return removed;
+      }
+    }
+  }
+
+  /**
+   * Removes every peer matched by filter in a single update.
+   *
+   * @return the removed peers
+   */
+  public List<Peer> removeIf(Filter filter) {
+    while (true) {
+      Snapshot old = current.get();
+      Map<String, Peer> peers = new HashMap<>(old.peers);
+      List<Peer> removed = new ArrayList<>();
+      for (Map.Entry<String, Peer> entry : old.peers.entrySet()) {
+        if (filter.matches(entry.getKey(), entry.getValue())) {
+          removed.add(peers.remove(entry.getKey()));
+        }
+      }
+      if (removed.isEmpty()) {
+        return removed;
+      }
+      if (current.compareAndSet(old, new Snapshot(old.version + 1, peers))) {
+        return removed;
+      }
+    }
+  }
+
+  /**
+   * Removes all peers.
+   *
+   * @return the snapshot that was replaced
+   */
+  public Snapshot clear() {
+    while (true) {
+      Snapshot old = current.get();
+      if (current.compareAndSet(old, new Snapshot(old.version + 1, new HashMap<String, Peer>()))) {
+        return old;
+      }
+    }
+  }
+}
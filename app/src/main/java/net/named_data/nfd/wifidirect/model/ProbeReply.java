@@ -0,0 +1,290 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.model;
+
+import net.named_data.jndn.Name;
+import net.named_data.jndn.encoding.EncodingException;
+import net.named_data.jndn.encoding.WireFormat;
+import net.named_data.jndn.encoding.tlv.Tlv;
+import net.named_data.jndn.encoding.tlv.TlvDecoder;
+import net.named_data.jndn.encoding.tlv.TlvEncoder;
+import net.named_data.jndn.util.Blob;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Content of the reply to a versioned probe Interest.
+ * <pre>
+ * ProbeReply      ::= PROBE-REPLY-TYPE TLV-LENGTH
+ *                       ReplyType
+ *                       Version
+ *                       BaseVersion?      ; DELTA only: the version the delta applies to
+ *                       AddedPrefixes?    ; DELTA: added prefixes, FULL: all prefixes
+ *                       RemovedPrefixes?  ; DELTA only
+ * ReplyType       ::= REPLY-TYPE-TYPE TLV-LENGTH nonNegativeInteger (UNCHANGED, DELTA or FULL)
+ * Version         ::= VERSION-TYPE TLV-LENGTH nonNegativeInteger
+ * BaseVersion     ::= BASE-VERSION-TYPE TLV-LENGTH nonNegativeInteger
+ * AddedPrefixes   ::= ADDED-PREFIXES-TYPE TLV-LENGTH CompressedName*
+ * RemovedPrefixes ::= REMOVED-PREFIXES-TYPE TLV-LENGTH CompressedName*
+ * CompressedName  ::= COMPRESSED-NAME-TYPE TLV-LENGTH
+ *                       SharedComponents  ; number of leading components shared with the previous name
+ *                       Name              ; the remaining components
+ *                       HopCount?         ; added prefixes only, absent if 0
+ * HopCount        ::= HOP-COUNT-TYPE TLV-LENGTH nonNegativeInteger
+ * </pre>
+ * The hop count of a prefix is the number of WiFi Direct hops from the replying device
+ * to where the prefix is served, 0 if the device serves it itself or reaches it by
+ * other means than WiFi Direct.
+ * Names in a list are sorted, so that names under a common prefix are adjacent and
+ * only the first one spells it out.
+ * <p>
+ * The encoded reply may be larger than a Data packet. It is then served as segments
+ * of SEGMENT_SIZE bytes (see getSegment()), which the requester fetches and joins
+ * before decoding.
+ */
+public class ProbeReply {
+  public static final int UNCHANGED = 0;
+  public static final int DELTA = 1;
+  public static final int FULL = 2;
+  private static final String[] TYPE_NAMES = {"UNCHANGED", "DELTA", "FULL"};
+
+  // application-specific TLV types
+  private static final int TLV_PROBE_REPLY = 200;
+  private static final int TLV_REPLY_TYPE = 201;
+  private static final int TLV_VERSION = 202;
+  private static final int TLV_BASE_VERSION = 203;
+  private static final int TLV_ADDED_PREFIXES = 204;
+  private static final int TLV_REMOVED_PREFIXES = 205;
+  private static final int TLV_COMPRESSED_NAME = 206;
+  private static final int TLV_SHARED_COMPONENTS = 207;
+  private static final int TLV_HOP_COUNT = 208;
+
+  // content bytes per Data packet, leaving room for name and signature below the packet size limit
+  public static final int SEGMENT_SIZE = 4096;
+
+  private final int type;
+  private final long version;
+  private final long baseVersion;
+  private final Map<String, Integer> added;   // prefix -> hop count
+  private final Set<String> removed;
+
+  private ProbeReply(int type, long version, long baseVersion, Map<String, Integer> added, Set<String> removed) {
+    this.type = type;
+    this.version = version;
+    this.baseVersion = baseVersion;
+    this.added = Collections.unmodifiableMap(added);
+    this.removed = Collections.unmodifiableSet(removed);
+  }
+
+  public static ProbeReply unchanged(long version) {
+    return new ProbeReply(UNCHANGED, version, version, new HashMap<String, Integer>(), new HashSet<String>());
+  }
+
+  public static ProbeReply delta(long baseVersion, long version, Map<String, Integer> added, Set<String> removed) {
+    return new ProbeReply(DELTA, version, baseVersion, new HashMap<>(added), new HashSet<>(removed));
+  }
+
+  public static ProbeReply full(long version, Map<String, Integer> prefixes) {
+    return new ProbeReply(FULL, version, version, new HashMap<>(prefixes), new HashSet<String>());
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return for a DELTA, the version it applies to
+   */
+  public long getBaseVersion() {
+    return baseVersion;
+  }
+
+  /**
+   * @return for a DELTA, the added prefixes and those whose hop count changed; for a FULL
+   * reply, all prefixes; each with its hop count
+   */
+  public Map<String, Integer> getAdded() {
+    return added;
+  }
+
+  public Set<String> getRemoved() {
+    return removed;
+  }
+
+  public Blob wireEncode() {
+    TlvEncoder encoder = new TlvEncoder(256);
+    int saveLength = encoder.getLength();
+
+    // TlvEncoder writes backwards, so write the fields in reverse order
+    writePrefixes(encoder, TLV_REMOVED_PREFIXES, removed, null);
+    writePrefixes(encoder, TLV_ADDED_PREFIXES, added.keySet(), added);
+    if (type == DELTA) {
+      encoder.writeNonNegativeIntegerTlv(TLV_BASE_VERSION, baseVersion);
+    }
+    encoder.writeNonNegativeIntegerTlv(TLV_VERSION, version);
+    encoder.writeNonNegativeIntegerTlv(TLV_REPLY_TYPE, type);
+    encoder.writeTypeAndLength(TLV_PROBE_REPLY, encoder.getLength() - saveLength);
+
+    return new Blob(encoder.getOutput(), false);
+  }
+
+  /**
+   * @return whether content starts like a ProbeReply, as opposed to the legacy text reply
+   */
+  public static boolean isProbeReply(ByteBuffer content) {
+    // the legacy reply starts with an ASCII digit, far below TLV_PROBE_REPLY
+    return content.remaining() > 0 && (content.get(content.position()) & 0xff) == TLV_PROBE_REPLY;
+  }
+
+  public static ProbeReply wireDecode(ByteBuffer content) throws EncodingException {
+    TlvDecoder decoder = new TlvDecoder(content);
+    int endOffset = decoder.readNestedTlvsStart(TLV_PROBE_REPLY);
+
+    int type = (int) decoder.readNonNegativeIntegerTlv(TLV_REPLY_TYPE);
+    if (type != UNCHANGED && type != DELTA && type != FULL) {
+      throw new EncodingException("Unknown probe reply type " + type);
+    }
+    long version = decoder.readNonNegativeIntegerTlv(TLV_VERSION);
+    long baseVersion = decoder.readOptionalNonNegativeIntegerTlv(TLV_BASE_VERSION, endOffset);
+
+    Map<String, Integer> added = readPrefixes(decoder, TLV_ADDED_PREFIXES, endOffset);
+    Set<String> removed = readPrefixes(decoder, TLV_REMOVED_PREFIXES, endOffset).keySet();
+    decoder.finishNestedTlvs(endOffset);
+
+    if (type == DELTA && baseVersion < 0) {
+      throw new EncodingException("Delta probe reply without base version");
+    }
+    return new ProbeReply(type, version, type == DELTA ? baseVersion : version, added, removed);
+  }
+
+  /**
+   * @return the number of segments needed for payload
+   */
+  public static int getSegmentCount(Blob payload) {
+    return Math.max(1, (payload.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+  }
+
+  /**
+   * @return segment number segment of payload, or null if there is no such segment
+   */
+  public static Blob getSegment(Blob payload, int segment) {
+    if (segment < 0 || segment >= getSegmentCount(payload)) {
+      return null;
+    }
+    ByteBuffer buffer = payload.buf();
+    int start = buffer.position() + segment * SEGMENT_SIZE;
+    buffer.position(start);
+    buffer.limit(Math.min(start + SEGMENT_SIZE, buffer.limit()));
+    return new Blob(buffer, false);
+  }
+
+  /**
+   * @param hopCounts hop count of each prefix, or null to write none
+   */
+  private static void writePrefixes(TlvEncoder encoder, int type, Set<String> prefixes,
+                                    Map<String, Integer> hopCounts) {
+    if (prefixes.isEmpty()) {
+      return;
+    }
+
+    // sorted names, each with the prefix string it came from
+    TreeMap<Name, String> sorted = new TreeMap<>();
+    for (String prefix : prefixes) {
+      sorted.put(new Name(prefix), prefix);
+    }
+    List<Name> names = new ArrayList<>(sorted.keySet());
+
+    int[] nSharedComponents = new int[names.size()];
+    for (int i = 1; i < names.size(); ++i) {
+      Name previous = names.get(i - 1);
+      Name name = names.get(i);
+      int nShared = 0;
+      while (nShared < previous.size() && nShared < name.size() &&
+        previous.get(nShared).equals(name.get(nShared))) {
+        ++nShared;
+      }
+      nSharedComponents[i] = nShared;
+    }
+
+    int saveLength = encoder.getLength();
+    for (int i = names.size() - 1; i >= 0; --i) {
+      int saveEntryLength = encoder.getLength();
+      Name suffix = names.get(i).getSubName(nSharedComponents[i]);
+      Integer hopCount = hopCounts == null ? null : hopCounts.get(sorted.get(names.get(i)));
+      if (hopCount != null && hopCount > 0) {
+        encoder.writeNonNegativeIntegerTlv(TLV_HOP_COUNT, hopCount);
+      }
+      encoder.writeBuffer(WireFormat.getDefaultWireFormat().encodeName(suffix).buf());
+      encoder.writeNonNegativeIntegerTlv(TLV_SHARED_COMPONENTS, nSharedComponents[i]);
+      encoder.writeTypeAndLength(TLV_COMPRESSED_NAME, encoder.getLength() - saveEntryLength);
+    }
+    encoder.writeTypeAndLength(type, encoder.getLength() - saveLength);
+  }
+
+  private static Map<String, Integer> readPrefixes(TlvDecoder decoder, int type, int endOffset)
+    throws EncodingException {
+    Map<String, Integer> prefixes = new HashMap<>();
+    if (!decoder.peekType(type, endOffset)) {
+      return prefixes;
+    }
+
+    int listEndOffset = decoder.readNestedTlvsStart(type);
+    Name previous = new Name();
+    while (decoder.peekType(TLV_COMPRESSED_NAME, listEndOffset)) {
+      int entryEndOffset = decoder.readNestedTlvsStart(TLV_COMPRESSED_NAME);
+      int nShared = (int) decoder.readNonNegativeIntegerTlv(TLV_SHARED_COMPONENTS);
+      if (nShared > previous.size()) {
+        throw new EncodingException("Compressed name shares more components than the previous name has");
+      }
+
+      int nameOffset = decoder.getOffset();
+      decoder.skipTlv(Tlv.Name);
+      Name suffix = new Name();
+      WireFormat.getDefaultWireFormat().decodeName(suffix, decoder.getSlice(nameOffset, decoder.getOffset()));
+      long hopCount = decoder.readOptionalNonNegativeIntegerTlv(TLV_HOP_COUNT, entryEndOffset);
+      decoder.finishNestedTlvs(entryEndOffset);
+
+      Name name = previous.getPrefix(nShared).append(suffix);
+      prefixes.put(name.toUri(), (int) Math.max(hopCount, 0));
+      previous = name;
+    }
+    decoder.finishNestedTlvs(listEndOffset);
+    return prefixes;
+  }
+
+  @Override
+  public String toString() {
+    return "ProbeReply{" + TYPE_NAMES[type] + ", version=" + version +
+      (type == DELTA ? ", baseVersion=" + baseVersion : "") +
+      ", added=" + added.size() + ", removed=" + removed.size() + '}';
+  }
+}
@@ -0,0 +1,124 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.model;
+
+import java.util.Random;
+
+/**
+ * When to send the next probe Interest to one peer.
+ * <p>
+ * A new schedule probes at the minimum interval. Every reply that shows the same
+ * advertisement as the previous one doubles the interval, up to the maximum; a changed
+ * advertisement or a timeout brings it back to the minimum, so changes and failures are
+ * noticed quickly while a stable peer is only probed occasionally. Each interval is
+ * randomized by +/- JITTER so that the clients of a group owner do not probe in lockstep.
+ * <p>
+ * All times are in ms, e.g. from SystemClock.elapsedRealtime().
+ */
+public class ProbeSchedule {
+  private static final double JITTER = 0.25;
+  private static final Random random = new Random();
+
+  private final long minInterval;
+  private long maxInterval;
+  private final long outstandingTimeout;
+
+  private long interval;
+  private long nextProbeTime;
+  private long lastSentTime = 0;
+  private boolean isOutstanding = false;
+
+  /**
+   * @param minInterval        interval right after creation, a change or a timeout
+   * @param maxInterval        interval reached when the advertisement stays unchanged
+   * @param outstandingTimeout after this time without reply or timeout, a probe is
+   *                           considered lost (e.g. because the face was recreated)
+   * @param now                current time
+   */
+  public ProbeSchedule(long minInterval, long maxInterval, long outstandingTimeout, long now) {
+    this.minInterval = minInterval;
+    this.maxInterval = maxInterval;
+    this.outstandingTimeout = outstandingTimeout;
+    this.interval = minInterval;
+    this.nextProbeTime = now;
+  }
+
+  /**
+   * @return whether a probe should be sent now
+   */
+  public synchronized boolean isDue(long now) {
+    if (isOutstanding && now - lastSentTime < outstandingTimeout) {
+      return false;
+    }
+    return now >= nextProbeTime;
+  }
+
+  public synchronized void onProbeSent(long now) {
+    isOutstanding = true;
+    lastSentTime = now;
+  }
+
+  /**
+   * @return when the last probe was sent, to measure its round-trip time
+   */
+  public synchronized long getLastSentTime() {
+    return lastSentTime;
+  }
+
+  /**
+   * @param isChanged whether the reply advertises something different from the previous one
+   */
+  public synchronized void onReply(long now, boolean isChanged) {
+    isOutstanding = false;
+    interval = isChanged ? minInterval : Math.min(interval * 2, maxInterval);
+    nextProbeTime = now + jitter(interval);
+  }
+
+  public synchronized void onTimeout(long now) {
+    isOutstanding = false;
+    interval = minInterval;
+    nextProbeTime = now + jitter(interval);
+  }
+
+  /**
+   * Probes again as soon as possible, at the minimum interval.
+   */
+  public synchronized void reset(long now) {
+    interval = minInterval;
+    nextProbeTime = now;
+  }
+
+  /**
+   * Changes the interval reached when the advertisement stays unchanged, e.g. when the
+   * peer announces its changes and probes are only needed to notice it going away.
+   */
+  public synchronized void setMaxInterval(long maxInterval) {
+    this.maxInterval = maxInterval;
+    interval = Math.min(interval, maxInterval);
+  }
+
+  public synchronized long getInterval() {
+    return interval;
+  }
+
+  private static long jitter(long interval) {
+    return (long) (interval * (1 - JITTER + 2 * JITTER * random.nextDouble()));
+  }
+}
@@ -0,0 +1,166 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.model;
+
+import net.named_data.nfd.wifidirect.utils.NDNController;
+
+/**
+ * Transport of the face towards one peer, and when to migrate it.
+ * <p>
+ * Faces start on UDP. A face that carries traffic over a lossy link moves to TCP, so
+ * that losses are repaired by TCP on the link instead of by consumers re-expressing
+ * Interests end to end. A TCP face whose link became clean moves back to UDP, which
+ * has no head-of-line blocking and no connection overhead. Loss is the probe loss rate
+ * of the peer's LinkQuality, and the traffic rate comes from the byte counters of the
+ * face. After a migration the transport is kept for a dwell time, doubled every time
+ * the face moves back to TCP, so that a link at the edge of the thresholds does not
+ * flap; the dwell time is reset after a long period on UDP.
+ * <p>
+ * The face replaced by a migration is retired: its routes are gone, but it is kept
+ * for the drain period so that Data for Interests already forwarded through it can
+ * still arrive.
+ */
+public class TransportSelector {
+  private static final double HIGH_LOSS = 0.1;          // UDP -> TCP at or above this loss rate
+  private static final double LOW_LOSS = 0.02;          // TCP -> UDP at or below this loss rate
+  private static final long MIN_TCP_RATE = 4096;        // in bytes/s, below this NDN retransmissions are cheap
+  private static final long MIN_DWELL = 60000;          // in ms
+  private static final long MAX_DWELL = 960000;         // in ms
+  public static final long DRAIN_PERIOD = 4 * NDNController.PROBE_INTEREST_LIFETIME;   // in ms
+
+  private String uriPrefix;
+  private long migrationTime;
+  private long dwell = MIN_DWELL;
+  private boolean isMigrating = false;
+
+  private int sampledFaceId = -1;
+  private long sampledBytes = -1;
+  private long sampleTime = 0;
+  private long rate = 0;
+
+  private int retiredFaceId = -1;
+  private long retiredTime = 0;
+
+  /**
+   * @param uriPrefix transport of the current face, e.g. NDNController.URI_UDP_PREFIX
+   * @param now       current time in ms
+   */
+  public TransportSelector(String uriPrefix, long now) {
+    this.uriPrefix = uriPrefix;
+    this.migrationTime = now;
+  }
+
+  public synchronized String getUriPrefix() {
+    return uriPrefix;
+  }
+
+  /**
+   * @return bytes/s through the face between the last two samples
+   */
+  public synchronized long getRate() {
+    return rate;
+  }
+
+  /**
+   * Records the byte counters of the face towards the peer.
+   *
+   * @param faceId face towards the peer; the rate restarts when it changed
+   * @param bytes  bytes in and out of the face
+   */
+  public synchronized void onFaceCounters(long now, int faceId, long bytes) {
+    if (faceId == sampledFaceId && bytes >= sampledBytes && now > sampleTime) {
+      rate = (bytes - sampledBytes) * 1000 / (now - sampleTime);
+    } else {
+      rate = 0;
+    }
+    sampledFaceId = faceId;
+    sampledBytes = bytes;
+    sampleTime = now;
+  }
+
+  /**
+   * Decides whether the face should migrate and, if so, marks the migration as started.
+   *
+   * @param loss probe loss rate of the peer
+   * @return transport to migrate to, or null to keep the current one
+   */
+  public synchronized String startMigration(long now, double loss) {
+    if (isMigrating || now - migrationTime < dwell) {
+      return null;
+    }
+    String target = null;
+    if (NDNController.URI_UDP_PREFIX.equals(uriPrefix)) {
+      if (loss >= HIGH_LOSS && rate >= MIN_TCP_RATE) {
+        target = NDNController.URI_TCP_PREFIX;
+      }
+    } else if (loss <= LOW_LOSS) {
+      target = NDNController.URI_UDP_PREFIX;
+    }
+    isMigrating = target != null;
+    return target;
+  }
+
+  /**
+   * @param uriPrefix transport of the new face
+   * @param oldFaceId face replaced by the new one, retired for DRAIN_PERIOD
+   */
+  public synchronized void onMigrated(long now, String uriPrefix, int oldFaceId) {
+    if (NDNController.URI_TCP_PREFIX.equals(uriPrefix)) {
+      // a link that was on UDP for long is not flapping
+      dwell = now - migrationTime > MAX_DWELL ? MIN_DWELL : Math.min(dwell * 2, MAX_DWELL);
+    }
+    this.uriPrefix = uriPrefix;
+    migrationTime = now;
+    isMigrating = false;
+    retiredFaceId = oldFaceId;
+    retiredTime = now;
+  }
+
+  public synchronized void onMigrationFailed(long now) {
+    // retried after another dwell time
+    migrationTime = now;
+    isMigrating = false;
+  }
+
+  /**
+   * Takes the retired face, once it has drained.
+   *
+   * @return the retired face, or -1 if there is none or it is still draining
+   */
+  public synchronized int takeDrainedFace(long now) {
+    if (retiredFaceId == -1 || now - retiredTime < DRAIN_PERIOD) {
+      return -1;
+    }
+    int faceId = retiredFaceId;
+    retiredFaceId = -1;
+    return faceId;
+  }
+
+  /**
+   * Takes the retired face, drained or not, e.g. when the peer is removed.
+   *
+   * @return the retired face, or -1 if there is none
+   */
+  public synchronized int takeRetiredFace() {
+    int faceId = retiredFaceId;
+    retiredFaceId = -1;
+    return faceId;
+  }
+}
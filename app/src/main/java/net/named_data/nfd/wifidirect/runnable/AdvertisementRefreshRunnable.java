@@ -1,6 +1,6 @@
 /* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
 /**
- * Copyright (c) 2015-2017 Regents of the University of California
+ * Copyright (c) 2015-2019 Regents of the University of California
  * <p>
  * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
  * See AUTHORS.md for complete list of NFD Android authors and contributors.
@@ -19,17 +19,30 @@
 
 package net.named_data.nfd.wifidirect.runnable;
 
+import android.util.Log;
+
+import com.intel.jndn.management.ManagementException;
+
 import net.named_data.nfd.wifidirect.utils.NDNController;
 
-public class FaceEventProcessRunnable implements Runnable {
-  private static final String TAG = "FaceEventProcess";
+/**
+ * Fetches the FIB and face list from NFD and updates the advertisement served to
+ * probing peers.
+ */
+public class AdvertisementRefreshRunnable implements Runnable {
+  private static final String TAG = "AdvertisementRefresh";
 
   @Override
   public void run() {
+    NDNController controller = NDNController.getInstance();
     try {
-      NDNController.getInstance().getLocalHostFace().processEvents();
-    } catch (Exception e) {
-      e.printStackTrace();
+      if (controller.updateAdvertisement(controller.getNfdcHelper().fibList(),
+        controller.getNfdcHelper().faceList())) {
+        Log.d(TAG, "Advertisement changed.");
+        controller.announceAdvertisementChange();
+      }
+    } catch (ManagementException me) {
+      Log.e(TAG, "Unable to retrieve FIB or face list: " + me.getMessage());
     }
   }
 }
@@ -19,17 +19,32 @@
 
 package net.named_data.nfd.wifidirect.runnable;
 
+import android.os.SystemClock;
+
+import net.named_data.nfd.wifidirect.model.DiscoverySchedule;
 import net.named_data.nfd.wifidirect.utils.NDNController;
 
 /**
- * Initiates peer discovery.
+ * Initiates peer discovery when the DiscoverySchedule says a scan is due, and stops
+ * it again when the scan window is over or scanning is suspended.
  */
 
 public class DiscoverPeersRunnable implements Runnable {
   @Override
   public void run() {
+    NDNController controller = NDNController.getInstance();
+    DiscoverySchedule schedule = controller.getDiscoverySchedule();
+    long now = SystemClock.elapsedRealtime();
+    if (schedule.shouldStopScan(now)) {
+      schedule.onScanStopped();
+      controller.stopPeerDiscovery();
+    }
+    if (!schedule.isDue(now)) {
+      return;
+    }
+    schedule.onScanStarted(now, !controller.isNumOfConnectedPeersZero());
     try {
-      NDNController.getInstance().discoverPeers();
+      controller.discoverPeers();
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -23,6 +23,7 @@ import android.util.Log;
 
 import com.intel.jndn.management.ManagementException;
 import com.intel.jndn.management.types.FaceStatus;
+import com.intel.jndn.management.types.FibEntry;
 import com.intel.jndn.management.types.RibEntry;
 
 import net.named_data.nfd.wifidirect.callback.GenericCallback;
@@ -56,6 +57,28 @@ public class FaceAndRouteConsistencyRunnable implements Runnable {
 
       List<RibEntry> routeStatus = NDNController.getInstance().getNfdcHelper().ribList();
 
+      // keep the advertisement served to probing peers in sync with routes registered by others
+      // (e.g. local applications)
+      List<FibEntry> fibEntries = NDNController.getInstance().getNfdcHelper().fibList();
+      if (NDNController.getInstance().updateAdvertisement(fibEntries, faceStatuses)) {
+        NDNController.getInstance().announceAdvertisementChange();
+      }
+
+      // follow the multicast probing setting and the multicast face of the current interface
+      NDNController.getInstance().updateMulticastFace(faceStatuses);
+
+      // peer discovery pauses while data flows through the group
+      NDNController.getInstance().updateTrafficActivity(faceStatuses);
+
+      // move peer faces between UDP and TCP as their links change
+      NDNController.getInstance().updateTransports(faceStatuses);
+
+      // occasionally check the routes towards peers, otherwise only known locally
+      NDNController.getInstance().reconcilePeerRoutes(routeStatus);
+
+      // queue depth and latency of the lanes, to spot one falling behind
+      NDNController.getInstance().logSchedulerStatsIfDue();
+
       // put face ids in an easy to access manner
       HashSet<Integer> nfdActiveFaceIds = new HashSet<>(faceStatuses.size());
       for (FaceStatus faceStatus : faceStatuses) {
@@ -73,7 +96,8 @@ public class FaceAndRouteConsistencyRunnable implements Runnable {
           // create the face but not destroy the logged peers
           peersWithoutFace.add(ip);
           Log.d(TAG, "create face for IP " + ip);
-          NDNController.getInstance().createFace(ip, NDNController.URI_TRANSPORT_PREFIX, new GenericCallback() {
+          String uriPrefix = connectedPeers.get(ip).getTransportSelector().getUriPrefix();
+          NDNController.getInstance().createFace(ip, uriPrefix, new GenericCallback() {
             @Override
             public void doJob() {
               Log.d(TAG, "Registering localhop for: " + ip);
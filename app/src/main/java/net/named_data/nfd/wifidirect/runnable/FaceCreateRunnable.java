@@ -19,12 +19,15 @@
 
 package net.named_data.nfd.wifidirect.runnable;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.intel.jndn.management.ManagementException;
 
+import net.named_data.nfd.utils.FaceParameters;
 import net.named_data.nfd.wifidirect.callback.GenericCallback;
 import net.named_data.nfd.wifidirect.model.Peer;
+import net.named_data.nfd.wifidirect.model.TransportSelector;
 import net.named_data.nfd.wifidirect.utils.NDNController;
 
 /**
@@ -40,10 +43,19 @@ public class FaceCreateRunnable implements Runnable {
   private String faceUri;
   private NDNController mController = NDNController.getInstance();
   private GenericCallback callback = null;
+  private FaceParameters parameters;
 
   public FaceCreateRunnable(String peerIp, String faceUri) {
+    this(peerIp, faceUri, null);
+  }
+
+  /**
+   * @param parameters link-layer parameters of the face, or null for NFD defaults
+   */
+  public FaceCreateRunnable(String peerIp, String faceUri, FaceParameters parameters) {
     this.peerIp = peerIp;
     this.faceUri = faceUri;
+    this.parameters = parameters;
   }
 
   public void setCallback(GenericCallback callback) {
@@ -57,7 +69,11 @@ public class FaceCreateRunnable implements Runnable {
     try {
       Log.d(TAG, "-------- Inside face create runnable --------");
 
-      faceId = mController.getNfdcHelper().faceCreate(faceUri);
+      if (parameters == null) {
+        faceId = mController.getNfdcHelper().faceCreate(faceUri);
+      } else {
+        faceId = mController.getNfdcHelper().faceCreate(faceUri, parameters);
+      }
 
       Log.d(TAG, "Created Face with Face id: " + faceId);
       if (faceId != -1) {
@@ -66,7 +82,11 @@ public class FaceCreateRunnable implements Runnable {
         Peer peer = new Peer();
         peer.setFaceId(faceId);
         peer.setIpAddress(peerIp);
+        // the face may be recreated on the transport the peer was migrated to
+        String uriPrefix = faceUri.substring(0, faceUri.indexOf("://") + 3);
+        peer.setTransportSelector(new TransportSelector(uriPrefix, SystemClock.elapsedRealtime()));
         mController.logPeer(peerIp, peer);
+        mController.refreshAdvertisement();
 
         // invoke callback, if any
         if (callback != null) {
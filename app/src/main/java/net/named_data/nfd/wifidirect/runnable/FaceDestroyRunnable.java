@@ -44,6 +44,7 @@ public class FaceDestroyRunnable implements Runnable {
       // attempt to destroy Face Id, specified as the first and only parameter
       NDNController.getInstance().getNfdcHelper().faceDestroy(faceId);
       Log.d(TAG, "Successfully destroyed Face with Face id: " + faceId);
+      NDNController.getInstance().refreshAdvertisement();
     } catch (ManagementException me) {
       Log.e(TAG, me.getMessage());
     } catch (Exception e) {
@@ -0,0 +1,105 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.runnable;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.named_data.jndn.ControlParameters;
+import net.named_data.nfd.utils.NfdcHelper;
+import net.named_data.nfd.wifidirect.model.Peer;
+import net.named_data.nfd.wifidirect.utils.NDNController;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves the face towards a peer to another transport, make-before-break.
+ * <p>
+ * The face on the new transport is created and gets all the routes towards the peer
+ * before the peer is switched to it; only then are the routes removed from the old
+ * face. Running on the NFDC lane, no other route change towards the peer interleaves.
+ * Forwarding thus always has a next hop towards the peer, and the old face is kept for
+ * TransportSelector.DRAIN_PERIOD so that Data for Interests forwarded through it
+ * before the switch still arrives.
+ */
+public class FaceMigrateRunnable implements Runnable {
+  private static final String TAG = "FaceMigrateRunnable";
+
+  private final String peerIp;
+  private final String uriPrefix;
+
+  public FaceMigrateRunnable(String peerIp, String uriPrefix) {
+    this.peerIp = peerIp;
+    this.uriPrefix = uriPrefix;
+  }
+
+  @Override
+  public void run() {
+    NDNController controller = NDNController.getInstance();
+    Peer peer = controller.getPeerByIp(peerIp);
+    if (peer == null) {
+      return;
+    }
+    NfdcHelper nfdcHelper = controller.getNfdcHelper();
+    int oldFaceId = peer.getFaceId();
+    try {
+      int newFaceId = nfdcHelper.faceCreate(uriPrefix + peerIp, NDNController.getPeerFaceParameters(uriPrefix));
+      if (newFaceId == -1 || newFaceId == oldFaceId) {
+        throw new Exception("no new face for " + uriPrefix + peerIp);
+      }
+
+      // make: all routes towards the peer through the new face, pipelined
+      List<ControlParameters> routes = controller.makePeerRoutes(peer, newFaceId);
+      boolean[] isRegistered = nfdcHelper.ribRegisterPrefixes(routes);
+      for (int i = 0; i < isRegistered.length; i++) {
+        if (!isRegistered[i]) {
+          Log.e(TAG, "Unable to register " + routes.get(i).getName() + " on face " + newFaceId);
+        }
+      }
+      peer.setFaceId(newFaceId);
+      // the new face has exactly the routable prefixes
+      Set<String> registered = peer.getRegisteredPrefixes();
+      if (peer.getRouteCost() >= 0) {
+        Set<String> routable = peer.getRoutablePrefixes(controller.getMaxHops());
+        registered.retainAll(routable);
+        registered.addAll(routable);
+      } else {
+        registered.clear();
+      }
+      peer.getTransportSelector().onMigrated(SystemClock.elapsedRealtime(), uriPrefix, oldFaceId);
+      Log.d(TAG, "Migrated " + peerIp + " from face " + oldFaceId + " to face " + newFaceId +
+        " (" + uriPrefix + ")");
+
+      // break: the old face loses its routes now, and is destroyed once drained
+      List<ControlParameters> oldRoutes = new ArrayList<>(routes.size());
+      for (ControlParameters route : routes) {
+        // rib/unregister takes no cost, flags or expiration
+        oldRoutes.add(new ControlParameters().setName(route.getName()).setFaceId(oldFaceId));
+      }
+      nfdcHelper.ribUnregisterPrefixes(oldRoutes);
+      controller.refreshAdvertisement();
+    } catch (Exception e) {
+      Log.e(TAG, "Unable to migrate " + peerIp + " to " + uriPrefix + ": " + e.getMessage());
+      peer.getTransportSelector().onMigrationFailed(SystemClock.elapsedRealtime());
+    }
+  }
+}
@@ -19,6 +19,7 @@
 
 package net.named_data.nfd.wifidirect.runnable;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import net.named_data.jndn.Data;
@@ -26,36 +27,87 @@ import net.named_data.jndn.Interest;
 import net.named_data.jndn.Name;
 import net.named_data.jndn.OnData;
 import net.named_data.jndn.OnTimeout;
+import net.named_data.jndn.util.Blob;
 import net.named_data.nfd.wifidirect.callback.ProbeOnData;
+import net.named_data.nfd.wifidirect.callback.ProbeReplyFetcher;
 import net.named_data.nfd.wifidirect.model.Peer;
+import net.named_data.nfd.wifidirect.model.ProbeSchedule;
 import net.named_data.nfd.wifidirect.utils.IPAddress;
 import net.named_data.nfd.wifidirect.utils.NDNController;
 
 import java.io.IOException;
+import java.util.Map;
 
 import static net.named_data.nfd.wifidirect.utils.NDNController.myAddress;
 
 /**
  * Probes network for data prefixes, as specified in protocol.
+ * <p>
+ * Runs every PROBE_DELAY, but only probes the peers whose ProbeSchedule is due, so
+ * that peers with a stable advertisement are probed up to PROBE_MAX_INTERVAL apart.
+ * Peers announcing their changes over the multicast face are probed up to
+ * MULTICAST_PROBE_MAX_INTERVAL apart, mostly to notice that they are gone.
  */
 public class ProbeRunnable implements Runnable {
   private static final String TAG = "ProbeRunnable";
-  //Notice: (this number) * (running interval) should equal to 1 minute
+  //Notice: (this number) * (running interval) should equal to 1 minute; a timeout
+  // brings the probe interval of the peer back to PROBE_DELAY
   private static final int MAX_TIMEOUTS_ALLOWED = 60;
+  private static final int TO_IP_INDEX = 2;   // in /localhop/wifidirect/<toIp>/<fromIp>/probe/<known version>
   private NDNController mController = NDNController.getInstance();
 
   private OnData onData = new OnData() {
     private ProbeOnData probeOnData = new ProbeOnData();
 
     @Override
-    public void onData(Interest interest, Data data) {
+    public void onData(final Interest interest, Data data) {
       Name interestName = interest.getName();
       Log.d(TAG, "Got data for interest " + interestName);
-      String peerIp = interestName.get(interestName.size() - 3).toEscapedString();
-      probeOnData.doJob(interest, data);
-      Peer peer = NDNController.getInstance().getPeerByIp(peerIp);
-      if (peer != null)
-        peer.setNumProbeTimeouts(0);    // peer responded, so reset timeout counter
+      final String peerIp = interestName.get(TO_IP_INDEX).toEscapedString();
+      Peer replyingPeer = NDNController.getInstance().getPeerByIp(peerIp);
+      if (replyingPeer != null) {
+        // measured before the reply is processed, so that routes it adds get the new cost
+        replyingPeer.getLinkQuality().onRttSample(
+          SystemClock.elapsedRealtime() - replyingPeer.getProbeSchedule().getLastSentTime());
+        NDNController.getInstance().updateRouteCost(replyingPeer);
+      }
+      if (data.getName().size() == interestName.size()) {
+        // reply named like the Interest, without version and segment components
+        probeOnData.submit(interest, data.getContent(), onProcessed(peerIp));
+        return;
+      }
+
+      // .../probe/<known version>/<version>/<segment>: fetch the other segments, if any
+      new ProbeReplyFetcher(NDNController.getInstance().getLocalHostFace(), data,
+        new ProbeReplyFetcher.Callback() {
+          @Override
+          public void onComplete(Blob content) {
+            probeOnData.submit(interest, content, onProcessed(peerIp));
+          }
+
+          @Override
+          public void onError(String reason) {
+            Peer peer = NDNController.getInstance().getPeerByIp(peerIp);
+            if (peer != null) {
+              peer.getProbeSchedule().onTimeout(SystemClock.elapsedRealtime());
+              peer.getLinkQuality().onLoss();
+              NDNController.getInstance().updateRouteCost(peer);
+            }
+          }
+        }).start();
+    }
+
+    private ProbeOnData.Callback onProcessed(final String peerIp) {
+      return new ProbeOnData.Callback() {
+        @Override
+        public void onProcessed(boolean isChanged) {
+          Peer peer = NDNController.getInstance().getPeerByIp(peerIp);
+          if (peer != null) {
+            peer.setNumProbeTimeouts(0);    // peer responded, so reset timeout counter
+            peer.getProbeSchedule().onReply(SystemClock.elapsedRealtime(), isChanged);
+          }
+        }
+      };
     }
   };
 
@@ -64,7 +116,7 @@ public class ProbeRunnable implements Runnable {
     public void onTimeout(Interest interest) {
       Name interestName = interest.getName();
       Log.d(TAG, "interest " + interestName + " times out");
-      String peerIp = interestName.get(interestName.size() - 3).toEscapedString();
+      String peerIp = interestName.get(TO_IP_INDEX).toEscapedString();
       Peer peer = NDNController.getInstance().getPeerByIp(peerIp);
       if (peer == null) {
         Log.d(TAG, "No peer information available to track timeout.");
@@ -73,6 +125,9 @@ public class ProbeRunnable implements Runnable {
 
       Log.d(TAG, "Timeout for interest: " + interest.getName().toString() +
         " Attempts: " + (peer.getNumProbeTimeouts() + 1));
+      peer.getProbeSchedule().onTimeout(SystemClock.elapsedRealtime());
+      peer.getLinkQuality().onLoss();
+      NDNController.getInstance().updateRouteCost(peer);
 
       if (peer.getNumProbeTimeouts() + 1 >= MAX_TIMEOUTS_ALLOWED) {
         // This case means, remove a peer which
@@ -115,12 +170,27 @@ public class ProbeRunnable implements Runnable {
         }
 
       } else {
-        for(String ip : NDNController.getInstance().getIpsOfConnectedPeers()) {
+        long now = SystemClock.elapsedRealtime();
+        for (Map.Entry<String, Peer> entry : NDNController.getInstance().getConnectedPeersMap().entrySet()) {
+          String ip = entry.getKey();
+          Peer peer = entry.getValue();
+          ProbeSchedule schedule = peer.getProbeSchedule();
+          schedule.setMaxInterval(peer.getAnnouncesChanges() && mController.isMulticastProbingActive() ?
+            NDNController.MULTICAST_PROBE_MAX_INTERVAL : NDNController.PROBE_MAX_INTERVAL);
+          if (!schedule.isDue(now)) {
+            continue;
+          }
           //send interest to this peer
-          Interest interest = new Interest(new Name(NDNController.PROBE_PREFIX + "/" + ip + "/" + myAddress + "/probe"));
+          // the version we have lets the peer reply with only what changed since
+          Name name = new Name(NDNController.PROBE_PREFIX + "/" + ip + "/" + myAddress + "/probe");
+          name.append(Name.Component.fromNumber(peer.getAdvertisedVersion()));
+          Interest interest = new Interest(name);
           interest.setMustBeFresh(true);
+          // the reply carries its version and segment number after the Interest name
+          interest.setCanBePrefix(true);
           interest.setInterestLifetimeMilliseconds(NDNController.PROBE_INTEREST_LIFETIME);
           Log.d(TAG, "Sending interest: " + interest.getName().toString());
+          schedule.onProbeSent(now);
           NDNController.getInstance().getLocalHostFace().expressInterest(interest, onData, onTimeout);
         }
       }
@@ -40,9 +40,20 @@ public class RibRegisterPrefixRunnable implements Runnable {
   private int cost;
   private boolean childInherit;
   private boolean capture;
+  private long expirationPeriod;
 
   public RibRegisterPrefixRunnable(String prefixToRegister, int faceId, int cost,
                                    boolean childInherit, boolean capture) {
+    this(prefixToRegister, faceId, cost, childInherit, capture, -1);
+  }
+
+  /**
+   * @param expirationPeriod in ms after which NFD removes the route unless it is
+   *                         registered again, or -1 for a route that does not expire
+   */
+  public RibRegisterPrefixRunnable(String prefixToRegister, int faceId, int cost,
+                                   boolean childInherit, boolean capture, long expirationPeriod) {
+    this.expirationPeriod = expirationPeriod;
     this.prefixToRegister = prefixToRegister;
     this.capture = capture;
     this.childInherit = childInherit;
@@ -57,9 +68,12 @@ public class RibRegisterPrefixRunnable implements Runnable {
       flags.setChildInherit(childInherit);
       flags.setCapture(capture);
       NDNController.getInstance().getNfdcHelper().ribRegisterPrefix(new Name(prefixToRegister),
-        faceId, cost, childInherit, capture);
+        faceId, cost, childInherit, capture, expirationPeriod);
 
       Log.d(TAG, "registered rib prefix: " + prefixToRegister);
+      if (!prefixToRegister.startsWith("/localhop") && !prefixToRegister.startsWith("/localhost")) {
+        NDNController.getInstance().refreshAdvertisement();
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
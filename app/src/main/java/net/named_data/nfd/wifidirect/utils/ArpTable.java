@@ -0,0 +1,120 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2017 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.utils;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Snapshot of the ARP cache (/proc/net/arp), parsed once into IP -> MAC and MAC -> IP
+ * maps so that any number of lookups cost one read of the file.
+ * <p>
+ * We assume that the file has this structure:<br>
+ * <br>
+ * IP address       HW type     Flags       HW address            Mask     Device
+ * 192.168.18.11    0x1         0x2         00:04:20:06:55:1a     *        eth0
+ * 192.168.18.36    0x1         0x2         00:22:43:ab:2a:5b     *        eth0
+ * <p>
+ * Snapshots are immutable; take a new one with read() when peers change.
+ */
+public class ArpTable {
+  private static final String TAG = "ArpTable";
+  private static final String ARP_CACHE_PATH = "/proc/net/arp";
+  private static final String P2P_DEVICE = "p2p-p2p0";
+  // IP address, HW address and Device columns; lines without a well-formed MAC (e.g. the header) do not match
+  private static final Pattern ENTRY = Pattern.compile(
+    "^(\\S+)\\s+\\S+\\s+\\S+\\s+(\\p{XDigit}{2}(?::\\p{XDigit}{2}){5})\\s+\\S+\\s+(\\S+)");
+
+  private static final ArpTable EMPTY =
+    new ArpTable(Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap());
+
+  private final Map<String, String> macByIp;
+  private final Map<String, String> p2pIpByMac;   // WiFi Direct entries only
+
+  private ArpTable(Map<String, String> macByIp, Map<String, String> p2pIpByMac) {
+    this.macByIp = macByIp;
+    this.p2pIpByMac = p2pIpByMac;
+  }
+
+  /**
+   * Reads and parses the ARP cache.
+   *
+   * @return the snapshot, empty if the cache cannot be read
+   */
+  public static ArpTable read() {
+    Map<String, String> macByIp = new HashMap<>();
+    Map<String, String> p2pIpByMac = new HashMap<>();
+    BufferedReader br = null;
+    try {
+      br = new BufferedReader(new FileReader(ARP_CACHE_PATH));
+      Matcher matcher = ENTRY.matcher("");
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (!matcher.reset(line).lookingAt()) {
+          continue;
+        }
+        String ip = matcher.group(1);
+        String mac = matcher.group(2);
+        macByIp.put(ip, mac);
+        if (line.indexOf(P2P_DEVICE, matcher.start(3)) >= 0) {
+          p2pIpByMac.put(mac, ip);
+        }
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to read " + ARP_CACHE_PATH + ": " + e.getMessage());
+      return EMPTY;
+    } finally {
+      if (br != null) {
+        try {
+          br.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    return new ArpTable(Collections.unmodifiableMap(macByIp), Collections.unmodifiableMap(p2pIpByMac));
+  }
+
+  /**
+   * @return the MAC of ip, or null if it is not in the snapshot
+   */
+  public String getMac(String ip) {
+    return ip == null ? null : macByIp.get(ip);
+  }
+
+  /**
+   * @return the IP of mac on the WiFi Direct interface, or null if it is not in the snapshot
+   */
+  public String getP2pIp(String mac) {
+    return mac == null ? null : p2pIpByMac.get(mac);
+  }
+
+  public int size() {
+    return macByIp.size();
+  }
+}
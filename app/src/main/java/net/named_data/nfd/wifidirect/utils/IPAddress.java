@@ -19,9 +19,8 @@
 
 package net.named_data.nfd.wifidirect.utils;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
+import android.os.SystemClock;
+
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
@@ -31,8 +30,22 @@ import java.util.Enumeration;
 /**
  * Helps retrieve the current WifiP2p interface IP address.
  * See: http://stackoverflow.com/questions/10053385/how-to-get-each-devices-ip-address-in-wi-fi-direct-scenario
+ * <p>
+ * The address is cached, as enumerating the network interfaces is too costly for the
+ * once a second probe loop. WDBroadcastReceiver invalidates the cache on every WiFi P2P
+ * state or connection change. The absence of an address is only cached for
+ * NO_ADDRESS_CACHE_PERIOD, because a group client gets its address from DHCP some time
+ * after the connection broadcast; an address for ADDRESS_CACHE_PERIOD, so that a missed
+ * disconnect broadcast is still noticed by the probe loop.
  */
 public class IPAddress {
+  private static final long ADDRESS_CACHE_PERIOD = 30000;   // in ms
+  private static final long NO_ADDRESS_CACHE_PERIOD = 5000;   // in ms
+
+  private static final Object cacheLock = new Object();
+  private static String cachedAddress = null;
+  private static long cacheTime = -1;   // when cachedAddress was found, -1 if the cache is invalid
+  private static int cacheGeneration = 0;   // incremented by each invalidation
 
   /**
    * Returns the WiFi Direct (WifiP2p interface) IP address, or null if not available.
@@ -40,21 +53,52 @@ public class IPAddress {
    * @return String representation of the WD Ip address if it exists, otherwise null.
    */
   public static String getLocalIPAddress() {
+    long now = SystemClock.elapsedRealtime();
+    int generation;
+    synchronized (cacheLock) {
+      long cachePeriod = cachedAddress != null ? ADDRESS_CACHE_PERIOD : NO_ADDRESS_CACHE_PERIOD;
+      if (cacheTime >= 0 && now - cacheTime < cachePeriod) {
+        return cachedAddress;
+      }
+      generation = cacheGeneration;
+    }
+
+    String address = findLocalIPAddress();
+    synchronized (cacheLock) {
+      // an invalidation during the search means the result may already be outdated
+      if (generation == cacheGeneration) {
+        cachedAddress = address;
+        cacheTime = now;
+      }
+    }
+    return address;
+  }
+
+  /**
+   * Makes the next getLocalIPAddress() look the address up again, e.g. after the WiFi
+   * P2P connection changed.
+   */
+  public static void invalidateLocalIPAddress() {
+    synchronized (cacheLock) {
+      ++cacheGeneration;
+      cachedAddress = null;
+      cacheTime = -1;
+    }
+  }
+
+  private static String findLocalIPAddress() {
     try {
-      byte[] ip = null;
       for (Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces(); en.hasMoreElements(); ) {
         NetworkInterface intf = en.nextElement();
         for (Enumeration<InetAddress> enumIpAddr = intf.getInetAddresses(); enumIpAddr.hasMoreElements(); ) {
           InetAddress inetAddress = enumIpAddr.nextElement();
-          if (!inetAddress.isLoopbackAddress()) {
-            if (inetAddress instanceof Inet4Address) { // fix for Galaxy Nexus. IPv4 is easy to use :-)
-              ip = inetAddress.getAddress();
-              String niceIp = getDottedDecimalIP(ip);
-              if (niceIp.startsWith("192.168.49")) {  // wifid ip's are all in 192.168.49.x range
-                return niceIp;
-              }
+          // fix for Galaxy Nexus. IPv4 is easy to use :-)
+          if (!inetAddress.isLoopbackAddress() && inetAddress instanceof Inet4Address) {
+            byte[] ip = inetAddress.getAddress();
+            // wifid ip's are all in 192.168.49.x range
+            if ((ip[0] & 0xFF) == 192 && (ip[1] & 0xFF) == 168 && (ip[2] & 0xFF) == 49) {
+              return inetAddress.getHostAddress();
             }
-            //return inetAddress.getHostAddress().toString(); // Galaxy Nexus returns IPv6
           }
         }
       }
@@ -69,90 +113,19 @@ public class IPAddress {
     return null;
   }
 
-  private static String getDottedDecimalIP(byte[] ipAddr) {
-    //convert to dotted decimal notation:
-    String ipAddrStr = "";
-    for (int i = 0; i < ipAddr.length; i++) {
-      if (i > 0) {
-        ipAddrStr += ".";
-      }
-      ipAddrStr += ipAddr[i] & 0xFF;
-    }
-    return ipAddrStr;
-  }
-
   /**
    * Try to extract a hardware MAC address from a given IP address using the
-   * ARP cache (/proc/net/arp).<br>
-   * <br>
-   * We assume that the file has this structure:<br>
-   * <br>
-   * IP address       HW type     Flags       HW address            Mask     Device
-   * 192.168.18.11    0x1         0x2         00:04:20:06:55:1a     *        eth0
-   * 192.168.18.36    0x1         0x2         00:22:43:ab:2a:5b     *        eth0
+   * ARP cache (/proc/net/arp). Reads the whole cache; to look up several addresses,
+   * take one ArpTable snapshot instead.
    *
    * @param ip
    * @return the MAC from the ARP cache
    */
   public static String getMacFromArpCache(String ip) {
-    if (ip == null)
-      return null;
-    BufferedReader br = null;
-    try {
-      br = new BufferedReader(new FileReader("/proc/net/arp"));
-      String line;
-      while ((line = br.readLine()) != null) {
-        String[] splitted = line.split(" +");
-        if (splitted != null && splitted.length >= 4 && ip.equals(splitted[0])) {
-          // Basic sanity check
-          String mac = splitted[3];
-          if (mac.matches("..:..:..:..:..:..")) {
-            return mac;
-          } else {
-            return null;
-          }
-        }
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-    } finally {
-      try {
-        br.close();
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-    return null;
+    return ArpTable.read().getMac(ip);
   }
 
   public static String getIPFromMac(String MAC) {
-    BufferedReader br = null;
-    try {
-      br = new BufferedReader(new FileReader("/proc/net/arp"));
-      String line;
-      while ((line = br.readLine()) != null) {
-
-        String[] splitted = line.split(" +");
-        if (splitted != null && splitted.length >= 4) {
-          // Basic sanity check
-          String device = splitted[5];
-          if (device.matches(".*p2p-p2p0.*")) {
-            String mac = splitted[3];
-            if (mac.matches(MAC)) {
-              return splitted[0];
-            }
-          }
-        }
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-    } finally {
-      try {
-        br.close();
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-    return null;
+    return ArpTable.read().getP2pIp(MAC);
   }
 }
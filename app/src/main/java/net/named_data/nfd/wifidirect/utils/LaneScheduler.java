@@ -0,0 +1,487 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.utils;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scheduler for the background work of NDNController.
+ * <p>
+ * Tasks are submitted to named lanes. Each lane runs its tasks one at a time, in
+ * submission order, on a worker pool shared by all lanes; workers time out when idle,
+ * so a stopped controller holds no threads. A task may carry a key: submitting a task
+ * whose key is already queued (not yet running) in the same lane is coalesced into the
+ * queued one.
+ * <p>
+ * Periodic tasks run with a fixed delay between the end of one run and the start of the
+ * next, and only between start() and stop(). stop() cancels them, while one-shot tasks
+ * already submitted (e.g. destroying faces) still run.
+ * <p>
+ * Each lane counts executed and coalesced tasks, queue depth, the wait between
+ * submission and start and the run time; see getStats() and logStats().
+ */
+public class LaneScheduler {
+  private static final String TAG = "LaneScheduler";
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  public enum Lane {
+    /** event loop of the localhost face, occupies its lane for as long as it runs */
+    FACE_EVENTS,
+    /** Interests and prefix registrations on the localhost face (probing) */
+    LOCAL_FACE,
+    /** face and route management through nfdc */
+    NFDC,
+    /** WiFi Direct discovery and group status checks */
+    GENERAL
+  }
+
+  /**
+   * Handle of a submitted task.
+   */
+  public interface Task {
+    /**
+     * Prevents the task from running again; the current run is interrupted if
+     * mayInterruptIfRunning is true.
+     */
+    void cancel(boolean mayInterruptIfRunning);
+
+    boolean isCancelled();
+  }
+
+  /**
+   * Statistics of one lane since it was created.
+   */
+  public static final class LaneStats {
+    private final Lane lane;
+    private final int queueDepth;
+    private final int maxQueueDepth;
+    private final long nExecuted;
+    private final long nCoalesced;
+    private final double avgWaitMs;
+    private final double maxWaitMs;
+    private final double avgRunMs;
+
+    private LaneStats(Lane lane, int queueDepth, int maxQueueDepth, long nExecuted, long nCoalesced,
+                      double avgWaitMs, double maxWaitMs, double avgRunMs) {
+      this.lane = lane;
+      this.queueDepth = queueDepth;
+      this.maxQueueDepth = maxQueueDepth;
+      this.nExecuted = nExecuted;
+      this.nCoalesced = nCoalesced;
+      this.avgWaitMs = avgWaitMs;
+      this.maxWaitMs = maxWaitMs;
+      this.avgRunMs = avgRunMs;
+    }
+
+    public Lane getLane() {
+      return lane;
+    }
+
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+      return maxQueueDepth;
+    }
+
+    public long getNExecuted() {
+      return nExecuted;
+    }
+
+    public long getNCoalesced() {
+      return nCoalesced;
+    }
+
+    /**
+     * @return average time between submission and start of a task, in ms
+     */
+    public double getAvgWaitMs() {
+      return avgWaitMs;
+    }
+
+    public double getMaxWaitMs() {
+      return maxWaitMs;
+    }
+
+    public double getAvgRunMs() {
+      return avgRunMs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+        "%s: depth=%d (max %d), executed=%d, coalesced=%d, wait avg=%.1fms max=%.1fms, run avg=%.1fms",
+        lane, queueDepth, maxQueueDepth, nExecuted, nCoalesced, avgWaitMs, maxWaitMs, avgRunMs);
+    }
+  }
+
+  private final ThreadPoolExecutor workers;
+  private final Map<Lane, LaneQueue> lanes = new EnumMap<>(Lane.class);
+  private final Set<PeriodicTask> periodicTasks =
+    Collections.newSetFromMap(new ConcurrentHashMap<PeriodicTask, Boolean>());
+  private ScheduledThreadPoolExecutor timer = null;   // guarded by this, non-null while started
+
+  public LaneScheduler() {
+    workers = new ThreadPoolExecutor(Lane.values().length, Lane.values().length,
+      KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+      new NamedThreadFactory("LaneScheduler-worker-"));
+    workers.allowCoreThreadTimeOut(true);
+
+    for (Lane lane : Lane.values()) {
+      lanes.put(lane, new LaneQueue(lane));
+    }
+  }
+
+  /**
+   * Allows periodic tasks to be scheduled. Does nothing if already started.
+   */
+  public synchronized void start() {
+    if (timer != null) {
+      return;
+    }
+    timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("LaneScheduler-timer-"));
+    timer.setRemoveOnCancelPolicy(true);
+    Log.d(TAG, "started");
+  }
+
+  /**
+   * Cancels all periodic tasks and stops the timer thread. One-shot tasks already
+   * submitted still run.
+   */
+  public void stop() {
+    synchronized (this) {
+      if (timer == null) {
+        return;
+      }
+      timer.shutdownNow();
+      timer = null;
+    }
+
+    for (PeriodicTask task : new ArrayList<>(periodicTasks)) {
+      task.cancel(false);
+    }
+    logStats();
+    Log.d(TAG, "stopped");
+  }
+
+  public synchronized boolean isStarted() {
+    return timer != null;
+  }
+
+  /**
+   * Runs runnable on lane after the tasks already queued there.
+   */
+  public Task execute(Lane lane, Runnable runnable) {
+    return execute(lane, null, runnable);
+  }
+
+  /**
+   * Runs runnable on lane, unless a task with the same key is already queued there.
+   *
+   * @param key key for coalescing, or null to never coalesce
+   * @return handle of the task that will run, which is the queued one if coalesced
+   */
+  public Task execute(Lane lane, String key, Runnable runnable) {
+    return lanes.get(lane).enqueue(new QueuedTask(key, runnable));
+  }
+
+  /**
+   * Runs runnable on lane every delayMs, measured from the end of a run to the start of
+   * the next one, until the task is cancelled or the scheduler is stopped.
+   *
+   * @param key key for coalescing with other tasks of the lane, or null
+   * @return handle of the periodic task, already cancelled if the scheduler is not started
+   */
+  public Task scheduleWithFixedDelay(Lane lane, String key, Runnable runnable,
+                                     long initialDelayMs, long delayMs) {
+    PeriodicTask task = new PeriodicTask(lanes.get(lane), key, runnable, delayMs);
+    periodicTasks.add(task);
+    if (!task.scheduleNext(initialDelayMs)) {
+      Log.w(TAG, "Scheduler is not started, not scheduling periodic task on " + lane);
+      task.cancel(false);
+    }
+    return task;
+  }
+
+  public LaneStats getStats(Lane lane) {
+    return lanes.get(lane).getStats();
+  }
+
+  public List<LaneStats> getStats() {
+    List<LaneStats> stats = new ArrayList<>(lanes.size());
+    for (LaneQueue laneQueue : lanes.values()) {
+      stats.add(laneQueue.getStats());
+    }
+    return stats;
+  }
+
+  public void logStats() {
+    for (LaneStats stats : getStats()) {
+      Log.d(TAG, stats.toString());
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  private class QueuedTask implements Task {
+    final String key;
+    final Runnable runnable;
+    long submitTime;
+    LaneQueue laneQueue = null;
+    volatile boolean isCancelled = false;
+
+    QueuedTask(String key, Runnable runnable) {
+      this.key = key;
+      this.runnable = runnable;
+    }
+
+    @Override
+    public void cancel(boolean mayInterruptIfRunning) {
+      isCancelled = true;
+      if (mayInterruptIfRunning && laneQueue != null) {
+        laneQueue.interruptIfRunning(this);
+      }
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return isCancelled;
+    }
+  }
+
+  /**
+   * Serial queue of one lane. At most one of its tasks is submitted to the workers at a
+   * time; the next one is submitted when it finishes.
+   */
+  private class LaneQueue implements Runnable {
+    private final Lane lane;
+    private final ArrayDeque<QueuedTask> queue = new ArrayDeque<>();
+    private final Map<String, QueuedTask> queuedKeys = new HashMap<>();
+    private boolean isActive = false;
+    private QueuedTask runningTask = null;
+    private Thread runningThread = null;
+
+    // statistics, guarded by this
+    private int maxQueueDepth = 0;
+    private long nExecuted = 0;
+    private long nCoalesced = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+    private long totalRunNanos = 0;
+
+    LaneQueue(Lane lane) {
+      this.lane = lane;
+    }
+
+    synchronized Task enqueue(QueuedTask task) {
+      if (task.key != null) {
+        QueuedTask queued = queuedKeys.get(task.key);
+        if (queued != null && !queued.isCancelled()) {
+          ++nCoalesced;
+          return queued;
+        }
+        queuedKeys.put(task.key, task);
+      }
+
+      task.laneQueue = this;
+      task.submitTime = System.nanoTime();
+      queue.add(task);
+      maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+      if (!isActive) {
+        isActive = true;
+        workers.execute(this);
+      }
+      return task;
+    }
+
+    synchronized void interruptIfRunning(QueuedTask task) {
+      if (runningTask == task && runningThread != null) {
+        runningThread.interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      QueuedTask task;
+      synchronized (this) {
+        task = queue.poll();
+        if (task == null) {
+          isActive = false;
+          return;
+        }
+        if (task.key != null) {
+          queuedKeys.remove(task.key);
+        }
+        runningTask = task;
+        runningThread = Thread.currentThread();
+      }
+
+      long startTime = System.nanoTime();
+      try {
+        if (!task.isCancelled()) {
+          task.runnable.run();
+        }
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Task on " + lane + " failed: " + e.getMessage());
+      } finally {
+        long endTime = System.nanoTime();
+        synchronized (this) {
+          runningTask = null;
+          runningThread = null;
+          // clear an interrupt from cancel(true), so that it does not hit the next task
+          Thread.interrupted();
+
+          ++nExecuted;
+          long waitNanos = startTime - task.submitTime;
+          totalWaitNanos += waitNanos;
+          maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+          totalRunNanos += endTime - startTime;
+
+          if (queue.isEmpty()) {
+            isActive = false;
+          } else {
+            workers.execute(this);
+          }
+        }
+      }
+    }
+
+    synchronized LaneStats getStats() {
+      return new LaneStats(lane, queue.size(), maxQueueDepth, nExecuted, nCoalesced,
+        nExecuted == 0 ? 0 : totalWaitNanos / 1e6 / nExecuted,
+        maxWaitNanos / 1e6,
+        nExecuted == 0 ? 0 : totalRunNanos / 1e6 / nExecuted);
+    }
+  }
+
+  private class PeriodicTask implements Task, Runnable {
+    private final LaneQueue laneQueue;
+    private final String key;
+    private final Runnable runnable;
+    private final long delayMs;
+    private volatile boolean isCancelled = false;
+    private ScheduledFuture<?> nextRun = null;   // guarded by this
+    private QueuedTask currentRun = null;        // guarded by this
+
+    PeriodicTask(LaneQueue laneQueue, String key, Runnable runnable, long delayMs) {
+      this.laneQueue = laneQueue;
+      this.key = key;
+      this.runnable = runnable;
+      this.delayMs = delayMs;
+    }
+
+    /**
+     * Called by the timer: queues one run, which schedules the following one when done.
+     */
+    @Override
+    public void run() {
+      if (isCancelled) {
+        return;
+      }
+      QueuedTask queuedRun = new QueuedTask(key, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            runnable.run();
+          } finally {
+            scheduleNext(delayMs);
+          }
+        }
+      });
+      if (laneQueue.enqueue(queuedRun) == queuedRun) {
+        synchronized (this) {
+          currentRun = queuedRun;
+        }
+      } else {
+        // coalesced with a task that will not schedule this one again
+        scheduleNext(delayMs);
+      }
+    }
+
+    /**
+     * @return false if the scheduler is not started
+     */
+    boolean scheduleNext(long delay) {
+      synchronized (LaneScheduler.this) {
+        if (timer == null) {
+          return false;
+        }
+        synchronized (this) {
+          if (!isCancelled) {
+            nextRun = timer.schedule(this, delay, TimeUnit.MILLISECONDS);
+          }
+        }
+        return true;
+      }
+    }
+
+    @Override
+    public void cancel(boolean mayInterruptIfRunning) {
+      isCancelled = true;
+      synchronized (this) {
+        if (nextRun != null) {
+          nextRun.cancel(false);
+        }
+        if (currentRun != null) {
+          currentRun.cancel(mayInterruptIfRunning);
+        }
+      }
+      periodicTasks.remove(this);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return isCancelled;
+    }
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger(1);
+
+    NamedThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, prefix + count.getAndIncrement());
+    }
+  }
+}
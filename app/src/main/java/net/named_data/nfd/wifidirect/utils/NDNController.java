@@ -19,32 +19,58 @@
 
 package net.named_data.nfd.wifidirect.utils;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.wifi.WpsInfo;
 import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pDevice;
 import android.net.wifi.p2p.WifiP2pDeviceList;
 import android.net.wifi.p2p.WifiP2pInfo;
 import android.net.wifi.p2p.WifiP2pManager;
+import android.os.BatteryManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.intel.jndn.management.ManagementException;
-
+import com.intel.jndn.management.enums.FacePersistency;
+import com.intel.jndn.management.types.FaceStatus;
+import com.intel.jndn.management.types.FibEntry;
+import com.intel.jndn.management.types.RibEntry;
+import com.intel.jndn.management.types.Route;
+
+import net.named_data.jndn.ControlParameters;
+import net.named_data.jndn.Data;
 import net.named_data.jndn.Face;
+import net.named_data.jndn.ForwardingFlags;
 import net.named_data.jndn.Interest;
 import net.named_data.jndn.InterestFilter;
 import net.named_data.jndn.Name;
+import net.named_data.jndn.OnData;
 import net.named_data.jndn.OnInterestCallback;
+import net.named_data.jndn.OnRegisterFailed;
 import net.named_data.jndn.security.KeyChain;
 import net.named_data.jndn.security.SecurityException;
 import net.named_data.jndn.security.identity.IdentityManager;
 import net.named_data.jndn.security.identity.MemoryIdentityStorage;
 import net.named_data.jndn.security.identity.MemoryPrivateKeyStorage;
+import net.named_data.nfd.utils.FaceParameters;
 import net.named_data.nfd.utils.NfdcHelper;
+import net.named_data.nfd.utils.SharedPreferencesManager;
+import net.named_data.nfd.wifidirect.callback.AnnouncementOnInterest;
 import net.named_data.nfd.wifidirect.callback.GenericCallback;
 import net.named_data.nfd.wifidirect.callback.ProbeOnInterest;
+import net.named_data.nfd.wifidirect.model.AdvertisementCache;
+import net.named_data.nfd.wifidirect.model.AdvertisementLog;
+import net.named_data.nfd.wifidirect.model.DiscoveredPeers;
+import net.named_data.nfd.wifidirect.model.DiscoverySchedule;
+import net.named_data.nfd.wifidirect.model.GroupOwnerPolicy;
+import net.named_data.nfd.wifidirect.model.LinkQuality;
 import net.named_data.nfd.wifidirect.model.Peer;
+import net.named_data.nfd.wifidirect.model.PeerRegistry;
+import net.named_data.nfd.wifidirect.model.TransportSelector;
+import net.named_data.nfd.wifidirect.runnable.AdvertisementRefreshRunnable;
 import net.named_data.nfd.wifidirect.runnable.DiscoverPeersRunnable;
 import net.named_data.nfd.wifidirect.runnable.FaceAndRouteConsistencyRunnable;
 import net.named_data.nfd.wifidirect.runnable.GroupStatusConsistencyRunnable;
@@ -52,22 +78,22 @@ import net.named_data.nfd.wifidirect.runnable.ProbeRunnable;
 import net.named_data.nfd.wifidirect.service.WDBroadcastReceiverService;
 import net.named_data.nfd.wifidirect.runnable.FaceCreateRunnable;
 import net.named_data.nfd.wifidirect.runnable.FaceDestroyRunnable;
-import net.named_data.nfd.wifidirect.runnable.FaceEventProcessRunnable;
+import net.named_data.nfd.wifidirect.runnable.FaceMigrateRunnable;
 import net.named_data.nfd.wifidirect.runnable.RegisterPrefixRunnable;
 import net.named_data.nfd.wifidirect.runnable.RibRegisterPrefixRunnable;
 import net.named_data.nfd.wifidirect.runnable.RibUnregisterPrefixRunnable;
 import net.named_data.nfd.wifidirect.runnable.UnregisterPrefixRunnable;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * New streamlined NDNOverWifiDirect controller. This class acts as the
@@ -85,14 +111,27 @@ public class NDNController implements WifiP2pManager.PeerListListener,
 
   public static final String URI_UDP_PREFIX = "udp://";
   public static final String URI_TCP_PREFIX = "tcp://";
-  public static final String URI_TRANSPORT_PREFIX = URI_UDP_PREFIX;   // transport portion of uri that rest of project should use
+  public static final String URI_TRANSPORT_PREFIX = URI_UDP_PREFIX;   // transport of new peer faces, see TransportSelector
   public static final String PROBE_PREFIX = "/localhop/wifidirect";   // prefix of prefix used in probing
+  public static final String MULTICAST_PROBE_PREFIX = PROBE_PREFIX + "/multicast";   // prefix of change announcements
 
   private static final String TAG = "NDNController";
-  private static final int DISCOVER_PEERS_DELAY = 5000;  // in ms
+  private static final int DISCOVER_PEERS_DELAY = 5000;  // in ms, scan interval without peers
+  private static final int DISCOVER_PEERS_MAX_INTERVAL = 120000;   // in ms, scan interval in a stable group
+  private static final int DISCOVER_PEERS_TICK = 1000;   // in ms, how often the discovery schedule is checked
+  private static final int DISCOVERY_SUSPEND_PERIOD = 15000;   // in ms, no scans for this long after traffic
+  private static final int DISCOVERY_SCAN_WINDOW = 10000;   // in ms, how long each scan runs
+  private static final int ACTIVE_TRAFFIC_RATE = 16384;   // in bytes/s on peer faces, far above probe traffic
   public static final int PROBE_DELAY = 1000;           // in ms
+  public static final int PROBE_MAX_INTERVAL = 32000;   // in ms, probe interval of a peer whose prefixes do not change
   public static final int PROBE_INTEREST_LIFETIME = 1000; // in ms (the network delay should not be large)
+  public static final int MULTICAST_PROBE_MAX_INTERVAL = 120000;   // in ms, for peers announcing their changes
+  public static final int DEFAULT_MAX_HOPS = 3;   // maximum WiFi Direct hops between consumer and producer
+  public static final int HOP_COST = 100;   // route cost added per hop beyond the peer
+  public static final long ROUTE_EXPIRATION_PERIOD = 600000;   // in ms, for routes learned from probes
   private static final int FACE_AND_ROUTE_CONSISTENCY_CHECK_DELAY = 5000;
+  private static final int PEER_ROUTES_RECONCILE_PERIOD = 60000;   // in ms, between checks of peer routes against the RIB
+  private static final int SCHEDULER_STATS_INTERVAL = 60000;   // in ms, between logs of the lane statistics
   private static final int GROUP_STATUS_CONSISTENCY_CHECK_DELAY = 10000;
 
   // Singleton
@@ -103,34 +142,45 @@ public class NDNController implements WifiP2pManager.PeerListListener,
   private WifiP2pManager wifiP2pManager = null;
   private WifiP2pManager.Channel channel = null;
   private Context wifiDirectContext = null;       // context in which WiFi direct operations begin (an activity/fragment)
-  private List<WifiP2pDevice> discoverdPeers = new ArrayList<>();
+  private final DiscoveredPeers discoveredPeers = new DiscoveredPeers();
 
   // Relevant tasks, services, etc.
   private WDBroadcastReceiverService brService = null;
-  private Future discoverPeersFuture = null;
-  private Future probeFuture = null;
-  private Future faceAndRouteConsistencyFuture = null;
-  private Future groupStatusConsistencyFuture = null;
-  // keep 1 thread to serialize all the tasks
-  private ScheduledThreadPoolExecutor faceEventProcessExecutor = new ScheduledThreadPoolExecutor(1);
-  private ScheduledThreadPoolExecutor localFaceCommandExecutor = new ScheduledThreadPoolExecutor(1);
-  private ScheduledThreadPoolExecutor nfdcFaceCommandExecutor = new ScheduledThreadPoolExecutor(1);
-  private ScheduledThreadPoolExecutor generalExecutor = new ScheduledThreadPoolExecutor(1);
+  private LaneScheduler.Task discoverPeersTask = null;
+  private final DiscoverySchedule discoverySchedule = new DiscoverySchedule(DISCOVER_PEERS_DELAY,
+    DISCOVER_PEERS_MAX_INTERVAL, DISCOVERY_SUSPEND_PERIOD, DISCOVERY_SCAN_WINDOW, SystemClock.elapsedRealtime());
+  private long peerFaceBytes = -1;   // bytes through the faces of connected peers at the last traffic check
+  private long peerFaceBytesTime = 0;
+  private volatile long peerFaceRate = 0;   // bytes/s through the faces of connected peers, at the last traffic check
+  private LaneScheduler.Task probeTask = null;
+  private LaneScheduler.Task faceAndRouteConsistencyTask = null;
+  private LaneScheduler.Task groupStatusConsistencyTask = null;
+  // each lane runs its tasks one at a time, in order
+  private final LaneScheduler scheduler = new LaneScheduler();
 
   // Useful flags
   private boolean hasRegisteredOwnLocalhop = false;
+  private volatile boolean hasRegisteredMulticastPrefix = false;
   private boolean isGroupOwner;    // set in broadcast receiver, used primarily in ProbeOnInterest
 
   // we have some redundancy here in data, but difficult to avoid given WiFi Direct API
-  private HashMap<String, Peer> ipPeerMapOfConnectedPeers = new HashMap<>();                  // { peerIp : PeerInstance }, contains at least Face id info
+  private final PeerRegistry connectedPeers = new PeerRegistry();   // { peerIp : PeerInstance }, contains at least Face id info
+  // { peerIp : versioned prefixes advertised to that peer }, also for peers probing us before being logged
+  private final Map<String, AdvertisementLog> advertisementLogs = new ConcurrentHashMap<>();
+  // prefixes this device advertises, refreshed when faces or routes change, served to probes from memory
+  private final AdvertisementCache advertisementCache = new AdvertisementCache();
+  // NFD's UDP multicast face on the WiFi Direct interface, -1 unless multicast probing is on and the face exists
+  private volatile int multicastFaceId = -1;
+  private long peerRoutesReconcileTime = 0;   // when peer routes were last checked against the RIB
+  private long schedulerStatsTime = 0;   // when the lane statistics were last logged
 
   // single shared Face instance at localhost
   private Face mFace = null;
   private final NfdcHelper nfdcHelper = new NfdcHelper();
   long registeredPrefixId = -1;
 
-  private FaceEventProcessRunnable faceEventProcessRunnable = null;
-  private Future faceEventProcessFuture = null;
+  private FaceEventLoop faceEventLoop = null;
+  private LaneScheduler.Task faceEventLoopTask = null;
 
 
   /**
@@ -170,10 +220,10 @@ public class NDNController implements WifiP2pManager.PeerListListener,
   }
 
   /**
-   * @return
+   * @return copy of the last peer list
    */
   public List<WifiP2pDevice> getDiscoveredPeers() {
-    return discoverdPeers;
+    return discoveredPeers.getDevices();
   }
 
 
@@ -185,7 +235,7 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * @param peer   A Peer instance with at least FaceId set.
    */
   public void logPeer(String peerIp, Peer peer) {
-    ipPeerMapOfConnectedPeers.put(peerIp, peer);
+    connectedPeers.put(peerIp, peer);
   }
 
   /**
@@ -195,8 +245,9 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * @return the Face id of the peer or -1 if no mapping exists.
    */
   public int getFaceIdForPeer(String peerIp) {
-    if (ipPeerMapOfConnectedPeers.containsKey(peerIp)) {
-      return ipPeerMapOfConnectedPeers.get(peerIp).getFaceId();
+    Peer peer = connectedPeers.snapshot().get(peerIp);
+    if (peer != null) {
+      return peer.getFaceId();
     }
 
     return -1;
@@ -211,31 +262,169 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * if none.
    */
   public Peer getPeerByIp(String ip) {
-    return ipPeerMapOfConnectedPeers.get(ip);
+    return connectedPeers.snapshot().get(ip);
+  }
+
+  /**
+   * Returns the current immutable snapshot of the logged peers. Use a single
+   * snapshot when several lookups must be consistent with each other.
+   *
+   * @return the current snapshot, which can be iterated from any thread
+   */
+  public PeerRegistry.Snapshot getConnectedPeersSnapshot() {
+    return connectedPeers.snapshot();
   }
 
   /**
    * Similar to getConnectPeers, except this returns the IP addresses
    * of the currently logged peers.
    *
-   * @return A set backed by the underlying map of logged peers. Thus,
-   * be advised that changes to the returned set will be reflected in
-   * the underlying map.
+   * @return An unmodifiable set from the current snapshot of logged peers;
+   * it does not reflect later changes.
    */
   public Set<String> getIpsOfConnectedPeers() {
-    return ipPeerMapOfConnectedPeers.keySet();
+    return connectedPeers.snapshot().getIps();
   }
 
   public Collection<Peer> getConnectedPeers() {
-    return ipPeerMapOfConnectedPeers.values();
+    return connectedPeers.snapshot().getPeers();
   }
 
   public boolean isNumOfConnectedPeersZero() {
-    return ipPeerMapOfConnectedPeers.isEmpty();
+    return connectedPeers.snapshot().isEmpty();
   }
 
   public Map<String, Peer> getConnectedPeersMap() {
-    return ipPeerMapOfConnectedPeers;
+    return connectedPeers.snapshot().asMap();
+  }
+
+  public AdvertisementCache getAdvertisementCache() {
+    return advertisementCache;
+  }
+
+  /**
+   * Refreshes the advertisement served to probing peers from NFD, after this device
+   * changed faces or routes. Refreshes requested while one is pending are coalesced.
+   */
+  public void refreshAdvertisement() {
+    scheduler.execute(LaneScheduler.Lane.NFDC, "refreshAdvertisement", new AdvertisementRefreshRunnable());
+  }
+
+  /**
+   * Runs the processing of probe replies from a peer on the NFDC lane, unless a
+   * processing for the same peer is still queued there.
+   */
+  public void scheduleProbeReplies(String peerIp, Runnable runnable) {
+    scheduler.execute(LaneScheduler.Lane.NFDC, "probeReplies/" + peerIp, runnable);
+  }
+
+  /**
+   * Whether the user turned on announcing advertisement changes over multicast.
+   */
+  public boolean isMulticastProbingEnabled() {
+    return wifiDirectContext != null &&
+      SharedPreferencesManager.getWifiDirectMulticastProbing(wifiDirectContext.getApplicationContext());
+  }
+
+  /**
+   * Whether changes are announced to, and received from, the multicast face.
+   */
+  public boolean isMulticastProbingActive() {
+    return multicastFaceId != -1;
+  }
+
+  /**
+   * Finds NFD's UDP multicast face on the WiFi Direct interface and routes change
+   * announcements to it, or stops doing so when multicast probing is turned off or the
+   * face is gone. Called from the periodic face and route consistency check.
+   *
+   * @param faceStatuses current face list of NFD
+   */
+  public void updateMulticastFace(List<FaceStatus> faceStatuses) {
+    int faceId = -1;
+    if (isMulticastProbingEnabled() && myAddress != null) {
+      for (FaceStatus faceStatus : faceStatuses) {
+        if (isMulticastUri(faceStatus.getRemoteUri()) && myAddress.equals(getUriHost(faceStatus.getLocalUri()))) {
+          faceId = faceStatus.getFaceId();
+          break;
+        }
+      }
+    }
+    if (faceId == multicastFaceId) {
+      return;
+    }
+
+    Name prefix = new Name(MULTICAST_PROBE_PREFIX);
+    if (multicastFaceId != -1) {
+      try {
+        nfdcHelper.ribUnregisterPrefix(prefix, multicastFaceId);
+      } catch (ManagementException e) {
+        // the face is most likely gone, and its routes with it
+        Log.d(TAG, "Unable to unregister " + prefix + " from face " + multicastFaceId + ": " + e.getMessage());
+      }
+    }
+    if (faceId != -1) {
+      try {
+        nfdcHelper.ribRegisterPrefix(prefix, faceId, 0, true, false);
+      } catch (Exception e) {
+        Log.e(TAG, "Unable to register " + prefix + " to multicast face " + faceId + ": " + e.getMessage());
+        faceId = -1;
+      }
+    }
+    Log.d(TAG, faceId == -1 ? "Multicast probing inactive" : "Multicast probing over face " + faceId);
+    multicastFaceId = faceId;
+
+    if (faceId != -1) {
+      registerMulticastPrefix();
+      // lets the peers know this device announces its changes
+      announceAdvertisementChange();
+    }
+  }
+
+  /**
+   * Tells the peers on the multicast face that the advertisement of this device changed,
+   * so that they probe it now instead of at their next scheduled probe.
+   */
+  public void announceAdvertisementChange() {
+    Face face = mFace;
+    if (multicastFaceId == -1 || myAddress == null || face == null) {
+      return;
+    }
+
+    // the generation makes each announcement a new Interest, not aggregated with the previous one
+    Name name = new Name(MULTICAST_PROBE_PREFIX).append(myAddress).append("changed")
+      .append(Name.Component.fromNumber(advertisementCache.getGeneration()));
+    Interest interest = new Interest(name);
+    interest.setInterestLifetimeMilliseconds(PROBE_INTEREST_LIFETIME);
+    try {
+      Log.d(TAG, "Announcing " + name);
+      face.expressInterest(interest, new OnData() {
+        @Override
+        public void onData(Interest interest, Data data) {
+          // announcements are not answered
+        }
+      });
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to announce advertisement change: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the versioned log of the prefixes this device advertises to the peer,
+   * creating it on first use.
+   *
+   * @param peerIp WiFi Direct IP address of the probing peer
+   */
+  public AdvertisementLog getAdvertisementLog(String peerIp) {
+    AdvertisementLog log = advertisementLogs.get(peerIp);
+    if (log == null) {
+      AdvertisementLog newLog = new AdvertisementLog();
+      log = advertisementLogs.putIfAbsent(peerIp, newLog);
+      if (log == null) {
+        log = newLog;
+      }
+    }
+    return log;
   }
 
   /**
@@ -252,9 +441,26 @@ public class NDNController implements WifiP2pManager.PeerListListener,
     // if the current device is the group owner, we cannot disconnect the group, but simply remove the
     // group member.
     else {
-      FaceDestroyRunnable runnable = new FaceDestroyRunnable(ipPeerMapOfConnectedPeers.get(ip).getFaceId());
-      nfdcFaceCommandExecutor.execute(runnable);
-      ipPeerMapOfConnectedPeers.remove(ip);
+      Peer removed = connectedPeers.remove(ip);
+      discoverySchedule.reset(SystemClock.elapsedRealtime());
+      advertisementLogs.remove(ip);
+      advertisementCache.forget(ip);
+      if (removed != null) {
+        destroyPeerFaces(removed);
+      }
+    }
+  }
+
+  /**
+   * Destroys the face towards a removed peer, and its face retired by a migration if any.
+   */
+  private void destroyPeerFaces(Peer peer) {
+    int retiredFaceId = peer.getTransportSelector().takeRetiredFace();
+    for (int faceId : new int[]{peer.getFaceId(), retiredFaceId}) {
+      if (faceId != -1) {
+        FaceDestroyRunnable runnable = new FaceDestroyRunnable(faceId);
+        scheduler.execute(LaneScheduler.Lane.NFDC, "faceDestroy/" + faceId, runnable);
+      }
     }
   }
 
@@ -316,18 +522,37 @@ public class NDNController implements WifiP2pManager.PeerListListener,
     }
 
     // need to create a new face for this peer
-    FaceCreateRunnable runnable = new FaceCreateRunnable(peerIp, uriPrefix + peerIp);
+    FaceCreateRunnable runnable = new FaceCreateRunnable(peerIp, uriPrefix + peerIp, getPeerFaceParameters(uriPrefix));
 
     if (callback != null) {
       runnable.setCallback(callback);
     }
 
-    nfdcFaceCommandExecutor.execute(runnable);
+    scheduler.execute(LaneScheduler.Lane.NFDC, runnable);
+  }
+
+  /**
+   * Returns the link-layer parameters of faces towards peers. The faces are persistent,
+   * so that a face NFD created on demand for a peer's traffic is not idle-timed-out
+   * once it is used as the peer's face. UDP faces repair WiFi losses with NDNLP
+   * reliability; TCP does that itself. Packets are congestion marked when the face
+   * queue builds up, so that consumers back off before the radio drops them.
+   *
+   * @param uriPrefix transport of the face
+   */
+  public static FaceParameters getPeerFaceParameters(String uriPrefix) {
+    return new FaceParameters()
+      .setFacePersistency(FacePersistency.PERSISTENT)
+      .setLpReliability(URI_UDP_PREFIX.equals(uriPrefix))
+      .setCongestionMarking(true);
   }
 
   /**
    * Registers the array of prefixes with the given Face, denoted by
-   * its face id.
+   * its face id. Data prefixes are registered with the route cost of the peer behind
+   * the face, plus HOP_COST per hop the peer advertised for the prefix, so that
+   * forwarding prefers the best and shortest path when several peers advertise the
+   * same prefix. They expire after ROUTE_EXPIRATION_PERIOD unless refreshed.
    *
    * @param faceId   The Face Id to register the prefixes to.
    * @param prefixes array of prefixes to register.
@@ -335,30 +560,248 @@ public class NDNController implements WifiP2pManager.PeerListListener,
   public void ribRegisterPrefix(int faceId, String[] prefixes) {
     Log.d(TAG, "ribRegisterPrefix called with: " + faceId + " and " + prefixes.length + " prefixes");
 
-    HashSet<Integer> faceIds = new HashSet<>(ipPeerMapOfConnectedPeers.size());
-    for (Peer p : ipPeerMapOfConnectedPeers.values()) {
-      faceIds.add(p.getFaceId());
+    Peer peer = null;
+    for (Peer p : connectedPeers.snapshot().getPeers()) {
+      if (p.getFaceId() == faceId) {
+        peer = p;
+        break;
+      }
     }
 
-    if (faceIds.contains(faceId)) {
+    if (peer != null) {
       for (String prefix : prefixes) {
         Log.d(TAG, "ribRegisterPrefix() with prefix: " + prefix);
-        RibRegisterPrefixRunnable runnable = new RibRegisterPrefixRunnable(prefix, faceId,
-          0, true, false);
-        nfdcFaceCommandExecutor.execute(runnable);
+        RibRegisterPrefixRunnable runnable;
+        if (prefix.startsWith(PROBE_PREFIX)) {
+          // the probe prefix of a peer is only reachable through its face, and kept by the consistency check
+          runnable = new RibRegisterPrefixRunnable(prefix, faceId, 0, true, false);
+        } else {
+          // all data routes towards a peer share one link cost, changed only by updateRouteCost()
+          if (peer.getRouteCost() < 0) {
+            peer.setRouteCost(peer.getLinkQuality().getCost());
+            peer.setRoutesRefreshTime(SystemClock.elapsedRealtime());
+          }
+          int cost = peer.getRouteCost() + HOP_COST * peer.getAdvertisedHops(prefix);
+          runnable = new RibRegisterPrefixRunnable(prefix, faceId, cost, true, false, ROUTE_EXPIRATION_PERIOD);
+          peer.getRegisteredPrefixes().add(prefix);
+        }
+        scheduler.execute(LaneScheduler.Lane.NFDC, runnable);
+      }
+    }
+  }
+
+  /**
+   * Re-registers the prefixes advertised by the peer if the cost derived from its link
+   * quality changed significantly since they were registered, or if they are halfway
+   * to expiring.
+   *
+   * @param peer peer whose link quality was just measured
+   */
+  public void updateRouteCost(Peer peer) {
+    int registeredCost = peer.getRouteCost();
+    if (registeredCost < 0) {
+      return;
+    }
+    int cost = peer.getLinkQuality().getCost();
+    long now = SystemClock.elapsedRealtime();
+    boolean isCostChanged = LinkQuality.isSignificantChange(registeredCost, cost);
+    if (!isCostChanged && now - peer.getRoutesRefreshTime() < ROUTE_EXPIRATION_PERIOD / 2) {
+      return;
+    }
+
+    if (isCostChanged) {
+      Log.d(TAG, "Route cost towards " + peer.getIpAddress() + " " + registeredCost + " -> " + cost +
+        " (" + peer.getLinkQuality() + ")");
+      peer.setRouteCost(cost);
+    }
+    peer.setRoutesRefreshTime(now);
+    Set<String> prefixes = peer.getRoutablePrefixes(getMaxHops());
+    if (!prefixes.isEmpty()) {
+      // registering an existing route updates its cost and expiration
+      ribRegisterPrefix(peer.getFaceId(), prefixes.toArray(new String[0]));
+    }
+  }
+
+  /**
+   * Returns the rib/register parameters of all routes towards the peer through faceId:
+   * its probe prefix, and the data prefixes it advertises within getMaxHops(), with
+   * the costs and expiration ribRegisterPrefix() gives them.
+   */
+  public List<ControlParameters> makePeerRoutes(Peer peer, int faceId) {
+    ForwardingFlags flags = new ForwardingFlags();
+    flags.setChildInherit(true);
+    flags.setCapture(false);
+
+    List<ControlParameters> routes = new ArrayList<>();
+    routes.add(new ControlParameters()
+      .setName(new Name(PROBE_PREFIX + "/" + peer.getIpAddress()))
+      .setFaceId(faceId)
+      .setCost(0)
+      .setForwardingFlags(flags));
+    if (peer.getRouteCost() >= 0) {
+      for (String prefix : peer.getRoutablePrefixes(getMaxHops())) {
+        routes.add(new ControlParameters()
+          .setName(new Name(prefix))
+          .setFaceId(faceId)
+          .setCost(peer.getRouteCost() + HOP_COST * peer.getAdvertisedHops(prefix))
+          .setForwardingFlags(flags)
+          .setExpirationPeriod(ROUTE_EXPIRATION_PERIOD));
+      }
+    }
+    return routes;
+  }
+
+  /**
+   * Reconciles the data prefixes each peer is known to have registered towards it
+   * with the RIB, at most every PEER_ROUTES_RECONCILE_PERIOD: routes that went missing
+   * (e.g. expired, or removed by the user) are registered again, and routes this
+   * controller registered to prefixes the peer no longer advertises within range are
+   * unregistered. Other routes on the peer's face, such as static routes added by the
+   * user or by apps, are left alone. In between, probe replies are turned into route
+   * changes from the registered prefixes of the peer alone. Called on the NFDC lane
+   * from the periodic face and route consistency check.
+   *
+   * @param ribEntries current RIB of NFD
+   */
+  public void reconcilePeerRoutes(List<RibEntry> ribEntries) {
+    long now = SystemClock.elapsedRealtime();
+    if (now - peerRoutesReconcileTime < PEER_ROUTES_RECONCILE_PERIOD) {
+      return;
+    }
+    peerRoutesReconcileTime = now;
+
+    Map<Integer, Set<String>> prefixesByFaceId = new HashMap<>();
+    for (Peer peer : connectedPeers.snapshot().getPeers()) {
+      prefixesByFaceId.put(peer.getFaceId(), new HashSet<String>());
+    }
+    for (RibEntry ribEntry : ribEntries) {
+      String prefix = ribEntry.getName().toUri();
+      if (prefix.startsWith("/localhop") || prefix.startsWith("/localhost")) {
+        continue;
+      }
+      for (Route route : ribEntry.getRoutes()) {
+        Set<String> prefixes = prefixesByFaceId.get(route.getFaceId());
+        if (prefixes != null) {
+          prefixes.add(prefix);
+        }
+      }
+    }
+
+    int maxHops = getMaxHops();
+    for (Peer peer : connectedPeers.snapshot().getPeers()) {
+      Set<String> inRib = prefixesByFaceId.get(peer.getFaceId());
+      if (peer.getAdvertisedPrefixes() == null || peer.getRouteCost() < 0 || inRib == null) {
+        continue;
+      }
+      Set<String> routable = peer.getRoutablePrefixes(maxHops);
+      Set<String> toRegister = new HashSet<>(routable);
+      toRegister.removeAll(inRib);
+      List<ControlParameters> toUnregister = new ArrayList<>();
+      for (String prefix : peer.getRegisteredPrefixes()) {
+        if (inRib.contains(prefix) && !routable.contains(prefix)) {
+          toUnregister.add(new ControlParameters().setName(new Name(prefix)).setFaceId(peer.getFaceId()));
+        }
+      }
+      peer.getRegisteredPrefixes().retainAll(routable);
+      if (toRegister.isEmpty() && toUnregister.isEmpty()) {
+        continue;
+      }
+
+      Log.d(TAG, "Reconciling routes towards " + peer.getIpAddress() + ": " + toRegister.size() +
+        " missing, " + toUnregister.size() + " stale");
+      if (!toRegister.isEmpty()) {
+        ribRegisterPrefix(peer.getFaceId(), toRegister.toArray(new String[0]));
+      }
+      if (!toUnregister.isEmpty()) {
+        try {
+          nfdcHelper.ribUnregisterPrefixes(toUnregister);
+        } catch (Exception e) {
+          Log.e(TAG, "Unable to unregister stale routes towards " + peer.getIpAddress() + ": " + e.getMessage());
+        }
       }
     }
   }
 
+  /**
+   * Starts migrating peer faces between UDP and TCP as their TransportSelector decides
+   * from their loss and traffic, and destroys the faces retired by earlier migrations
+   * once they drained. Called from the periodic face and route consistency check.
+   *
+   * @param faceStatuses current face list of NFD
+   */
+  public void updateTransports(List<FaceStatus> faceStatuses) {
+    Map<Integer, FaceStatus> facesById = new HashMap<>(faceStatuses.size());
+    for (FaceStatus faceStatus : faceStatuses) {
+      facesById.put(faceStatus.getFaceId(), faceStatus);
+    }
+
+    long now = SystemClock.elapsedRealtime();
+    for (Map.Entry<String, Peer> entry : connectedPeers.snapshot().asMap().entrySet()) {
+      Peer peer = entry.getValue();
+      TransportSelector selector = peer.getTransportSelector();
+      int drainedFaceId = selector.takeDrainedFace(now);
+      if (drainedFaceId != -1) {
+        FaceDestroyRunnable runnable = new FaceDestroyRunnable(drainedFaceId);
+        scheduler.execute(LaneScheduler.Lane.NFDC, "faceDestroy/" + drainedFaceId, runnable);
+      }
+
+      FaceStatus faceStatus = facesById.get(peer.getFaceId());
+      if (faceStatus == null) {
+        continue;
+      }
+      selector.onFaceCounters(now, faceStatus.getFaceId(), faceStatus.getNInBytes() + faceStatus.getNOutBytes());
+      String uriPrefix = selector.startMigration(now, peer.getLinkQuality().getLoss());
+      if (uriPrefix != null) {
+        Log.d(TAG, "Migrating " + entry.getKey() + " from " + selector.getUriPrefix() + " to " + uriPrefix +
+          " (" + peer.getLinkQuality() + ", " + selector.getRate() + " bytes/s)");
+        scheduler.execute(LaneScheduler.Lane.NFDC, "faceMigrate/" + entry.getKey(),
+          new FaceMigrateRunnable(entry.getKey(), uriPrefix));
+      }
+    }
+  }
+
+  /**
+   * Returns the maximum number of WiFi Direct hops between a consumer and the device
+   * serving a prefix: prefixes further away are neither registered nor advertised.
+   */
+  public int getMaxHops() {
+    Context context = wifiDirectContext;
+    if (context == null) {
+      return DEFAULT_MAX_HOPS;
+    }
+    return Math.max(1, SharedPreferencesManager.getWifiDirectMaxHops(context.getApplicationContext(),
+      DEFAULT_MAX_HOPS));
+  }
+
+  /**
+   * Rebuilds the advertisement served to probing peers from the FIB and face list, and
+   * the hop counts the peers advertised.
+   *
+   * @return true if the advertisement changed
+   */
+  public boolean updateAdvertisement(List<FibEntry> fibEntries, List<FaceStatus> faceStatuses) {
+    Map<Integer, Map<String, Integer>> peerAdvertisements = new HashMap<>();
+    for (Peer peer : connectedPeers.snapshot().getPeers()) {
+      Map<String, Integer> advertised = peer.getAdvertisedPrefixes();
+      peerAdvertisements.put(peer.getFaceId(),
+        advertised == null ? Collections.<String, Integer>emptyMap() : advertised);
+    }
+    return advertisementCache.update(fibEntries, faceStatuses, peerAdvertisements, getMaxHops());
+  }
+
   /**
    * Begins periodically looking for peers, and connecting
-   * to them.
+   * to them. Scans follow the DiscoverySchedule: every DISCOVER_PEERS_DELAY without
+   * peers, backing off to DISCOVER_PEERS_MAX_INTERVAL in a stable group, and suspended
+   * while data flows through the group. Each scan is stopped after DISCOVERY_SCAN_WINDOW.
    */
   public void startDiscoveringPeers() {
-    if (discoverPeersFuture == null) {
-      Log.d(TAG, "Start discovering peers every " + DISCOVER_PEERS_DELAY + "ms");
+    if (discoverPeersTask == null) {
+      Log.d(TAG, "Start discovering peers every " + DISCOVER_PEERS_DELAY + "ms or less often");
+      discoverySchedule.reset(SystemClock.elapsedRealtime());
       DiscoverPeersRunnable runnable = new DiscoverPeersRunnable();
-      discoverPeersFuture = generalExecutor.scheduleWithFixedDelay(runnable, 100, DISCOVER_PEERS_DELAY, TimeUnit.MILLISECONDS);
+      discoverPeersTask = scheduler.scheduleWithFixedDelay(LaneScheduler.Lane.GENERAL, "discoverPeers",
+        runnable, 100, DISCOVER_PEERS_TICK);
     } else {
       Log.d(TAG, "Discovering peers already running!");
     }
@@ -368,21 +811,62 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * Stops periodically discovering peers and connecting to them.
    */
   public void stopDiscoveringPeers() {
-    if (discoverPeersFuture != null) {
-      discoverPeersFuture.cancel(true);
-      discoverPeersFuture = null;
+    if (discoverPeersTask != null) {
+      discoverPeersTask.cancel(true);
+      discoverPeersTask = null;
+      discoverySchedule.onScanStopped();
+      stopPeerDiscovery();
       Log.d(TAG, "Stopped discovering peers.");
     }
   }
 
+  public DiscoverySchedule getDiscoverySchedule() {
+    return discoverySchedule;
+  }
+
+  /**
+   * Suspends peer discovery while the faces of connected peers carry more than
+   * ACTIVE_TRAFFIC_RATE. Called from the periodic face and route consistency check.
+   *
+   * @param faceStatuses current face list of NFD
+   */
+  public void updateTrafficActivity(List<FaceStatus> faceStatuses) {
+    Set<Integer> peerFaceIds = new HashSet<>();
+    for (Peer peer : connectedPeers.snapshot().getPeers()) {
+      peerFaceIds.add(peer.getFaceId());
+    }
+    long bytes = 0;
+    for (FaceStatus faceStatus : faceStatuses) {
+      if (peerFaceIds.contains(faceStatus.getFaceId())) {
+        bytes += faceStatus.getNInBytes() + faceStatus.getNOutBytes();
+      }
+    }
+
+    long now = SystemClock.elapsedRealtime();
+    // counters go down when faces are destroyed; such an interval is not measured
+    if (peerFaceBytes >= 0 && bytes >= peerFaceBytes && now > peerFaceBytesTime) {
+      long rate = (bytes - peerFaceBytes) * 1000 / (now - peerFaceBytesTime);
+      peerFaceRate = rate;
+      if (rate >= ACTIVE_TRAFFIC_RATE) {
+        if (!discoverySchedule.isSuspended(now)) {
+          Log.d(TAG, "Suspending peer discovery, " + rate + " bytes/s through peer faces");
+        }
+        discoverySchedule.onTraffic(now);
+      }
+    }
+    peerFaceBytes = bytes;
+    peerFaceBytesTime = now;
+  }
+
   /**
    * Begins probing the network for data prefixes.
    */
   public void startProbing() {
-    if (probeFuture == null) {
+    if (probeTask == null) {
       Log.d(TAG, "Start probing for data prefixes every " + PROBE_DELAY + "ms");
       ProbeRunnable runnable = new ProbeRunnable();
-      probeFuture = localFaceCommandExecutor.scheduleWithFixedDelay(runnable, 200, PROBE_DELAY, TimeUnit.MILLISECONDS);
+      probeTask = scheduler.scheduleWithFixedDelay(LaneScheduler.Lane.LOCAL_FACE, "probe",
+        runnable, 200, PROBE_DELAY);
     } else {
       Log.d(TAG, "Probing task already running!");
     }
@@ -392,9 +876,9 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * Stops probing the network for data prefixes.
    */
   public void stopProbing() {
-    if (probeFuture != null) {
-      probeFuture.cancel(true);
-      probeFuture = null;
+    if (probeTask != null) {
+      probeTask.cancel(true);
+      probeTask = null;
       Log.d(TAG, "Stopped probing.");
     } else {
       Log.d(TAG, "Pprobing already stopped");
@@ -436,12 +920,12 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * active faces.
    */
   public void startFaceAndRouteConsistencyChecker() {
-    if (faceAndRouteConsistencyFuture == null) {
+    if (faceAndRouteConsistencyTask == null) {
       Log.d(TAG, "Start checking consistency of logged Faces every " +
         FACE_AND_ROUTE_CONSISTENCY_CHECK_DELAY + "ms");
       FaceAndRouteConsistencyRunnable runnable = new FaceAndRouteConsistencyRunnable();
-      faceAndRouteConsistencyFuture = nfdcFaceCommandExecutor.scheduleWithFixedDelay(runnable,
-        300, FACE_AND_ROUTE_CONSISTENCY_CHECK_DELAY, TimeUnit.MILLISECONDS);
+      faceAndRouteConsistencyTask = scheduler.scheduleWithFixedDelay(LaneScheduler.Lane.NFDC,
+        "faceAndRouteConsistency", runnable, 300, FACE_AND_ROUTE_CONSISTENCY_CHECK_DELAY);
     } else {
       Log.d(TAG, "Face consistency checker already running!");
     }
@@ -452,9 +936,9 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * of active faces.
    */
   public void stopFaceAndRouteConsistencyChecker() {
-    if (faceAndRouteConsistencyFuture != null) {
-      faceAndRouteConsistencyFuture.cancel(false);    // do not interrupt if running, but cancel further execution
-      faceAndRouteConsistencyFuture = null;
+    if (faceAndRouteConsistencyTask != null) {
+      faceAndRouteConsistencyTask.cancel(false);    // do not interrupt if running, but cancel further execution
+      faceAndRouteConsistencyTask = null;
 
       Log.d(TAG, "Stopped checking for Face consistency.");
     } else {
@@ -467,13 +951,13 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * device's myAddress.
    */
   public void startGroupConsistencyChecker() {
-    if (groupStatusConsistencyFuture == null) {
+    if (groupStatusConsistencyTask == null) {
       Log.d(TAG, "Start checking consistency of group status every " +
         GROUP_STATUS_CONSISTENCY_CHECK_DELAY + "ms");
       GroupStatusConsistencyRunnable.resetTimeoutTimes();
       GroupStatusConsistencyRunnable runnable = new GroupStatusConsistencyRunnable();
-      groupStatusConsistencyFuture = generalExecutor.scheduleWithFixedDelay(runnable,
-        300, GROUP_STATUS_CONSISTENCY_CHECK_DELAY, TimeUnit.MILLISECONDS);
+      groupStatusConsistencyTask = scheduler.scheduleWithFixedDelay(LaneScheduler.Lane.GENERAL,
+        "groupStatusConsistency", runnable, 300, GROUP_STATUS_CONSISTENCY_CHECK_DELAY);
     } else {
       Log.d(TAG, "Group status consistency checker already running!");
     }
@@ -484,9 +968,9 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * of active faces.
    */
   public void stopGroupConsistencyChecker() {
-    if (groupStatusConsistencyFuture != null) {
-      groupStatusConsistencyFuture.cancel(false);    // do not interrupt if running, but cancel further execution
-      groupStatusConsistencyFuture = null;
+    if (groupStatusConsistencyTask != null) {
+      groupStatusConsistencyTask.cancel(false);    // do not interrupt if running, but cancel further execution
+      groupStatusConsistencyTask = null;
       GroupStatusConsistencyRunnable.resetTimeoutTimes();
       Log.d(TAG, "Stopped checking for Face consistency.");
     } else {
@@ -499,6 +983,7 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * tasks/services for this protocol.
    */
   public void start() {
+    scheduler.start();
     recreateFace();
     startDiscoveringPeers();
     startProbing();
@@ -518,6 +1003,7 @@ public class NDNController implements WifiP2pManager.PeerListListener,
     stopBroadcastReceiverService();
     stopProbing();
     stopDiscoveringPeers();
+    scheduler.stop();
   }
 
   /**
@@ -553,12 +1039,45 @@ public class NDNController implements WifiP2pManager.PeerListListener,
           (new ProbeOnInterest()).doJob(prefix, interest, face, interestFilterId, filter);
         }
       });
-      localFaceCommandExecutor.execute(runnable);
+      scheduler.execute(LaneScheduler.Lane.LOCAL_FACE, runnable);
     }
 
     setHasRegisteredOwnLocalhop(true);
   }
 
+  /**
+   * Registers the prefix of change announcements to the localhost face, so that those
+   * arriving on the multicast face reach this app.
+   */
+  private void registerMulticastPrefix() {
+    if (hasRegisteredMulticastPrefix) {
+      return;
+    }
+    hasRegisteredMulticastPrefix = true;
+    scheduler.execute(LaneScheduler.Lane.LOCAL_FACE, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mFace.registerPrefix(new Name(MULTICAST_PROBE_PREFIX), new OnInterestCallback() {
+            @Override
+            public void onInterest(Name prefix, Interest interest, Face face, long interestFilterId, InterestFilter filter) {
+              (new AnnouncementOnInterest()).doJob(prefix, interest, face, interestFilterId, filter);
+            }
+          }, new OnRegisterFailed() {
+            @Override
+            public void onRegisterFailed(Name prefix) {
+              Log.e(TAG, "Failed to register prefix: " + prefix);
+              hasRegisteredMulticastPrefix = false;
+            }
+          });
+        } catch (Exception e) {
+          Log.e(TAG, "Unable to register " + MULTICAST_PROBE_PREFIX + ": " + e.getMessage());
+          hasRegisteredMulticastPrefix = false;
+        }
+      }
+    });
+  }
+
   /**
    * Convenience function to unregister the important /localhop prefix, if it was registered
    * previously.
@@ -566,12 +1085,12 @@ public class NDNController implements WifiP2pManager.PeerListListener,
   public void unregisterOwnLocalhop() {
     if (myAddress != null) {
       RibUnregisterPrefixRunnable runnable = new RibUnregisterPrefixRunnable(PROBE_PREFIX + "/" + myAddress);
-      nfdcFaceCommandExecutor.execute(runnable);
+      scheduler.execute(LaneScheduler.Lane.NFDC, runnable);
     }
 
     // unregister the prefix, no longer handled if logic gets to here
     UnregisterPrefixRunnable runnable1 = new UnregisterPrefixRunnable(registeredPrefixId);
-    localFaceCommandExecutor.execute(runnable1);
+    scheduler.execute(LaneScheduler.Lane.LOCAL_FACE, runnable1);
     NDNController.getInstance().setHasRegisteredOwnLocalhop(false);
   }
 
@@ -604,6 +1123,30 @@ public class NDNController implements WifiP2pManager.PeerListListener,
     });
   }
 
+  /**
+   * Stops a scan started by discoverPeers(), which the framework would otherwise keep
+   * running for about two minutes.
+   */
+  public void stopPeerDiscovery() {
+    if (wifiP2pManager == null || channel == null) {
+      return;
+    }
+
+    wifiP2pManager.stopPeerDiscovery(channel, new WifiP2pManager.ActionListener() {
+      @Override
+      public void onSuccess() {
+        Log.d(TAG, "Stopped peer discovery scan");
+      }
+
+      @Override
+      public void onFailure(int reasonCode) {
+        String reasonString = WDBroadcastReceiver
+          .getWifiP2pManagerMessageFromReasonCode(reasonCode);
+        Log.d(TAG, "Fail stop peer discovery, reason: " + reasonString);
+      }
+    });
+  }
+
   /**
    * Returns a face to localhost, to avoid multiple creations of localhost
    * faces.
@@ -614,6 +1157,19 @@ public class NDNController implements WifiP2pManager.PeerListListener,
     return mFace;
   }
 
+  /**
+   * Logs queue depth and task latency of each lane of the background scheduler, at most
+   * every SCHEDULER_STATS_INTERVAL. Called from the periodic face and route consistency check.
+   */
+  public void logSchedulerStatsIfDue() {
+    long now = SystemClock.elapsedRealtime();
+    if (now - schedulerStatsTime < SCHEDULER_STATS_INTERVAL) {
+      return;
+    }
+    schedulerStatsTime = now;
+    scheduler.logStats();
+  }
+
   public NfdcHelper getNfdcHelper() {
     return nfdcHelper;
   }
@@ -677,6 +1233,7 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * start all runnable, keep saved Wifi-Direct states unchanged
    */
   public void startRunnables() {
+    scheduler.start();
     startDiscoveringPeers();
     startProbing();
     startFaceAndRouteConsistencyChecker();
@@ -698,6 +1255,8 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    */
   public void cleanUpConnections() {
     unregisterOwnLocalhop();
+    // the group is gone, look for peers right away
+    discoverySchedule.reset(SystemClock.elapsedRealtime());
 
     // Remove all faces created to peers, and shut down the localhost face we used
     // for communication with NFD.
@@ -705,12 +1264,19 @@ public class NDNController implements WifiP2pManager.PeerListListener,
     Runnable cleanUpRunnable = new Runnable() {
       @Override
       public void run() {
-        Log.d(TAG, "before cleaning up connected peers, the size of ipPeerMapOfConnectedPeers is " + ipPeerMapOfConnectedPeers.size());
+        PeerRegistry.Snapshot peers = connectedPeers.clear();
+        advertisementLogs.clear();
+        advertisementCache.clear();
+        Log.d(TAG, "before cleaning up connected peers, the number of connected peers is " + peers.size());
 
-        for (String peerIp : ipPeerMapOfConnectedPeers.keySet()) {
+        for (String peerIp : peers.getIps()) {
           try {
             Log.d(TAG, "Cleaning up face towards peer: " + peerIp);
-            nfdcHelper.faceDestroy(ipPeerMapOfConnectedPeers.get(peerIp).getFaceId());
+            nfdcHelper.faceDestroy(peers.get(peerIp).getFaceId());
+            int retiredFaceId = peers.get(peerIp).getTransportSelector().takeRetiredFace();
+            if (retiredFaceId != -1) {
+              nfdcHelper.faceDestroy(retiredFaceId);
+            }
           } catch (ManagementException me) {
             Log.e(TAG, "Unable to destroy face to: " + peerIp);
           } catch (Exception e) {
@@ -721,48 +1287,83 @@ public class NDNController implements WifiP2pManager.PeerListListener,
         myAddress = null;
         groupOwnerAddress = null;
         hasRegisteredOwnLocalhop = false;
+        multicastFaceId = -1;
         isGroupOwner = false;
-        ipPeerMapOfConnectedPeers.clear();
-        discoverdPeers.clear();
+        discoveredPeers.clear();
       }
     };
 
-    nfdcFaceCommandExecutor.execute(cleanUpRunnable);
+    scheduler.execute(LaneScheduler.Lane.NFDC, "cleanUpConnections", cleanUpRunnable);
 
-    if (faceEventProcessFuture != null) {
-      faceEventProcessFuture.cancel(false);
-      faceEventProcessFuture = null;
-    }
-    if (mFace != null) {
-      mFace.shutdown();
-      mFace = null;
-    }
+    stopFaceEventLoop();
   }
 
   public void recreateFace() {
-    if (faceEventProcessFuture != null) {
-      faceEventProcessFuture.cancel(false);
-      faceEventProcessFuture = null;
-    }
-    if (mFace != null) {
-      mFace.shutdown();
-      mFace = null;
+    stopFaceEventLoop();
+    try {
+      faceEventLoop = new FaceEventLoop("localhost");
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to create event loop for localhost face: " + e.getMessage());
+      return;
     }
-    mFace = new Face();
-    faceEventProcessRunnable = new FaceEventProcessRunnable();
+    mFace = faceEventLoop.getFace();
+    hasRegisteredMulticastPrefix = false;   // registrations went away with the previous face
     try {
       mFace.setCommandSigningInfo(mKeyChain, mKeyChain.getDefaultCertificateName());
     } catch (SecurityException e) {
       Log.e(TAG, "Unable to set command signing info for localhost face.");
     }
-    faceEventProcessFuture = faceEventProcessExecutor.scheduleWithFixedDelay(
-      faceEventProcessRunnable, 0, 5, TimeUnit.MILLISECONDS);
+    faceEventLoopTask = scheduler.execute(LaneScheduler.Lane.FACE_EVENTS, faceEventLoop);
     Log.d(TAG, "create face and start to process event");
   }
 
+  /**
+   * Stops the event loop of the localhost face and shuts the face down.
+   */
+  private void stopFaceEventLoop() {
+    if (faceEventLoop != null) {
+      faceEventLoop.stop();
+      faceEventLoop = null;
+    }
+    if (faceEventLoopTask != null) {
+      faceEventLoopTask.cancel(false);
+      faceEventLoopTask = null;
+    }
+    if (mFace != null) {
+      mFace.shutdown();
+      mFace = null;
+    }
+  }
+
   /**
    * misc
    **/
+  private static boolean isMulticastUri(String uri) {
+    String host = getUriHost(uri);
+    if (host == null || host.indexOf('.') < 0) {
+      return false;
+    }
+    try {
+      int firstOctet = Integer.parseInt(host.substring(0, host.indexOf('.')));
+      return firstOctet >= 224 && firstOctet <= 239;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return host of a face URI such as udp4://192.168.49.1:56363, or null
+   */
+  private static String getUriHost(String uri) {
+    int start = uri == null ? -1 : uri.indexOf("://");
+    if (start < 0) {
+      return null;
+    }
+    start += 3;
+    int end = uri.indexOf(':', start);
+    return end < 0 ? uri.substring(start) : uri.substring(start, end);
+  }
+
   private KeyChain buildTestKeyChain() throws SecurityException {
     MemoryIdentityStorage identityStorage = new MemoryIdentityStorage();
     MemoryPrivateKeyStorage privateKeyStorage = new MemoryPrivateKeyStorage();
@@ -788,43 +1389,78 @@ public class NDNController implements WifiP2pManager.PeerListListener,
   }
 
   /**
-   * update the connected peers info
+   * Attaches their WiFi Direct device to the connected peers that have none yet, i.e.
+   * peers logged since the last peer event. Reads the ARP cache only if there are such
+   * peers.
+   *
+   * @return whether a device was attached to any peer
    */
-  private void updateIpPeerMapOfConnectedPeers() {
-    Log.d(TAG, "update IpPeerMapOfConnectedPeers");
-    for (String peerIp : ipPeerMapOfConnectedPeers.keySet()) {
-      Peer peer = ipPeerMapOfConnectedPeers.get(peerIp);
-      String macAddress = IPAddress.getMacFromArpCache(peerIp);
+  private boolean resolvePeerDevices() {
+    List<Peer> unresolved = new ArrayList<>();
+    for (Peer peer : connectedPeers.snapshot().getPeers()) {
+      if (peer.getDevice() == null) {
+        unresolved.add(peer);
+      }
+    }
+    if (unresolved.isEmpty()) {
+      return false;
+    }
+
+    Log.d(TAG, "resolve devices of " + unresolved.size() + " connected peer(s)");
+    // TODO: figure out why the 13th char in arp table is 8 smaller than that in device info
+    List<WifiP2pDevice> devices = discoveredPeers.getDevices();
+    Map<String, WifiP2pDevice> devicesByMacKey = new HashMap<>(devices.size());
+    for (WifiP2pDevice one : devices) {
+      devicesByMacKey.put(getMacKey(one.deviceAddress), one);
+    }
+
+    // one read of the ARP cache per peer event, however many peers are resolved
+    ArpTable arpTable = ArpTable.read();
+    boolean isResolved = false;
+    for (Peer peer : unresolved) {
+      String macAddress = arpTable.getMac(peer.getIpAddress());
       if (macAddress == null) {
         continue;
       }
-      for (WifiP2pDevice one : discoverdPeers) {
-        // TODO: figure out why the 13th char in arp table is 8 smaller than that in device info
-        if (one.deviceAddress.startsWith(macAddress.substring(0, 12))
-          && one.deviceAddress.endsWith(macAddress.substring(13))) {
-          peer.setDevice(one);
-          break;
-        }
+      WifiP2pDevice device = devicesByMacKey.get(getMacKey(macAddress));
+      if (device != null) {
+        peer.setDevice(device);
+        isResolved = true;
       }
     }
+    return isResolved;
+  }
+
+  /**
+   * @return mac without its 13th char, which differs between the ARP table and the device info
+   */
+  private static String getMacKey(String mac) {
+    return mac.length() > 13 ? mac.substring(0, 12) + mac.substring(13) : mac;
   }
 
   /**
    * Remove the unconnected peers (those peers are not removed by the user, but disconnected for
    * some other reasons, e.g., shut down or out of range) from connected peers map.
+   *
+   * @param lostAddresses addresses of the devices that left the peer list or are no longer connected
    */
-  private void removeDisconnectedPeersFromIpPeerMapOfConnectedPeers() {
-    Log.d(TAG, "remove unconnected peers from IpPeerMapOfConnectedPeers");
-    Log.d(TAG, "before removing, the size of IpPeerMapOfConnectedPeers is " + ipPeerMapOfConnectedPeers.size());
-    for (String peerIp : ipPeerMapOfConnectedPeers.keySet()) {
-      WifiP2pDevice peer = ipPeerMapOfConnectedPeers.get(peerIp).getDevice();
-      if (peer != null && (!discoverdPeers.contains(peer) || peer.status != WifiP2pDevice.CONNECTED)) {
-        FaceDestroyRunnable runnable = new FaceDestroyRunnable(ipPeerMapOfConnectedPeers.get(peerIp).getFaceId());
-        nfdcFaceCommandExecutor.execute(runnable);
-        ipPeerMapOfConnectedPeers.remove(peerIp);
+  private void removeDisconnectedPeers(final Set<String> lostAddresses) {
+    List<Peer> removed = connectedPeers.removeIf(new PeerRegistry.Filter() {
+      @Override
+      public boolean matches(String peerIp, Peer peer) {
+        WifiP2pDevice device = peer.getDevice();
+        return device != null &&
+          (lostAddresses.contains(device.deviceAddress) || device.status != WifiP2pDevice.CONNECTED);
       }
+    });
+    if (removed.isEmpty()) {
+      return;
     }
-    Log.d(TAG, "after removing, the size of IpPeerMapOfConnectedPeers is " + ipPeerMapOfConnectedPeers.size());
+    discoverySchedule.reset(SystemClock.elapsedRealtime());
+    for (Peer peer : removed) {
+      destroyPeerFaces(peer);
+    }
+    Log.d(TAG, "removed " + removed.size() + " peer(s), " + connectedPeers.snapshot().size() + " connected peer(s) left");
   }
 
   /**
@@ -833,14 +1469,7 @@ public class NDNController implements WifiP2pManager.PeerListListener,
    * (2) When Wifi-Direct is disconnected, but myAddress is not null, clean all the states
    */
   private void checkConnectionConsistency() {
-    Log.d(TAG, "start to check ConnectionConsistency");
-    boolean hasConnection = false;
-    for (WifiP2pDevice one : discoverdPeers) {
-      if (one.status == WifiP2pDevice.CONNECTED) {
-        hasConnection = true;
-        break;
-      }
-    }
+    boolean hasConnection = discoveredPeers.hasConnectedDevice();
     if (hasConnection && myAddress == null) {
       requestConnectionInfo();
       return;
@@ -852,22 +1481,45 @@ public class NDNController implements WifiP2pManager.PeerListListener,
     }
   }
 
+  /**
+   * Applies the differences from the previous peer list: peers whose device left or
+   * disconnected are removed, and connected peers without a device get theirs. Peers
+   * whose device did not change are not touched.
+   */
   @Override
   public void onPeersAvailable(WifiP2pDeviceList peerList) {
     Log.d(TAG,
       String.format("Peers available: %d", peerList.getDeviceList().size()));
 
-    discoverdPeers.clear();
-    discoverdPeers.addAll(peerList.getDeviceList());
+    final Set<String> lostAddresses = new HashSet<>();
+    boolean isChanged = discoveredPeers.update(peerList.getDeviceList(), new DiscoveredPeers.Listener() {
+      @Override
+      public void onPeerJoined(WifiP2pDevice device) {
+        Log.d(TAG, "Peer joined: " + device.deviceAddress + ", status " + device.status);
+      }
+
+      @Override
+      public void onPeerLeft(WifiP2pDevice device) {
+        Log.d(TAG, "Peer left: " + device.deviceAddress);
+        lostAddresses.add(device.deviceAddress);
+      }
+
+      @Override
+      public void onPeerStatusChanged(WifiP2pDevice device, int oldStatus) {
+        Log.d(TAG, "Peer " + device.deviceAddress + " status changed: " + oldStatus + " -> " + device.status);
+        if (oldStatus == WifiP2pDevice.CONNECTED) {
+          lostAddresses.add(device.deviceAddress);
+        }
+      }
+    });
 
-    updateIpPeerMapOfConnectedPeers();
-    removeDisconnectedPeersFromIpPeerMapOfConnectedPeers();
+    // a newly attached device may already be disconnected
+    if (resolvePeerDevices() || isChanged) {
+      removeDisconnectedPeers(lostAddresses);
+    }
     checkConnectionConsistency();
 
-    // If an AdapterView is backed by this data, notify it
-    // of the change.  For instance, if you have a ListView of available
-    // peers, trigger an update.
-    if (discoverdPeers.size() == 0) {
+    if (discoveredPeers.size() == 0) {
       Log.d(TAG, "No devices found");
       return;
     }
@@ -934,10 +1586,58 @@ public class NDNController implements WifiP2pManager.PeerListListener,
     recreateFace();
   }
 
+  /**
+   * Returns how this device ranks itself as group owner when it initiates a connection,
+   * as chosen in the WiFi Direct settings.
+   */
+  public GroupOwnerPolicy getGroupOwnerPolicy() {
+    Context context = wifiDirectContext;
+    if (context == null) {
+      return GroupOwnerPolicy.DEFAULT;
+    }
+    return GroupOwnerPolicy.fromIndex(
+      SharedPreferencesManager.getWifiDirectGroupOwnerPolicy(context.getApplicationContext()));
+  }
+
+  /**
+   * @return the current capabilities of this device as a group owner
+   */
+  private GroupOwnerPolicy.Capabilities getGroupOwnerCapabilities() {
+    double batteryLevel = -1;
+    boolean isCharging = false;
+    boolean isLowRamDevice = false;
+    Context context = wifiDirectContext;
+    if (context != null) {
+      // sticky broadcast, no receiver is registered
+      Intent battery = context.getApplicationContext().registerReceiver(null,
+        new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+      if (battery != null) {
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level >= 0 && scale > 0) {
+          batteryLevel = (double) level / scale;
+        }
+        isCharging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+      }
+      ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+      isLowRamDevice = activityManager != null && activityManager.isLowRamDevice();
+    }
+    int numAdvertisedPrefixes = advertisementCache.isReady() ?
+      advertisementCache.getAdvertisedPrefixes(-1).size() : 0;
+    return new GroupOwnerPolicy.Capabilities(batteryLevel, isCharging, Runtime.getRuntime().availableProcessors(),
+      isLowRamDevice, peerFaceRate, numAdvertisedPrefixes);
+  }
+
   public void connect(WifiP2pDevice peerDevice) {
     WifiP2pConfig config = new WifiP2pConfig();
     config.deviceAddress = peerDevice.deviceAddress;
     config.wps.setup = WpsInfo.PBC;
+    // the stronger device of the two should relay for the group; only the initiating device
+    // can set its intent, the accepting device negotiates with the system default
+    GroupOwnerPolicy.Capabilities capabilities = getGroupOwnerCapabilities();
+    config.groupOwnerIntent = getGroupOwnerPolicy().getGroupOwnerIntent(capabilities);
+    Log.d(TAG, "Connecting to " + peerDevice.deviceAddress + " with group owner intent " +
+      config.groupOwnerIntent + " (" + capabilities + ")");
     wifiP2pManager.connect(channel, config, new WifiP2pManager.ActionListener() {
       @Override
       public void onSuccess() {
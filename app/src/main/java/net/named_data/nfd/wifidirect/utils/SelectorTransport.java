@@ -0,0 +1,183 @@
+/* -*- Mode:jde; c-file-style:"gnu"; indent-tabs-mode:nil; -*- */
+/**
+ * Copyright (c) 2015-2019 Regents of the University of California
+ * <p>
+ * This file is part of NFD (Named Data Networking Forwarding Daemon) Android.
+ * See AUTHORS.md for complete list of NFD Android authors and contributors.
+ * <p>
+ * NFD Android is free software: you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ * <p>
+ * NFD Android is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * NFD Android, e.g., in COPYING.md file.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.named_data.nfd.wifidirect.utils;
+
+import net.named_data.jndn.Face;
+import net.named_data.jndn.encoding.ElementListener;
+import net.named_data.jndn.encoding.ElementReader;
+import net.named_data.jndn.encoding.EncodingException;
+import net.named_data.jndn.transport.TcpTransport;
+import net.named_data.jndn.transport.Transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TCP transport whose socket is registered with a Selector, so that the thread
+ * processing face events can block in waitForEvents() until data arrives instead
+ * of polling processEvents().
+ * <p>
+ * Uses TcpTransport.ConnectionInfo. send() may be called from any thread;
+ * processEvents() and waitForEvents() must be called from the event loop thread.
+ */
+public class SelectorTransport extends Transport {
+  private final Selector selector;
+  private final Object registrationGuard = new Object();
+  private final Object sendLock = new Object();
+  private final ByteBuffer inputBuffer = ByteBuffer.allocate(Face.getMaxNdnPacketSize());
+  private volatile SocketChannel channel = null;
+  private ElementReader elementReader = null;
+
+  public SelectorTransport() throws IOException {
+    selector = Selector.open();
+  }
+
+  @Override
+  public boolean isLocal(ConnectionInfo connectionInfo) throws IOException {
+    return TcpTransport.getIsLocal(((TcpTransport.ConnectionInfo) connectionInfo).getHost());
+  }
+
+  @Override
+  public boolean isAsync() {
+    return false;
+  }
+
+  @Override
+  public void connect(ConnectionInfo connectionInfo, ElementListener elementListener,
+                      Runnable onConnected) throws IOException {
+    close();
+
+    TcpTransport.ConnectionInfo tcpConnectionInfo = (TcpTransport.ConnectionInfo) connectionInfo;
+    SocketChannel newChannel = SocketChannel.open(
+      new InetSocketAddress(tcpConnectionInfo.getHost(), tcpConnectionInfo.getPort()));
+    newChannel.configureBlocking(false);
+
+    // register() blocks while another thread is inside select(), so wake it up first
+    // and keep it from selecting again until the registration is done
+    synchronized (registrationGuard) {
+      selector.wakeup();
+      newChannel.register(selector, SelectionKey.OP_READ);
+    }
+
+    elementReader = new ElementReader(elementListener);
+    channel = newChannel;
+
+    if (onConnected != null) {
+      onConnected.run();
+    }
+  }
+
+  @Override
+  public void send(ByteBuffer data) throws IOException {
+    SocketChannel currentChannel = channel;
+    if (currentChannel == null) {
+      throw new IOException("Cannot send because the socket is not open. Use connect.");
+    }
+
+    synchronized (sendLock) {
+      while (data.hasRemaining()) {
+        if (currentChannel.write(data) == 0) {
+          // socket buffer is full, which hardly happens on the localhost connection
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+            throw new IOException("Interrupted while sending");
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads everything that is available on the socket and passes complete elements to
+   * the ElementListener. Does not block.
+   */
+  @Override
+  public void processEvents() throws IOException, EncodingException {
+    SocketChannel currentChannel = channel;
+    if (currentChannel == null) {
+      return;
+    }
+
+    while (true) {
+      inputBuffer.clear();
+      int bytesRead = currentChannel.read(inputBuffer);
+      if (bytesRead < 0) {
+        close();
+        return;
+      }
+      if (bytesRead == 0) {
+        return;
+      }
+      inputBuffer.flip();
+      elementReader.onReceivedData(inputBuffer);
+    }
+  }
+
+  /**
+   * Blocks until the socket has data, wakeup() is called, or timeout expires.
+   *
+   * @param timeoutMs maximum time to block, in ms (at least 1)
+   * @return true if the socket has data to read
+   */
+  public boolean waitForEvents(long timeoutMs) throws IOException {
+    synchronized (registrationGuard) {
+      // only waits for a registration in progress in connect()
+    }
+    int nReady = selector.select(Math.max(1, timeoutMs));
+    selector.selectedKeys().clear();
+    return nReady > 0;
+  }
+
+  /**
+   * Makes a blocked waitForEvents() return immediately.
+   */
+  public void wakeup() {
+    selector.wakeup();
+  }
+
+  @Override
+  public boolean getIsConnected() {
+    SocketChannel currentChannel = channel;
+    return currentChannel != null && currentChannel.isConnected();
+  }
+
+  @Override
+  public void close() throws IOException {
+    SocketChannel currentChannel = channel;
+    channel = null;
+    if (currentChannel != null) {
+      // closing the channel also cancels its selection key
+      currentChannel.close();
+    }
+  }
+
+  /**
+   * Closes the transport and its selector; the transport cannot be used afterwards.
+   */
+  public void closeSelector() throws IOException {
+    close();
+    selector.close();
+  }
+}
@@ -59,6 +59,12 @@ public class WDBroadcastReceiver extends BroadcastReceiver {
   public void onReceive(Context context, Intent intent) {
     final String action = intent.getAction();
 
+    if (WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION.equals(action) ||
+      WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION.equals(action)) {
+      // the WiFi Direct address may have come or gone
+      IPAddress.invalidateLocalIPAddress();
+    }
+
     if (WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION.equals(action)) {
       // Check to see if Wi-Fi is enabled and notify appropriate activity
 